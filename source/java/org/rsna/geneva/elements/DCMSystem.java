@@ -12,15 +12,24 @@ package org.rsna.geneva.elements;
 import java.io.File;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.soap.SOAPMessage;
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.rsna.geneva.main.Configuration;
+import org.rsna.geneva.misc.CircuitBreaker;
+import org.rsna.geneva.misc.DicomAssociationPool;
 import org.rsna.geneva.misc.DicomSender;
+import org.rsna.geneva.misc.PresContextSet;
+import org.rsna.geneva.misc.ProcessingEngine;
+import org.rsna.geneva.misc.StudyManifest;
+import org.rsna.geneva.misc.RateLimiter;
 import org.rsna.geneva.misc.RegSysEvent;
 import org.rsna.geneva.misc.Registration;
+import org.rsna.geneva.misc.Workflow;
 import org.rsna.geneva.objects.DicomObject;
 import org.rsna.geneva.objects.KOS;
 import org.rsna.util.StringUtil;
@@ -44,6 +53,9 @@ public class DCMSystem extends EHRSystem {
 	public boolean acceptsRAD28;
 	public boolean acceptsExamComplete;
 	public boolean sendsKOS;
+	public double bytesPerSecond;
+	public int dcmAsyncOps;
+	public int dcmAssociations;
 
 	public DCMSystem(Element el) {
 		super(el);
@@ -57,6 +69,15 @@ public class DCMSystem extends EHRSystem {
 		this.acceptsRAD28= !el.getAttribute("acceptsRAD28").trim().equals("no");
 		this.acceptsExamComplete= !el.getAttribute("acceptsExamComplete").trim().equals("no");
 		this.sendsKOS = !el.getAttribute("sendsKOS").trim().equals("no");
+		this.bytesPerSecond = getRate(el, "bytesPerSecond");
+		RateLimiter.setRate(id+":dcm", dcmURL, bytesPerSecond);
+		try { this.dcmAsyncOps = Integer.parseInt(el.getAttribute("dcmAsyncOps").trim()); }
+		catch (Exception ex) { this.dcmAsyncOps = 1; }
+		if (this.dcmAsyncOps < 1) this.dcmAsyncOps = 1;
+		DicomAssociationPool.setAsyncOpsWindow(dcmURL, dcmAsyncOps);
+		try { this.dcmAssociations = Integer.parseInt(el.getAttribute("dcmAssociations").trim()); }
+		catch (Exception ex) { this.dcmAssociations = 1; }
+		if (this.dcmAssociations < 1) this.dcmAssociations = 1;
 	}
 
 	public void appendDataRows(StringBuffer sb) {
@@ -65,20 +86,73 @@ public class DCMSystem extends EHRSystem {
 		sb.append("<tr><td>Accepts RAD2:</td><td>"+(acceptsRAD2?"yes":"no")+"</td></tr>");
 		sb.append("<tr><td>Accepts RAD28:</td><td>"+(acceptsRAD28?"yes":"no")+"</td></tr>");
 		sb.append("<tr><td>DCM URL:</td><td>"+dcmURL+"</td></tr>");
+		sb.append("<tr><td>DICOM Bytes per Second:</td><td>"+getRateString(bytesPerSecond)+"</td></tr>");
+		sb.append("<tr><td>DICOM Async Operations Window:</td><td>"+dcmAsyncOps+"</td></tr>");
+		sb.append("<tr><td>DICOM Associations per Study:</td><td>"+dcmAssociations+"</td></tr>");
 		sb.append("<tr><td>Retrieve AET:</td><td>"+retrieveAET+"</td></tr>");
 		sb.append("<tr><td>Sends KOS:</td><td>"+(sendsKOS?"yes":"no")+"</td></tr>");
 		sb.append("<tr><td>Repository ID:</td><td>"+repositoryID+"</td></tr>");
 		sb.append("<tr><td>Institution Name:</td><td>"+institutionName+"</td></tr>");
 	}
 
+	public String[] getURLs() {
+		return new String[] { hl7URL, dcmURL };
+	}
+
+	/**
+	 * The DICOM step is admitted by the limiter for the dcmURL, and the
+	 * KOS step by the limiter for the Repository to which the KOS is sent.
+	 * The mirror step sends to other systems, so it is not limited here.
+	 */
+	public RateLimiter getRateLimiter(String step) {
+		if (step.equals("DICOM")) return RateLimiter.get(dcmURL);
+		if (step.equals("KOS")) {
+			Repository repository = Configuration.getInstance().getRepository(repositoryID);
+			return (repository != null) ? repository.getRateLimiter(step) : null;
+		}
+		if (step.equals("MIRROR")) return null;
+		return super.getRateLimiter(step);
+	}
+
+	static final String[] studySteps = {
+		"RAD2", "RAD4", "DICOM", "RAD28", "MIRROR", "KOS"
+	};
+
+	/**
+	 * The steps of a Study share the identifiers in its StudyContext
+	 * (accession number, UIDs, procedure IDs, and the stored instances),
+	 * which are created when the first of them runs, so a Study is
+	 * always replayed as a whole.
+	 */
+	public String[] getStepGroup(String name, String scope) {
+		if ((scope != null) && Arrays.asList(studySteps).contains(name)) return studySteps;
+		return super.getStepGroup(name, scope);
+	}
+
+	/**
+	 * Add the EHRSystem steps and, for each enabled Study assigned
+	 * to this system, one step for each of the studySteps. The steps
+	 * of a Study share a StudyContext and are scoped by the Study ID.
+	 */
+	public void addSteps(Workflow workflow, Registration reg) {
+		super.addSteps(workflow, reg);
+		Study[] studies = Configuration.getInstance().getStudies();
+		for (int i=0; i<studies.length; i++) {
+			if (studies[i].enabled && studies[i].systemID.equals(id)) {
+				StudyContext context = new StudyContext(reg, studies[i]);
+				for (int k=0; k<studySteps.length; k++) {
+					workflow.addStep(this, studySteps[k], studies[i].id,
+									 new StudyStep(context, studySteps[k]));
+				}
+			}
+		}
+	}
+
 	void processRegistration(Registration reg) {
 		//First handle all the HL7 messages
 		super.processRegistration(reg);
 		//Now process the Studies for this DCMSystem
 		Study[] studies = Configuration.getInstance().getStudies();
-		Configuration config = Configuration.getInstance();
-		//String accessionNumber = config.getAccessionNumber();
-		//String accessionNumber = reg.accessionNumber;
 		for (int i=0; i<studies.length; i++) {
 			if (studies[i].enabled && studies[i].systemID.equals(id)) {
 				processStudy(reg,studies[i]);
@@ -89,91 +163,271 @@ public class DCMSystem extends EHRSystem {
 	public void processStudy(Registration reg, Study study) {
 		//Only service process requests if the system is enabled.
 		if (!enabled) return;
+		StudyContext context = new StudyContext(reg, study);
+		for (int k=0; k<studySteps.length; k++) context.process(studySteps[k]);
+	}
 
-		//Get the parameters to be used for both DICOM and HL7.
-		DicomObject dicomObject = getDicomObject(study.directoryFile);
-
-		//If nothing is there, quit.
-		if (dicomObject == null) return;
-
-		//Got something, process it.
-		Configuration config = Configuration.getInstance();
-
-		String modality = dicomObject.getModality();
-		String accessionNumber = config.getAccessionNumber();
-		int seqInt = config.getSeqInt();
-		String rpID = "RPID" + seqInt;
-		String spsID = "SPSID" + seqInt;
-		String placerOrderNumber = "PN" + seqInt;
-		String fillerOrderNumber = "empty";
-		//fillerOrderNumber = "FN" + seqInt;
-		// Per RSNA Image Sharing demo, use accession number as Filler Order Number
-		// RSNA demo 2009 used accession number as filler order number
-		//fillerOrderNumber = accessionNumber;
-		// RSNA demo 2010 has Filler Order Number separate from Accession Number
+	//One step in the processing of a Study.
+	class StudyStep implements Runnable {
+		StudyContext context;
+		String name;
+		public StudyStep(StudyContext context, String name) {
+			this.context = context;
+			this.name = name;
+		}
+		public void run() {
+			context.process(name);
+		}
+	}
 
+	//The parameters shared by all the steps for one Study. They are
+	//computed when the first step runs so that nothing is done for
+	//a Study until its first step is ready.
+	class StudyContext {
+		Registration reg;
+		Study study;
+		boolean initialized = false;
+		StudyManifest manifest = null;
+		StudyManifest.Entry first = null;
+
+		String modality;
+		String accessionNumber;
+		String rpID;
+		String spsID;
+		String placerOrderNumber;
+		String fillerOrderNumber;
+		String studyInstanceUID;
+		String studyDate;
+		String studyTime;
+		UIDMap map;
+		KOS kos;
+		Set<String> sent = Collections.synchronizedSet(new HashSet<String>());
+		PresContextSet presContexts = null;
+		List<File> files = null;
+		TreeMap<Integer,DicomObject> stored = new TreeMap<Integer,DicomObject>();
+
+		public StudyContext(Registration reg, Study study) {
+			this.reg = reg;
+			this.study = study;
+		}
 
-		// Per RSNA Image Sharing demo, use accession number as Filler Order Number
-		// RSNA demo 2009 used accession number as filler order number
-		fillerOrderNumber = accessionNumber;
+		//Get the parameters to be used for both DICOM and HL7.
+		//Return false if the Study directory contains nothing to send.
+		synchronized boolean init() {
+			if (initialized) return (first != null);
+			initialized = true;
+
+			//Get the manifest of the study, which is used for
+			//all the steps, and its first DICOM object.
+			manifest = StudyManifest.getInstance(study.directoryFile);
+			first = manifest.getFirstDicomEntry();
+
+			//If nothing is there, quit.
+			if (first == null) return false;
+
+			//Got something, process it.
+			Configuration config = Configuration.getInstance();
+
+			modality = first.modality;
+			accessionNumber = config.getAccessionNumber();
+			int seqInt = config.getSeqInt();
+			rpID = "RPID" + seqInt;
+			spsID = "SPSID" + seqInt;
+			placerOrderNumber = "PN" + seqInt;
+
+			// Per RSNA Image Sharing demo, use accession number as Filler Order Number
+			// RSNA demo 2009 used accession number as filler order number
+			// RSNA demo 2010 has Filler Order Number separate from Accession Number
+			fillerOrderNumber = accessionNumber;
+
+			logger.error("Acc number: " + accessionNumber);
+			logger.error("FN  number: " + fillerOrderNumber);
+			System.out.println("Acc number: " + accessionNumber);
+			System.out.println("FN  number: " + fillerOrderNumber);
+
+			map = new UIDMap();
+			studyInstanceUID = map.getUID(first.studyInstanceUID);
+
+			studyDate = study.date;
+			if (studyDate.indexOf("*") != -1) studyDate = config.today();
+			studyTime = config.now();
+			kos = new KOS(config,retrieveAET,institutionName);
+			return true;
+		}
 
-		logger.error("Acc number: " + accessionNumber);
-		logger.error("FN  number: " + fillerOrderNumber);
-		System.out.println("Acc number: " + accessionNumber);
-		System.out.println("FN  number: " + fillerOrderNumber);
+		//Perform one of the studySteps.
+		void process(String step) {
+			if (!init()) return;
+			if (step.equals("RAD2")) {
+				sendRAD2(reg, study, studyInstanceUID, accessionNumber, rpID,
+						spsID, placerOrderNumber, fillerOrderNumber, modality);
+			}
+			else if (step.equals("RAD4")) {
+				sendRAD4(reg, study, studyInstanceUID, accessionNumber, rpID,
+						spsID, placerOrderNumber, fillerOrderNumber, modality);
+			}
+			else if (step.equals("RAD28")) {
+				sendRAD28(reg, study, studyInstanceUID, accessionNumber, rpID,
+						spsID, placerOrderNumber, fillerOrderNumber, modality);
+			}
+			else if (step.equals("MIRROR")) {
+				sendToMirrors(reg, study, studyInstanceUID, accessionNumber, rpID,
+						spsID, placerOrderNumber, fillerOrderNumber, modality);
+			}
+			else if (step.equals("DICOM")) sendStudy();
+			else if (step.equals("KOS")) sendKOS();
+		}
 
+		//Process the DICOM files.
+		void sendStudy() {
+			Configuration config = Configuration.getInstance();
+			String localID = reg.localIDTable.get(id);
+
+			//Don't walk the study if the system is known to be down.
+			if (CircuitBreaker.getInstance(dcmURL).isOpen()) {
+				config.getEventLog().append(
+					new RegSysEvent(
+							DCMSystem.this,
+							RegSysEvent.STATUS_CIRCUIT_OPEN,
+							RegSysEvent.TYPE_DICOM,
+							"Study ID: "+study.id +
+							"<br>DCM System ID: "+id +
+							"<br>Circuit open for "+dcmURL
+						));
+				Workflow.reportStatus(RegSysEvent.STATUS_CIRCUIT_OPEN, "DICOM to "+id);
+				return;
+			}
 
+			SendResult result = new SendResult(stored, sent);
+			//Find the presentation contexts for the whole study,
+			//so it can be sent on one association.
+			if (presContexts == null) presContexts = manifest.getPresContexts();
+			//The DICOM files are listed in the manifest in a fixed order.
+			//The manifest records which files are DICOM objects, so the
+			//others are not parsed again or counted as failures. The
+			//instance number of each object is the position of its file
+			//in the list, so it does not depend on the association that
+			//sends it or on the attempt.
+			if (files == null) files = manifest.getDicomFiles();
+
+			//Divide the files among the associations. Each one takes
+			//the next file from the list until all have been sent. The
+			//helpers run in the system's helper pool in the ProcessingEngine;
+			//this thread runs one of the associations itself.
+			AtomicInteger next = new AtomicInteger(0);
+			int n = Math.max(1, Math.min(dcmAssociations, files.size()));
+			List<Transfer> transfers = new ArrayList<Transfer>();
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			if (n > 1) {
+				ExecutorService helpers = ProcessingEngine.getInstance().getHelperPool(DCMSystem.this, dcmAssociations-1);
+				for (int i=1; i<n; i++) {
+					Transfer helper = new Transfer(localID, next, result);
+					transfers.add(helper);
+					futures.add(helpers.submit(helper));
+				}
+			}
+			Transfer transfer = new Transfer(localID, next, result);
+			transfer.run();
 
-		UIDMap map = new UIDMap();
-		String studyInstanceUID = dicomObject.getStudyInstanceUID();
-		studyInstanceUID = map.getUID(studyInstanceUID);
+			//Wait for the helpers. A helper which has not started when this
+			//association finishes has nothing left to do, so it is cancelled.
+			if (transfer.interrupted) {
+				for (Future<?> future : futures) future.cancel(true);
+			}
+			String failure = null;
+			for (int i=0; i<futures.size(); i++) {
+				Future<?> future = futures.get(i);
+				if (future.cancel(false)) continue;
+				try { future.get(); }
+				catch (CancellationException ex) { }
+				catch (ExecutionException ex) {
+					logger.warn("DICOM transfer to "+id+" failed", ex.getCause());
+					if (failure == null) failure = "Failure while sending to "+id+": "+ex.getCause();
+				}
+				catch (InterruptedException ex) {
+					for (Future<?> f : futures) f.cancel(true);
+					transfer.interrupted = true;
+					break;
+				}
+				if (transfers.get(i).interrupted) transfer.interrupted = true;
+			}
+			if (transfer.interrupted) {
+				Workflow.reportFailure("Interrupted while sending to "+id);
+				return;
+			}
+			if (failure != null) Workflow.reportFailure(failure);
+			RegSysEvent event =
+				new RegSysEvent(
+						DCMSystem.this,
+						((result.failure == 0) ? RegSysEvent.STATUS_OK : RegSysEvent.STATUS_ERROR),
+						RegSysEvent.TYPE_DICOM,
+						"Study ID: "+study.id +
+						"<br>DCM System ID: "+id +
+						"<br>Instances transferred: Success: "+result.success+
+						"; Failure: "+result.failure
+					);
+			config.getEventLog().append(event);
+			Workflow.reportStatus(event.status, result.failure+" of "+(result.success+result.failure)+" C-STOREs to "+id);
+			logger.error("Mirror systems: " + mirrorSystems);
+		}
 
-		//Start by sending an ORM/order and ORM/scheduling if the system accepts them.
-		sendRAD2(reg, study, studyInstanceUID, accessionNumber, rpID,
-				spsID, placerOrderNumber, fillerOrderNumber, modality);
-		sendRAD4(reg, study, studyInstanceUID, accessionNumber, rpID,
-				spsID, placerOrderNumber, fillerOrderNumber, modality);
-		sendRAD28(reg, study, studyInstanceUID, accessionNumber, rpID,
-				spsID, placerOrderNumber, fillerOrderNumber, modality);
-		sendToMirrors(reg, study, studyInstanceUID, accessionNumber, rpID,
-				spsID, placerOrderNumber, fillerOrderNumber, modality);
+		//One of the associations used to send the study.
+		class Transfer implements Runnable {
+			String localID;
+			AtomicInteger next;
+			SendResult result;
+			boolean interrupted = false;
+
+			public Transfer(String localID, AtomicInteger next, SendResult result) {
+				this.localID = localID;
+				this.next = next;
+				this.result = result;
+			}
 
-		//Next, process the DICOM files.
-		String studyDate = study.date;
-		String studyTime = null;
-		if (studyDate.indexOf("*") != -1) studyDate = config.today();
-		studyTime = config.now();
-		KOS kos = new KOS(config,retrieveAET,institutionName);
-		String localID = reg.localIDTable.get(id);
-
-		InstanceNumber.reset();
-		SendResult result = new SendResult();
-		DicomSender sender = new DicomSender(dcmURL);
-		sendInstances(reg, localID, study, study.directoryFile, studyDate, studyTime, studyInstanceUID,
-					  accessionNumber, rpID, spsID, sender, map, kos, result);
-		sender.close();
-		RegSysEvent event =
-			new RegSysEvent(
-					this,
-					((result.failure == 0) ? RegSysEvent.STATUS_OK : RegSysEvent.STATUS_ERROR),
-					RegSysEvent.TYPE_DICOM,
-					"Study ID: "+study.id +
-					"<br>DCM System ID: "+id +
-					"<br>Instances transferred: Success: "+result.success+
-					"; Failure: "+result.failure
-				);
-		config.getEventLog().append(event);
-		logger.error("Mirror systems: " + mirrorSystems);
-
-		//Finally, send the KOS
-		String metadataFolderName = new String(study.directoryFile.getAbsolutePath()) + "-metadata";
-		File metadataFolder = new File(metadataFolderName);
-		if (! metadataFolder.exists()) {
-			logger.error("KOS metadata folder does not exist: " + metadataFolderName);
-			return;
+			public void run() {
+				DicomSender sender;
+				try { sender = DicomAssociationPool.borrow(dcmURL); }
+				catch (InterruptedException ex) {
+					interrupted = true;
+					return;
+				}
+				sender.setPresContexts(presContexts);
+				sender.setStoreListener(result);
+				try {
+					int i;
+					while ((i = next.getAndIncrement()) < files.size()) {
+						//Skip the files that were sent on an earlier attempt.
+						File file = files.get(i);
+						if (!sent.contains(file.getPath())) {
+							sendInstance(reg, localID, study, file, i+1, studyDate, studyTime, studyInstanceUID,
+										 accessionNumber, rpID, spsID, sender, map, result);
+						}
+					}
+				}
+				finally {
+					sender.waitForResponses();
+					sender.setStoreListener(null);
+					DicomAssociationPool.release(sender);
+				}
+			}
 		}
-		sendKOS(metadataFolder, reg, studyDate, kos, study.id, reg.globalID, modality);
 
+		//Send the KOS.
+		void sendKOS() {
+			String metadataFolderName = new String(study.directoryFile.getAbsolutePath()) + "-metadata";
+			File metadataFolder = new File(metadataFolderName);
+			if (! metadataFolder.exists()) {
+				logger.error("KOS metadata folder does not exist: " + metadataFolderName);
+				return;
+			}
+			//Add the stored instances in the order of their instance
+			//numbers, whichever association and attempt sent them.
+			synchronized (stored) {
+				for (DicomObject dicomObject : stored.values()) kos.add(dicomObject);
+				stored.clear();
+			}
+			DCMSystem.this.sendKOS(metadataFolder, reg, studyDate, kos, study.id, reg.globalID, modality);
+		}
 	}
 
 	private void sendToMirrors(
@@ -321,6 +575,7 @@ public class DCMSystem extends EHRSystem {
 						StringUtil.displayable(orm.toString()) +
 						"Response: "+StringUtil.displayable(response));
 			config.getEventLog().append(event);
+			Workflow.reportStatus(status, orm.name+" to "+id);
 		}
 	}
 
@@ -409,6 +664,7 @@ public class DCMSystem extends EHRSystem {
 						StringUtil.displayable(orm.toString()) +
 						"Response: "+StringUtil.displayable(response));
 			config.getEventLog().append(event);
+			Workflow.reportStatus(status, orm.name+" to "+id);
 		} else {
 			logger.error("RAD 4: No");
 		}
@@ -427,9 +683,6 @@ public class DCMSystem extends EHRSystem {
 
 		Configuration config = Configuration.getInstance();
 		if (acceptsRAD28) {
-			try { Thread.sleep(3000); }
-			catch (Exception ignore) { }
-
 			String reportText =
 "MR RIGHT KNEE:  \\.br" +
 "\\.br"+
@@ -520,14 +773,16 @@ public class DCMSystem extends EHRSystem {
 						StringUtil.displayable(oru.toString()) +
 						"Response: "+StringUtil.displayable(response));
 			config.getEventLog().append(event);
+			Workflow.reportStatus(status, oru.name+" to "+id);
 		}
 	}
 
-	private void sendInstances(
+	private void sendInstance(
 					Registration reg,
 					String localID,
 					Study study,
 					File file,
+					int instanceNumber,
 					String studyDate,
 					String studyTime,
 					String studyInstanceUID,
@@ -536,21 +791,12 @@ public class DCMSystem extends EHRSystem {
 					String scheduledProcedureStepID,
 					DicomSender sender,
 					UIDMap map,
-					KOS kos,
 					SendResult result) {
-		//Walk the tree, sending everything that parses.
-		if (file.isDirectory()) {
-			File[] files = file.listFiles();
-			for (int i=0; i<files.length; i++)
-				sendInstances(
-					reg, localID, study, files[i], studyDate, studyTime,
-					studyInstanceUID, accessionNumber,
-					requestedProcedureID, scheduledProcedureStepID,
-					sender, map, kos, result);
-		}
-		else {
+		//Send the file if it parses.
+		{
+			DicomObject dicomObject = null;
 			try {
-				DicomObject dicomObject = new DicomObject(file);
+				dicomObject = new DicomObject(file);
 
 				//get the modality for later
 				String modality = dicomObject.getModality();
@@ -595,17 +841,17 @@ public class DCMSystem extends EHRSystem {
 				String newSeriesInstanceUID = map.getUID(origSeriesInstanceUID);
 				dicomObject.setSeriesInstanceUID(newSeriesInstanceUID);
 
-				dicomObject.setInstanceNumber(Integer.toString(InstanceNumber.getNext()));
+				dicomObject.setInstanceNumber(Integer.toString(instanceNumber));
 
+				//The result is counted when the response arrives.
+				result.sending(dicomObject, file, instanceNumber);
 				sender.send(dicomObject);
-				kos.add(dicomObject);
-				result.success++;
 				dicomObject.close();
-				dicomObject = null;
 			}
 			catch (Exception ex) {
 				ex.printStackTrace();
-				result.failure++;
+				if (dicomObject != null) dicomObject.close();
+				result.failed(dicomObject);
 			}
 		}
 	}
@@ -652,6 +898,7 @@ public class DCMSystem extends EHRSystem {
 			kosResult = "KOS Result: " + ex.getMessage();
 			logger.warn("Error processing the KOS.\n",ex);
 			sendKOSEvent(false, kosResult, studyID, globalID);
+			Workflow.reportFailure(kosResult);
 		}
 	}
 
@@ -670,27 +917,47 @@ public class DCMSystem extends EHRSystem {
 		Configuration.getInstance().getEventLog().append(event);
 	}
 
-	//Walk a directory until you find a parsable DICOM file
-	//and return its StudyInstanceUID and modality.
-	private DicomObject getDicomObject(File file) {
-		if (file.isDirectory()) {
-			DicomObject dicomObject = null;
-			File[] files = file.listFiles();
-			for (int i=0; i<files.length; i++) {
-				if ((dicomObject = getDicomObject(files[i])) != null)
-					return dicomObject;
-			}
+	//The results of the C-STOREs for a study. Objects which are stored
+	//are added to the set of files which have been sent and to the map
+	//of stored objects by instance number, from which the KOS is built.
+	class SendResult implements DicomSender.StoreListener {
+		public int success = 0;
+		public int failure = 0;
+		TreeMap<Integer,DicomObject> stored;
+		Set<String> sent;
+		Hashtable<DicomObject,String> paths = new Hashtable<DicomObject,String>();
+		Hashtable<DicomObject,Integer> numbers = new Hashtable<DicomObject,Integer>();
+
+		public SendResult(TreeMap<Integer,DicomObject> stored, Set<String> sent) {
+			this.stored = stored;
+			this.sent = sent;
 		}
-		else {
-			try { return new DicomObject(file); }
-			catch (Exception ex) { }
+
+		public void sending(DicomObject dicomObject, File file, int instanceNumber) {
+			paths.put(dicomObject, file.getPath());
+			numbers.put(dicomObject, instanceNumber);
 		}
-		return null;
-	}
 
-	class SendResult {
-		public int success = 0;
-		public int failure = 0;
+		public synchronized void stored(DicomObject dicomObject, boolean ok) {
+			String path = paths.remove(dicomObject);
+			Integer number = numbers.remove(dicomObject);
+			if (ok) {
+				if (number != null) {
+					synchronized (stored) { stored.put(number, dicomObject); }
+				}
+				if (path != null) sent.add(path);
+				success++;
+			}
+			else failure++;
+		}
+
+		public synchronized void failed(DicomObject dicomObject) {
+			if (dicomObject != null) {
+				paths.remove(dicomObject);
+				numbers.remove(dicomObject);
+			}
+			failure++;
+		}
 	}
 
 	class UIDMap {
@@ -701,7 +968,7 @@ public class DCMSystem extends EHRSystem {
 			map = new Hashtable<String,String>();
 		}
 
-		public String getUID(String oldUID) {
+		public synchronized String getUID(String oldUID) {
 			String newUID = map.get(oldUID);
 			if (newUID == null) {
 				newUID = Configuration.getInstance().getUID();
@@ -711,17 +978,6 @@ public class DCMSystem extends EHRSystem {
 		}
 	}
 
-	static class InstanceNumber {
-		static int instanceNumber = 0;
-		public static void reset() {
-			instanceNumber = 0;
-		}
-		public static int getNext() {
-			instanceNumber++;
-			return instanceNumber;
-		}
-	}
-
 	public String getType() {
 		return type;
 	}
@@ -730,6 +986,9 @@ public class DCMSystem extends EHRSystem {
 		try {
 			Element e = super.getXML();
 			e.setAttribute("dcmURL", dcmURL);
+			if (bytesPerSecond > 0) e.setAttribute("bytesPerSecond", getRateString(bytesPerSecond));
+			if (dcmAsyncOps > 1) e.setAttribute("dcmAsyncOps", Integer.toString(dcmAsyncOps));
+			if (dcmAssociations > 1) e.setAttribute("dcmAssociations", Integer.toString(dcmAssociations));
 			e.setAttribute("repositoryID", repositoryID);
 			e.setAttribute("institutionName", institutionName);
 			e.setAttribute("retrieveAET", retrieveAET);
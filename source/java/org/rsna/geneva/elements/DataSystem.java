@@ -15,8 +15,11 @@ import java.net.*;
 import java.util.*;
 import org.rsna.geneva.main.Configuration;
 import org.rsna.geneva.hl7.*;
+import org.rsna.geneva.misc.ProcessingEngine;
+import org.rsna.geneva.misc.RateLimiter;
 import org.rsna.geneva.misc.Registration;
 import org.rsna.geneva.misc.RegSysEvent;
+import org.rsna.geneva.misc.Workflow;
 import org.rsna.util.StringUtil;
 
 public class DataSystem extends Product {
@@ -33,6 +36,10 @@ public class DataSystem extends Product {
 	public boolean acceptsITI8withGlobalID;
 	public boolean acceptsITI8withLocalID;
 	public int timeout;
+	public int queueSize;
+	public int workers;
+	public double messagesPerSecond;
+	public int hl7PipelineDepth;
 	public HL7Field[] fields;
 	public String globalAssigningAuthority;
 
@@ -63,6 +70,25 @@ public class DataSystem extends Product {
 		catch (Exception ex) { this.timeout = 0; }
 		if (this.timeout == 0) this.timeout = 5000;
 
+		//Get the dispatch queue parameters. If workers is not
+		//specified, the pool size for the class is used.
+		try { this.queueSize = Integer.parseInt(el.getAttribute("queueSize").trim()); }
+		catch (Exception ex) { this.queueSize = 0; }
+		if (this.queueSize <= 0) this.queueSize = ProcessingEngine.defaultQueueSize;
+		try { this.workers = Integer.parseInt(el.getAttribute("workers").trim()); }
+		catch (Exception ex) { this.workers = 0; }
+		if (this.workers < 0) this.workers = 0;
+
+		//Get the rate limit for the HL7 destination.
+		this.messagesPerSecond = getRate(el, "messagesPerSecond");
+		RateLimiter.setRate(id+":hl7", hl7URL, messagesPerSecond);
+
+		//Get the number of HL7 messages which may be sent without waiting for their responses.
+		try { this.hl7PipelineDepth = Integer.parseInt(el.getAttribute("hl7PipelineDepth").trim()); }
+		catch (Exception ex) { this.hl7PipelineDepth = 1; }
+		if (this.hl7PipelineDepth < 1) this.hl7PipelineDepth = 1;
+		MLLPConnectionPool.setPipelineDepth(hl7URL, hl7PipelineDepth);
+
 		fields = Configuration.getInstance().getFields(el);
 
 		this.globalAssigningAuthority
@@ -76,6 +102,21 @@ public class DataSystem extends Product {
 		return Configuration.getInstance().getGlobalAssigningAuthority();
 	}
 
+	/**
+	 * The patient identity feed is the single step for this system.
+	 */
+	public String getStepName() {
+		return "ITI8";
+	}
+
+	public String[] getURLs() {
+		return new String[] { hl7URL };
+	}
+
+	public RateLimiter getRateLimiter(String step) {
+		return RateLimiter.get(hl7URL);
+	}
+
 	void processRegistration(Registration reg) {
 		if (acceptsITI8withGlobalID) sendPatientIdFeedWithGlobalID(reg);
 	}
@@ -102,6 +143,7 @@ public class DataSystem extends Product {
                 "<br>Response:<br>" +
                 StringUtil.displayable(response.getStatusString()));
         Configuration.getInstance().getEventLog().append(event);
+        Workflow.reportStatus(event.status, pif.getName()+" to "+id);
 	}
 
 	public void appendTableRow(StringBuffer sb) {
@@ -119,12 +161,15 @@ public class DataSystem extends Product {
 		sb.append("<tr><td>SOAP Version:</td><td>"+soapVersion+"</td></tr>");
 		sb.append("<tr><td>Receiving Application:</td><td>"+receivingApplication+"</td></tr>");
 		sb.append("<tr><td>Receiving Facility:</td><td>"+receivingFacility+"</td></tr>");
+		sb.append("<tr><td>HL7 Pipeline Depth:</td><td>"+hl7PipelineDepth+"</td></tr>");
 		sb.append("<tr><td>Receiver Device Id:</td><td>"+receiverDeviceId+"</td></tr>");
 		sb.append("<tr><td>Receiver Device Name:</td><td>"+receiverDeviceName+"</td></tr>");
 		sb.append("<tr><td>Accepts ITI8 with Global ID:</td><td>"+(acceptsITI8withGlobalID?"yes":"no")+"</td></tr>");
 		sb.append("<tr><td>Accepts ITI8 with Local ID:</td><td>"+(acceptsITI8withLocalID?"yes":"no")+"</td></tr>");
-		sb.append("<tr><td>Thread Startup Delay (ms):</td><td>"+startupDelay+"</td></tr>");
 		sb.append("<tr><td>HL7 Timeout (ms):</td><td>"+timeout+"</td></tr>");
+		sb.append("<tr><td>Queue Size:</td><td>"+queueSize+"</td></tr>");
+		sb.append("<tr><td>Workers:</td><td>"+((workers > 0) ? Integer.toString(workers) : "default")+"</td></tr>");
+		sb.append("<tr><td>Messages per Second:</td><td>"+getRateString(messagesPerSecond)+"</td></tr>");
 		listFields(sb,fields,"ITI8 Fields");
 		sb.append("<tr><td>Global Assigning Authority:</td><td>"+globalAssigningAuthority+"</td></tr>");
 	}
@@ -150,11 +195,15 @@ public class DataSystem extends Product {
 			e.setAttribute("soapVersion", soapVersion);
 			e.setAttribute("receivingApplication", receivingApplication);
 			e.setAttribute("receivingFacility", receivingFacility);
+			if (hl7PipelineDepth > 1) e.setAttribute("hl7PipelineDepth", Integer.toString(hl7PipelineDepth));
 			e.setAttribute("receiverDeviceId", receiverDeviceId);
 			e.setAttribute("receiverDeviceName", receiverDeviceName);
 			e.setAttribute("acceptsITI8withGlobalID", yesNo(acceptsITI8withGlobalID));
 			e.setAttribute("acceptsITI8withLocalID", yesNo(acceptsITI8withLocalID));
 			e.setAttribute("timeout", Integer.toString(timeout));
+			e.setAttribute("queueSize", Integer.toString(queueSize));
+			if (workers > 0) e.setAttribute("workers", Integer.toString(workers));
+			if (messagesPerSecond > 0) e.setAttribute("messagesPerSecond", getRateString(messagesPerSecond));
 			e.setAttribute("globalAssigningAuthority", globalAssigningAuthority);
 			//TBD -- insert child elements for the fields here
 			return e;
@@ -12,6 +12,7 @@ import org.rsna.geneva.main.Configuration;
 import org.rsna.geneva.misc.Registration;
 import org.rsna.geneva.hl7.*;
 import org.rsna.geneva.misc.RegSysEvent;
+import org.rsna.geneva.misc.Workflow;
 import org.rsna.util.StringUtil;
 
 public class EHRSystem extends DataSystem {
@@ -38,18 +39,49 @@ public class EHRSystem extends DataSystem {
 		localAssigningAuthority = getLocalAssigningAuthority();
 	}
 
+	/**
+	 * Add separate steps for the patient identity feeds (ITI8),
+	 * the RAD1, and the Messages for this system.
+	 */
+	public void addSteps(Workflow workflow, final Registration reg) {
+		workflow.addStep(this, "ITI8", null,
+			new Runnable() {
+				public void run() { sendITI8(reg); }
+			});
+		workflow.addStep(this, "RAD1", null,
+			new Runnable() {
+				public void run() { sendRAD1(reg); }
+			});
+		workflow.addStep(this, "MSG", null,
+			new Runnable() {
+				public void run() { sendMessages(reg); }
+			});
+	}
+
 	void processRegistration(Registration reg) {
+		sendITI8(reg);
+		sendRAD1(reg);
+		sendMessages(reg);
+	}
+
+	//Send the patient identity feeds with the global and local IDs.
+	void sendITI8(Registration reg) {
 		super.processRegistration(reg);
 
 		if (acceptsITI8withLocalID) {
             sendPatientIdFeedWithLocalID( reg);
 		}
+	}
 
+	//Send the RAD1 if the system accepts it.
+	void sendRAD1(Registration reg) {
 		if (acceptsRAD1) {
 			sendRAD1(fields, reg, reg.localIDTable.get(id));
 		}
+	}
 
-		//Now process the Messages for this EHRSystem
+	//Process the Messages for this EHRSystem
+	void sendMessages(Registration reg) {
 		if (acceptsMessages) {
 			Message[] messages = Configuration.getInstance().getMessages();
 			for (int i=0; i<messages.length; i++) {
@@ -82,6 +114,7 @@ public class EHRSystem extends DataSystem {
                 StringUtil.displayable(pif.toString()) +
                 "Response: "+StringUtil.displayable(response.getStatusString()));
         Configuration.getInstance().getEventLog().append(event);
+        Workflow.reportStatus(event.status, pif.getName()+" to "+id);
     }
 
 	public void sendRAD1(
@@ -137,6 +170,7 @@ public class EHRSystem extends DataSystem {
 						StringUtil.displayable(a04.toString()) +
 						"Response: "+StringUtil.displayable(response));
 			config.getEventLog().append(event);
+			Workflow.reportStatus(status, a04.name+" to "+id);
 		}
 	}
 
@@ -162,6 +196,7 @@ public class EHRSystem extends DataSystem {
 							StringUtil.displayable(msg.toString()) +
 							"Response: "+StringUtil.displayable(response));
 				config.getEventLog().append(event);
+				Workflow.reportStatus(status, msg.name+" to "+id);
 			}
 		}
 	}
@@ -0,0 +1,140 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.elements;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.rsna.geneva.misc.ProcessingEngine;
+import org.rsna.geneva.misc.Registration;
+import org.rsna.geneva.misc.Workflow;
+import org.rsna.geneva.misc.WorkflowRules;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A command-line program for comparing the execution modes of the
+ * ProcessingEngine. It runs a number of simulated registrations, each
+ * a Workflow of four steps in sequence, one for each of four simulated
+ * destinations, where each step blocks for a fixed time to stand in for
+ * a network round trip. No configuration is loaded and nothing is sent.
+ * <pre>
+ *   java -cp Geneva.jar:libraries/* org.rsna.geneva.elements.ExecutionBenchmark
+ *        [-mode platform|virtual] [-registrations n] [-workers n] [-latency ms]
+ * </pre>
+ * The workers value is the number of steps each destination may run at
+ * once (default: the number of registrations). The program prints the
+ * elapsed time, the registrations per second, and the peak number of
+ * platform threads.
+ */
+public class ExecutionBenchmark {
+
+	static final String usage =
+		"Usage: java -cp Geneva.jar:libraries/* org.rsna.geneva.elements.ExecutionBenchmark"
+		+ " [-mode platform|virtual] [-registrations n] [-workers n] [-latency ms]";
+
+	static final int destinations = 4;
+
+	public static void main(String args[]) {
+		String mode = ProcessingEngine.PLATFORM;
+		int registrations = 1000;
+		int workers = 0;
+		long latency = 50;
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-mode")) mode = args[++i];
+				else if (args[i].equals("-registrations")) registrations = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-workers")) workers = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-latency")) latency = Long.parseLong(args[++i]);
+				else throw new Exception(args[i]);
+			}
+		}
+		catch (Exception ex) {
+			System.out.println(usage);
+			System.exit(2);
+		}
+		if (workers <= 0) workers = registrations;
+		try { run(mode, registrations, workers, latency); }
+		catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(2);
+		}
+		System.exit(0);
+	}
+
+	static void run(String mode, int registrations, int workers, final long latency) throws Exception {
+		ProcessingEngine engine = ProcessingEngine.getInstance();
+		engine.setJournaling(false);
+		engine.setExecutionMode(mode);
+
+		//Each destination is a separate Product class, so it has its own pool.
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		Product[] products = new Product[destinations];
+		Element rules = doc.createElement("workflow");
+		for (int i=0; i<destinations; i++) {
+			Element el = doc.createElement("bench" + i);
+			el.setAttribute("id", "bench" + i);
+			products[i] = new Simulated(el);
+			engine.setPoolSize(el.getTagName(), workers);
+			if (i > 0) {
+				Element rule = doc.createElement("rule");
+				rule.setAttribute("system", el.getTagName());
+				rule.setAttribute("step", "STEP");
+				rule.setAttribute("after", "bench" + (i-1) + ":STEP");
+				rules.appendChild(rule);
+			}
+		}
+		WorkflowRules workflowRules = new WorkflowRules(rules);
+		Element regElement = doc.createElement("registration");
+		Registration reg = new Registration(regElement);
+
+		final CountDownLatch done = new CountDownLatch(registrations);
+		Workflow.Listener listener =
+			new Workflow.Listener() {
+				public void workflowComplete(Workflow workflow) { done.countDown(); }
+			};
+		Runnable body =
+			new Runnable() {
+				public void run() {
+					try { Thread.sleep(latency); }
+					catch (InterruptedException ex) { Workflow.reportFailure("Interrupted"); }
+				}
+			};
+
+		long start = System.currentTimeMillis();
+		for (int k=0; k<registrations; k++) {
+			Workflow workflow = new Workflow(reg);
+			for (int i=0; i<destinations; i++) workflow.addStep(products[i], "STEP", null, body);
+			workflow.resolve(workflowRules);
+			workflow.addListener(listener);
+			engine.start(workflow);
+		}
+		done.await();
+		long elapsed = System.currentTimeMillis() - start;
+
+		System.out.println(
+			"mode=" + engine.getExecutionMode()
+			+ " registrations=" + registrations
+			+ " workers=" + workers
+			+ " latency=" + latency + "ms"
+			+ " time=" + elapsed + "ms"
+			+ " regs/s=" + (registrations * 1000L / Math.max(elapsed, 1))
+			+ " peakPlatformThreads=" + ManagementFactory.getThreadMXBean().getPeakThreadCount());
+	}
+
+	//A destination whose steps do nothing but wait.
+	static class Simulated extends Product {
+		public Simulated(Element el) {
+			super(el);
+			enabled = true;
+		}
+		void processRegistration(Registration reg) { }
+	}
+
+}
@@ -10,9 +10,11 @@ package org.rsna.geneva.elements;
 import java.util.*;
 import org.w3c.dom.Element;
 import org.rsna.geneva.main.Configuration;
+import org.rsna.geneva.misc.RateLimiter;
 import org.rsna.geneva.misc.Registration;
 import org.rsna.util.StringUtil;
 import org.rsna.geneva.misc.RegSysEvent;
+import org.rsna.geneva.misc.Workflow;
 import org.rsna.geneva.hl7.*;
 
 public class PIXMgr extends DataSystem {
@@ -26,6 +28,12 @@ public class PIXMgr extends DataSystem {
 		String connectionIntervalString = el.getAttribute("connectionInterval").trim();
 		try { this.connectionInterval = Integer.parseInt(connectionIntervalString); }
 		catch (Exception ex) { this.connectionInterval = 0; }
+
+		//The connection interval is the older way to throttle a system.
+		//It is used as the rate limit when no rate is specified.
+		if ((messagesPerSecond <= 0) && (connectionInterval > 0)) {
+			RateLimiter.setRate(id+":hl7", hl7URL, 1000.0 / connectionInterval);
+		}
 	}
 
 	public void appendDataRows(StringBuffer sb) {
@@ -33,46 +41,66 @@ public class PIXMgr extends DataSystem {
 		sb.append("<tr><td>HL7 Connection Interval (ms):</td><td>"+connectionInterval+"</td></tr>");
 	}
 
-	void processRegistration(Registration reg) {
-		super.processRegistration(reg);
-
-		Configuration config = Configuration.getInstance();
-
+	/**
+	 * Add the step for the patient identity feed with the global ID and,
+	 * if the system accepts local IDs, a separate step for each local ID,
+	 * scoped by its local assigning authority, so each feed is admitted
+	 * and retried on its own. When the Workflow is complete, a summary
+	 * event lists the local IDs which were sent.
+	 */
+	public void addSteps(Workflow workflow, final Registration reg) {
+		super.addSteps(workflow, reg);
 		if (acceptsITI8withLocalID) {
+			Configuration config = Configuration.getInstance();
+			final Hashtable<String,String> laaTable = new Hashtable<String,String>();
+			getLocalIDs(reg, config.getEHRSystems(), laaTable);
+			getLocalIDs(reg, config.getDCMSystems(), laaTable);
+			for (final String laa : laaTable.keySet()) {
+				final String localID = laaTable.get(laa);
+				workflow.addStep(this, "ITI8", laa,
+					new Runnable() {
+						public void run() { sendPatientIdFeedWithLocalID(reg, localID, laa); }
+					});
+			}
+			if (laaTable.size() > 0) {
+				workflow.addListener(
+					new Workflow.Listener() {
+						public void workflowComplete(Workflow workflow) { logSummary(workflow, laaTable); }
+					});
+			}
+		}
+	}
 
-			//Send the local IDs
-			Hashtable<String,String> laaTable = new Hashtable<String,String>();
-			sendLocalIDs(reg, config.getEHRSystems(), laaTable);
-			sendLocalIDs(reg, config.getDCMSystems(), laaTable);
-
-			//Log a summary event listing the
-			//localAssigningAuthorities
-			//for which localIDs were sent.
-			Enumeration<String> keys = laaTable.keys();
-			if (keys.hasMoreElements()) {
-				StringBuffer sb = new StringBuffer();
-				while (keys.hasMoreElements()) {
-					String key = keys.nextElement();
-					String localID = laaTable.get(key);
-					sb.append("<br>" + StringUtil.displayable(localID + ": "+key));
-				}
-				RegSysEvent event =
-					new RegSysEvent(
-							this,
-							RegSysEvent.STATUS_OK,
-							RegSysEvent.TYPE_HL7,
-							"Summary: Local IDs sent to "+type + " ["+id+"]" +
-							"<br>Global Assigning Authority: " +
-							globalAssigningAuthority +
-							sb.toString());
-				config.getEventLog().append(event);
+	//Log a summary event listing the localAssigningAuthorities
+	//for which localIDs were sent in a Workflow.
+	private void logSummary(Workflow workflow, Hashtable<String,String> laaTable) {
+		StringBuffer sb = new StringBuffer();
+		Enumeration<String> keys = laaTable.keys();
+		while (keys.hasMoreElements()) {
+			String key = keys.nextElement();
+			Workflow.Step step = workflow.getStep(id + ":ITI8:" + key);
+			if ((step != null) && (step.getAttempts() > 0)) {
+				String localID = laaTable.get(key);
+				sb.append("<br>" + StringUtil.displayable(localID + ": "+key));
 			}
 		}
+		if (sb.length() > 0) {
+			RegSysEvent event =
+				new RegSysEvent(
+						this,
+						RegSysEvent.STATUS_OK,
+						RegSysEvent.TYPE_HL7,
+						"Summary: Local IDs sent to "+type + " ["+id+"]" +
+						"<br>Global Assigning Authority: " +
+						globalAssigningAuthority +
+						sb.toString());
+			Configuration.getInstance().getEventLog().append(event);
+		}
 	}
 
-	//Send the LocalIDs of all EHRSystems that transmit them.
-	//This method sends at most one localID for each local assigning authority.
-	private void sendLocalIDs(
+	//Get the LocalIDs of all EHRSystems that transmit them.
+	//This method gets at most one localID for each local assigning authority.
+	private void getLocalIDs(
 						Registration reg,
 						EHRSystem[] ehrSystems,
 						Hashtable<String,String> laaTable) {
@@ -90,26 +118,10 @@ public class PIXMgr extends DataSystem {
 
 			if (ehrsystem.enabled && ehrsystem.sendsITI8withLocalID &&
 				ehrsystem.globalAssigningAuthority.equals(globalAssigningAuthority) &&
-				!laaTable.containsKey(sourceLocalAssigningAuthority)) {
-
-				if (connectionInterval > 0) {
-					try { Thread.sleep(connectionInterval); }
-					catch (Exception ignore) { }
-				}
-
-                sendPatientIdFeedWithLocalID( reg, localID,
-                                  sourceLocalAssigningAuthority);
-
-                //Put it in the table so we don't send this local ID again.
-                laaTable.put(sourceLocalAssigningAuthority, localID);
-                /*
-				if (sendITI8WithLocalID(new HL7ITI8(), fields, reg,
-							localID, sourceLocalAssigningAuthority )) {
-
-					//Put it in the table so we don't send this local ID again.
-					laaTable.put(sourceLocalAssigningAuthority, localID);
-				}
-                */
+				!laaTable.containsKey(sourceLocalAssigningAuthority) &&
+				(localID != null)) {
+
+				laaTable.put(sourceLocalAssigningAuthority, localID);
 			}
 		}
 	}
@@ -139,6 +151,7 @@ public class PIXMgr extends DataSystem {
                 StringUtil.displayable(pif.toString()) +
                 "Response: "+StringUtil.displayable(response.getStatusString()));
         config.getEventLog().append(event);
+        Workflow.reportStatus(event.status, pif.getName()+" to "+id);
     }
 
 	public String getType() {
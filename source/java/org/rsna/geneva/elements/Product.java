@@ -7,8 +7,12 @@
 
 package org.rsna.geneva.elements;
 
+import org.apache.log4j.Logger;
 import org.rsna.geneva.elements.ConfigElement;
+import org.rsna.geneva.misc.ProcessingEngine;
+import org.rsna.geneva.misc.RateLimiter;
 import org.rsna.geneva.misc.Registration;
+import org.rsna.geneva.misc.Workflow;
 import org.w3c.dom.Element;
 
 /**
@@ -16,48 +20,99 @@ import org.w3c.dom.Element;
  */
 public abstract class Product extends ConfigElement {
 
-	public int startupDelay;
+	private static final Logger logger = Logger.getLogger(Product.class);
 
 	public Product(Element el) {
 		super(el);
-		String startupDelayString = el.getAttribute("startupDelay").trim();
-		try { this.startupDelay = Integer.parseInt(startupDelayString); }
-		catch (Exception ex) { this.startupDelay = 0; }
+		warnIfObsolete("startupDelay");
 	}
 
-	public void process(Registration reg, int priority) {
-		ProcessingThread processor = new ProcessingThread(reg, priority);
-		processor.start();
+	/**
+	 * Log a warning if the element has an attribute which is no
+	 * longer supported. Delays between systems were replaced by
+	 * the rules in the workflow child of the config element.
+	 * @param name the name of the attribute.
+	 */
+	protected void warnIfObsolete(String name) {
+		if (el.hasAttribute(name)) {
+			logger.warn("The "+name+" attribute of "+el.getTagName()+" "+id
+						+" is no longer supported and is ignored; use a workflow rule instead");
+		}
 	}
 
-	class ProcessingThread extends Thread {
-		Registration reg;
-		public ProcessingThread(Registration reg, int priority) {
-			super();
-			this.reg = reg;
-			this.setPriority(priority);
-		}
-		public void run() {
-			if (enabled) {
-				if (startupDelay > 0) {
-					try { sleep(startupDelay); }
-					catch (Exception ignore) { }
-				}
-				processRegistration(reg);
-			}
-		}
+	/**
+	 * Process a registration by this system alone. Nothing is
+	 * done if the system is disabled.
+	 * @return the running Workflow, which serves as the handle for
+	 * the job, or null if the system is disabled.
+	 */
+	public Workflow process(Registration reg) {
+		if (!enabled) return null;
+		return ProcessingEngine.getInstance().process(reg, new Product[] { this });
 	}
 
-	abstract void processRegistration(Registration reg);
+	/**
+	 * Add the steps for processing a registration by this system to a
+	 * Workflow. The default is a single step which does all the processing.
+	 * Subclasses that send several transactions override this method to
+	 * add a step for each one so they can be ordered independently.
+	 */
+	public void addSteps(Workflow workflow, final Registration reg) {
+		workflow.addStep(this, getStepName(), null,
+			new Runnable() {
+				public void run() { processRegistration(reg); }
+			});
+	}
 
-	public Element getXML() {
-		try {
-			Element e = super.getXML();
-			e.setAttribute("startupDelay", Integer.toString(startupDelay));
-			return e;
-		}
-		catch (Exception ex) { return null; }
+	/**
+	 * Get the name of the single step used by the default addSteps method.
+	 */
+	public String getStepName() {
+		return el.getTagName().toUpperCase();
 	}
 
-}
+	/**
+	 * Get the URLs to which this system's transactions are sent.
+	 * Each URL has its own CircuitBreaker.
+	 */
+	public String[] getURLs() {
+		return new String[0];
+	}
+
+	/**
+	 * Get the RateLimiter which admits a step of this system.
+	 * @param step the name of the step.
+	 * @return the limiter for the step's destination, or null
+	 * if the destination is not limited.
+	 */
+	public RateLimiter getRateLimiter(String step) {
+		return null;
+	}
 
+	/**
+	 * Get the names of the steps which share state with a step, and
+	 * which must therefore be run again with it when it is replayed
+	 * in a new Workflow. The default is the step alone.
+	 * @param name the name of the step.
+	 * @param scope the scope of the step, or null.
+	 */
+	public String[] getStepGroup(String name, String scope) {
+		return new String[] { name };
+	}
+
+	//Get a rate attribute, returning zero if it is missing or invalid.
+	static double getRate(Element el, String name) {
+		try { return Math.max(Double.parseDouble(el.getAttribute(name).trim()), 0.0); }
+		catch (Exception ex) { return 0.0; }
+	}
+
+	//Get the display string for a rate.
+	static String getRateString(double rate) {
+		if (rate <= 0) return "unlimited";
+		if (rate == Math.floor(rate)) return Long.toString((long)rate);
+		return Double.toString(rate);
+	}
+
+	abstract void processRegistration(Registration reg);
+
+}
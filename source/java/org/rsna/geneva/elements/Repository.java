@@ -38,8 +38,11 @@ import org.apache.fop.apps.MimeConstants;
 import org.apache.fop.apps.PageSequenceResults;
 
 import org.rsna.geneva.main.Configuration;
+import org.rsna.geneva.misc.CircuitBreaker;
+import org.rsna.geneva.misc.RateLimiter;
 import org.rsna.geneva.misc.Registration;
 import org.rsna.geneva.misc.RegSysEvent;
+import org.rsna.geneva.misc.Workflow;
 import org.rsna.util.XmlUtil;
 import org.rsna.util.StringUtil;
 import org.rsna.util.FileUtil;
@@ -70,10 +73,11 @@ public class Repository extends Product {
 	public String soapURL;
 	public boolean sendsSOAP;
 	public String soapVersion;
-	public int docsetDelay = 0;
+	public double messagesPerSecond;
 
 	public Repository(Element el) {
 		super(el);
+		warnIfObsolete("docsetDelay");
 		this.enabled = !el.getAttribute("enabled").trim().equals("no");
 		this.globalAssigningAuthority = el.getAttribute("globalAssigningAuthority").trim();
 		this.globalAssigningAuthority = getGlobalAssigningAuthority();
@@ -83,8 +87,8 @@ public class Repository extends Product {
 		this.sendsSOAP = !el.getAttribute("sendsSOAP").trim().equals("no");
 		this.soapVersion = el.getAttribute("soapVersion").trim();
 		if (this.soapVersion.equals("")) this.soapVersion = "SOAP_1_2";
-		try { this.docsetDelay = Integer.parseInt(el.getAttribute("docsetDelay").trim()); }
-		catch (Exception ex) { this.docsetDelay = 0; }
+		this.messagesPerSecond = getRate(el, "messagesPerSecond");
+		RateLimiter.setRate(id+":soap", soapURL, messagesPerSecond);
 	}
 
 	public String getGlobalAssigningAuthority() {
@@ -107,22 +111,32 @@ public class Repository extends Product {
 		sb.append("</td></tr>");
 	}
 
+	public String[] getURLs() {
+		return new String[] { soapURL };
+	}
+
+	public RateLimiter getRateLimiter(String step) {
+		return RateLimiter.get(soapURL);
+	}
+
 	public void appendDataRows(StringBuffer sb) {
 		sb.append("<tr><td width=\"165\">enabled:</td><td>"+(enabled?"yes":"no")+"</td></tr>");
 		sb.append("<tr><td>Global Assigning Authority:</td><td>"+globalAssigningAuthority+"</td></tr>");
 		sb.append("<tr><td>SOAP URL:</td><td>"+soapURL+"</td></tr>");
 		sb.append("<tr><td>Sends SOAP Message:</td><td>"+(sendsSOAP?"yes":"no")+"</td></tr>");
-		sb.append("<tr><td>Thread Startup Delay (ms):</td><td>"+startupDelay+"</td></tr>");
-		sb.append("<tr><td>Docset Delay (ms):</td><td>"+docsetDelay+"</td></tr>");
+		sb.append("<tr><td>Messages per Second:</td><td>"+getRateString(messagesPerSecond)+"</td></tr>");
+	}
+
+	/**
+	 * The submission of the docsets is the single step for this system.
+	 */
+	public String getStepName() {
+		return "XDS";
 	}
 
 	void processRegistration(Registration reg) {
 		//Process the DocSets for this Repository
 		DocSet[] docSets = Configuration.getInstance().getDocSets();
-		if ((docSets.length > 0) && (docsetDelay > 0)) {
-			try { Thread.sleep(docsetDelay); }
-			catch (Exception ignore) { }
-		}
 		for (int i=0; i<docSets.length; i++) {
 			if (docSets[i].enabled && docSets[i].repositoryID.equals(id)) {
 				processDocSet(reg,docSets[i]);
@@ -363,7 +377,7 @@ public class Repository extends Product {
 					new URI(soapURL));
 				System.out.println("Submitting document " + soapURL);
 				XDSResponseType response = null;
-				response = source.submit(txnData);
+				response = submit(source, txnData);
 				System.out.println("Doc submitted, check for errors");
 				responseText = "transmission completed";
 
@@ -411,6 +425,7 @@ public class Repository extends Product {
 							+"SOAP Response: "+StringUtil.displayable(responseText)
 					);
 			config.getEventLog().append(event);
+			Workflow.reportStatus(event.status, "XDS submission of DocSet "+docSet.id+" to "+id);
 			// - smmif (isOK(responseText)) FileUtil.deleteAll(temp);
 
 			//At this point, we are done. delete the temp directory.
@@ -426,13 +441,15 @@ public class Repository extends Product {
 			RegSysEvent event =
 				new RegSysEvent(
 						this,
-						RegSysEvent.STATUS_ERROR,
+						((ex instanceof CircuitBreaker.OpenException)
+							? RegSysEvent.STATUS_CIRCUIT_OPEN : RegSysEvent.STATUS_ERROR),
 						RegSysEvent.TYPE_SOAP,
 						"Unable to process DocSet "+docSet.id+
 						"<br>"+StringUtil.displayable(ex.getMessage())+
 						"<br>"+StringUtil.displayable(topElement)
 					);
 			config.getEventLog().append(event);
+			Workflow.reportFailure("XDS submission of DocSet "+docSet.id+" to "+id+": "+ex.getMessage());
 			//logger.warn("Unable to process DocSet "+docSet.id,ex);
 		}
 	}
@@ -557,7 +574,7 @@ public class Repository extends Product {
 				new URI(soapURL));
 			System.out.println("Submitting document " + soapURL);
 			XDSResponseType response = null;
-			response = source.submit(txnData);
+			response = submit(source, txnData);
 			System.out.println("Doc submitted, check for errors");
 			responseText = "XDS.b transmission completed";
 			if (response == null) {
@@ -588,6 +605,7 @@ public class Repository extends Product {
 							+"SOAP Response: "+StringUtil.displayable(responseText)
 					);
 			config.getEventLog().append(event);
+			Workflow.reportStatus(event.status, "XDS.b submission of "+documentTitle+" to "+id);
 
 			System.out.println("Done");
 
@@ -601,17 +619,37 @@ public class Repository extends Product {
 			RegSysEvent event =
 				new RegSysEvent(
 						this,
-						RegSysEvent.STATUS_ERROR,
+						((ex instanceof CircuitBreaker.OpenException)
+							? RegSysEvent.STATUS_CIRCUIT_OPEN : RegSysEvent.STATUS_ERROR),
 						RegSysEvent.TYPE_SOAP,
 						"Unable to process XDSb submit request for " + reg.getFullName() +
 						"<br>"+StringUtil.displayable(ex.getMessage())+
 						"<br>"+StringUtil.displayable(topElement)
 					);
 			config.getEventLog().append(event);
+			Workflow.reportFailure("XDS.b submission of "+documentTitle+" to "+id+": "+ex.getMessage());
 			//logger.warn("Unable to process DocSet "+docSet.id,ex);
 	    }
 	}
 
+	//Submit a transaction to the repository through its circuit breaker
+	//and count it against the repository's rate limit.
+	private XDSResponseType submit(org.openhealthtools.ihe.xds.source.B_Source source,
+								   SubmitTransactionData txnData) throws Exception {
+		CircuitBreaker breaker = CircuitBreaker.getInstance(soapURL);
+		breaker.check();
+		RateLimiter.take(soapURL, 1);
+		try {
+			XDSResponseType response = source.submit(txnData);
+			breaker.recordSuccess();
+			return response;
+		}
+		catch (Exception ex) {
+			breaker.recordFailure();
+			throw ex;
+		}
+	}
+
 	private synchronized File getTempDir(File dir) throws Exception {
 		File temp = File.createTempFile("temp-","",dir);
 		temp.delete();
@@ -679,7 +717,7 @@ public class Repository extends Product {
 			e.setAttribute("soapURL", soapURL);
 			e.setAttribute("sendsSOAP", yesNo(sendsSOAP));
 			e.setAttribute("soapVersion", soapVersion);
-			e.setAttribute("docsetDelay", Integer.toString(docsetDelay));
+			if (messagesPerSecond > 0) e.setAttribute("messagesPerSecond", getRateString(messagesPerSecond));
 			return e;
 		}
 		catch (Exception ex) { return null; }
@@ -691,7 +729,6 @@ public class Repository extends Product {
 			e.setAttribute("type", "Repository");
 			e.setAttribute("soapVersion", "SOAP_1_2");
 			e.setAttribute("sendsSOAP", "yes");
-			e.setAttribute("docsetDelay", "10000");
 			Configuration config = Configuration.getInstance();
 			e.setAttribute("globalAssigningAuthority", config.getGlobalAssigningAuthority());
 			e.setAttribute("globalAssigningAuthorityOID", config.getGlobalAssigningAuthorityOID());
@@ -13,6 +13,7 @@ import org.w3c.dom.Node;
 import java.io.File;
 import java.net.*;
 import java.util.*;
+import org.rsna.geneva.misc.StudyManifest;
 
 public class Study extends ConfigElement {
 
@@ -79,7 +80,7 @@ public class Study extends ConfigElement {
 		sb.append("<tr><td>Directory:</td><td>"+directory+"</td></tr>");
 		sb.append("<tr><td>Number of files:</td>");
 		if (directoryFile.exists())
-			sb.append("<td>"+getFileCount(directoryFile)+"</td>");
+			sb.append("<td>"+StudyManifest.getInstance(directoryFile).size()+"</td>");
 		else
 			sb.append("<td><font color=\"red\">Directory does not exist</font></td>");
 		sb.append("</tr>");
@@ -105,16 +106,6 @@ public class Study extends ConfigElement {
 		sb.append("</td></tr>");
 	}
 
-	private int getFileCount(File file) {
-		if (file.isDirectory()) {
-			File[] files = file.listFiles();
-			int count = 0;
-			for (int i=0; i<files.length; i++) count += getFileCount(files[i]);
-			return count;
-		}
-		return 1;
-	}
-
 	public String getType() {
 		return type;
 	}
@@ -0,0 +1,420 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.hl7;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+
+/**
+ * An archive of the HL7 messages sent by the program and their responses.
+ * Messages are queued by the sending threads and written by a single writer
+ * thread, which appends each batch of waiting messages to the current
+ * segment file (hl7-N.dat) and starts a new segment when the current one
+ * reaches the maximum size. For each message, one line is appended to
+ * the index file (index.txt):
+ * <pre>
+ *   id  time  segment  offset  messageLength  responseLength  status  name  controlID  patientID  destination
+ * </pre>
+ * The id of a message is its sequence number in the archive, which is
+ * saved in its index line, so it does not change when the index is
+ * reloaded. The index of the most recent messages is kept in memory,
+ * keyed by id, patient ID, message control ID, and destination, so they
+ * can be found and read without scanning the files. Older messages can
+ * still be read by id, from the index file.
+ */
+public class HL7Archive extends Thread {
+
+	static final Logger logger = Logger.getLogger(HL7Archive.class);
+
+	public static final File archiveDir = new File("archive");
+	public static final String indexName = "index.txt";
+	static final long maxSegmentSize = 64L * 1024 * 1024;
+	static final int queueSize = 10000;
+	static final int maxIndexed = 100000;
+
+	static HL7Archive archive = null;
+
+	boolean enabled = false;
+	boolean opened = false;
+	File dir;
+	LinkedBlockingQueue<Record> queue;
+	LinkedList<Entry> entries;
+	HashMap<Integer,Entry> byID;
+	HashMap<String,LinkedList<Entry>> byPatient;
+	HashMap<String,LinkedList<Entry>> byControlID;
+	HashMap<String,LinkedList<Entry>> byDestination;
+	int nextID = 0;
+	int size = 0;
+	int segment = 0;
+	long segmentSize = 0;
+	long dropped = 0;
+
+	/**
+	 * Get the singleton instance of the archive.
+	 */
+	public static synchronized HL7Archive getInstance() {
+		if (archive == null) archive = new HL7Archive(archiveDir);
+		return archive;
+	}
+
+	protected HL7Archive(File dir) {
+		super("hl7-archive-writer");
+		setDaemon(true);
+		this.dir = dir;
+		queue = new LinkedBlockingQueue<Record>(queueSize);
+		entries = new LinkedList<Entry>();
+		byID = new HashMap<Integer,Entry>();
+		byPatient = new HashMap<String,LinkedList<Entry>>();
+		byControlID = new HashMap<String,LinkedList<Entry>>();
+		byDestination = new HashMap<String,LinkedList<Entry>>();
+	}
+
+	/**
+	 * Enable or disable archiving. When the archive is first enabled,
+	 * its index is loaded and the writer thread is started.
+	 */
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (enabled && !opened) {
+			opened = true;
+			dir.mkdirs();
+			loadIndex();
+			start();
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Queue a message and its response for archiving. If the writer has
+	 * fallen behind and the queue is full, the message is not archived.
+	 * @param message the message that was sent.
+	 * @param destination the URL to which it was sent.
+	 * @param response the bytes of the response, or of the error text.
+	 * @param ok true if the message was accepted.
+	 */
+	public void add(HL7Message message, String destination, byte[] response, boolean ok) {
+		if (!enabled) return;
+		Record record = new Record();
+		record.time = System.currentTimeMillis();
+		record.name = message.name;
+		record.controlID = message.getControlID();
+		record.patientID = getID(message.getPatientID());
+		record.destination = destination;
+		record.message = message.getBytes();
+		record.response = response;
+		record.ok = ok;
+		if (!queue.offer(record)) {
+			if ((dropped++ % 1000) == 0) logger.warn("HL7 archive queue full; "+dropped+" messages not archived");
+		}
+	}
+
+	//Get the ID component of a CX field (e.g., PID-3).
+	private static String getID(String cx) {
+		if (cx == null) return null;
+		int k = cx.indexOf('^');
+		return ((k >= 0) ? cx.substring(0, k) : cx).trim();
+	}
+
+	/**
+	 * Find archived messages among the most recent ones, whose index
+	 * is in memory. Criteria which are null or blank are ignored.
+	 * @param patientID the patient ID (the first component of PID-3).
+	 * @param controlID the message control ID (MSH-10).
+	 * @param destination the URL to which the message was sent.
+	 * @param limit the maximum number of entries to return.
+	 * @return the matching entries, the most recent first.
+	 */
+	public synchronized List<Entry> find(String patientID, String controlID, String destination, int limit) {
+		LinkedList<Entry> candidates = entries;
+		candidates = smaller(candidates, byPatient, patientID);
+		candidates = smaller(candidates, byControlID, controlID);
+		candidates = smaller(candidates, byDestination, destination);
+		LinkedList<Entry> list = new LinkedList<Entry>();
+		Iterator<Entry> it = candidates.descendingIterator();
+		while (it.hasNext() && (list.size() < limit)) {
+			Entry entry = it.next();
+			if (matches(entry.patientID, patientID)
+					&& matches(entry.controlID, controlID)
+						&& matches(entry.destination, destination)) list.add(entry);
+		}
+		return list;
+	}
+
+	private LinkedList<Entry> smaller(LinkedList<Entry> list, HashMap<String,LinkedList<Entry>> map, String key) {
+		if (isBlank(key)) return list;
+		LinkedList<Entry> keyed = map.get(key);
+		if (keyed == null) return new LinkedList<Entry>();
+		return (keyed.size() < list.size()) ? keyed : list;
+	}
+
+	private boolean matches(String value, String key) {
+		return isBlank(key) || key.equals(value);
+	}
+
+	private static boolean isBlank(String s) {
+		return (s == null) || s.trim().equals("");
+	}
+
+	/**
+	 * Get the index entry for an archived message. The entries of
+	 * older messages which are not in memory are read from the index file.
+	 * @return the entry, or null if there is no message with the id.
+	 */
+	public Entry getEntry(int id) {
+		synchronized (this) {
+			Entry entry = byID.get(id);
+			if ((entry != null) || (id < 0) || (id >= nextID)) return entry;
+			if (!entries.isEmpty() && (id > entries.getFirst().id)) return null;
+		}
+		return readEntry(id);
+	}
+
+	/**
+	 * Get the number of messages in the archive.
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	/**
+	 * Read the message or response of an archived message.
+	 * @param entry the index entry of the message.
+	 * @param response true to read the response; false to read the message.
+	 */
+	public byte[] read(Entry entry, boolean response) throws IOException {
+		byte[] bytes = new byte[response ? entry.responseLength : entry.messageLength];
+		long offset = entry.offset + (response ? entry.messageLength + 1 : 0);
+		RandomAccessFile raf = new RandomAccessFile(getSegmentFile(entry.segment), "r");
+		try {
+			raf.seek(offset);
+			raf.readFully(bytes);
+		}
+		finally { raf.close(); }
+		return bytes;
+	}
+
+	private File getSegmentFile(int n) {
+		return new File(dir, "hl7-" + n + ".dat");
+	}
+
+	//Find the entry for an id in the index file.
+	private Entry readEntry(int id) {
+		File file = new File(dir, indexName);
+		if (!file.exists()) return null;
+		String prefix = id + "\t";
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(
+						new InputStreamReader(
+							new FileInputStream(file), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(prefix)) return new Entry(line);
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to read the HL7 archive index", ex); }
+		finally {
+			try { if (reader != null) reader.close(); }
+			catch (Exception ignore) { }
+		}
+		return null;
+	}
+
+	//Load the index and find the current segment.
+	private synchronized void loadIndex() {
+		File file = new File(dir, indexName);
+		if (file.exists()) {
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(
+							new InputStreamReader(
+								new FileInputStream(file), "UTF-8"));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					try { index(new Entry(line)); }
+					catch (Exception skip) { logger.warn("Unreadable archive index entry skipped"); }
+				}
+			}
+			catch (Exception ex) { logger.warn("Unable to read the HL7 archive index", ex); }
+			finally {
+				try { if (reader != null) reader.close(); }
+				catch (Exception ignore) { }
+			}
+		}
+		if (entries.size() > 0) segment = entries.getLast().segment;
+		segmentSize = getSegmentFile(segment).length();
+		logger.info("HL7 archive: "+size+" messages");
+	}
+
+	//Add an entry to the in-memory index, removing the
+	//oldest entry if the index is full. The entries are
+	//added in the order of their ids.
+	private void index(Entry entry) {
+		nextID = Math.max(nextID, entry.id + 1);
+		size++;
+		entries.add(entry);
+		byID.put(entry.id, entry);
+		put(byPatient, entry.patientID, entry);
+		put(byControlID, entry.controlID, entry);
+		put(byDestination, entry.destination, entry);
+		if (entries.size() > maxIndexed) {
+			Entry oldest = entries.removeFirst();
+			byID.remove(oldest.id);
+			removeFirst(byPatient, oldest.patientID);
+			removeFirst(byControlID, oldest.controlID);
+			removeFirst(byDestination, oldest.destination);
+		}
+	}
+
+	private void put(HashMap<String,LinkedList<Entry>> map, String key, Entry entry) {
+		if (isBlank(key)) return;
+		LinkedList<Entry> list = map.get(key);
+		if (list == null) {
+			list = new LinkedList<Entry>();
+			map.put(key, list);
+		}
+		list.add(entry);
+	}
+
+	//Remove the oldest entry for a key, which is the first in its list.
+	private void removeFirst(HashMap<String,LinkedList<Entry>> map, String key) {
+		if (isBlank(key)) return;
+		LinkedList<Entry> list = map.get(key);
+		if (list == null) return;
+		list.removeFirst();
+		if (list.isEmpty()) map.remove(key);
+	}
+
+	/**
+	 * The writer thread. Each pass appends all the messages that are
+	 * waiting to the current segment and their entries to the index.
+	 */
+	public void run() {
+		LinkedList<Record> batch = new LinkedList<Record>();
+		while (true) {
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				write(batch);
+			}
+			catch (InterruptedException ex) { return; }
+			catch (Exception ex) { logger.warn("Unable to write the HL7 archive", ex); }
+			batch.clear();
+		}
+	}
+
+	private void write(List<Record> batch) throws IOException {
+		if (segmentSize >= maxSegmentSize) {
+			segment++;
+			segmentSize = 0;
+		}
+		LinkedList<Entry> written = new LinkedList<Entry>();
+		OutputStream data = new BufferedOutputStream(new FileOutputStream(getSegmentFile(segment), true), 65536);
+		try {
+			for (Record record : batch) {
+				Entry entry = new Entry(record, segment, segmentSize);
+				data.write(record.message);
+				data.write('\n');
+				data.write(record.response);
+				data.write('\n');
+				segmentSize += record.message.length + record.response.length + 2;
+				written.add(entry);
+			}
+		}
+		finally { data.close(); }
+
+		StringBuffer sb = new StringBuffer();
+		synchronized (this) {
+			for (Entry entry : written) {
+				entry.id = nextID;
+				index(entry);
+				sb.append(entry.toString());
+				sb.append('\n');
+			}
+		}
+		OutputStream index = new FileOutputStream(new File(dir, indexName), true);
+		try { index.write(sb.toString().getBytes("UTF-8")); }
+		finally { index.close(); }
+	}
+
+	//A message waiting to be written.
+	static class Record {
+		long time;
+		String name;
+		String controlID;
+		String patientID;
+		String destination;
+		byte[] message;
+		byte[] response;
+		boolean ok;
+	}
+
+	/**
+	 * The index entry of one archived message.
+	 */
+	public static class Entry {
+		public int id;
+		public long time;
+		public int segment;
+		public long offset;
+		public int messageLength;
+		public int responseLength;
+		public boolean ok;
+		public String name;
+		public String controlID;
+		public String patientID;
+		public String destination;
+
+		Entry(Record record, int segment, long offset) {
+			this.time = record.time;
+			this.segment = segment;
+			this.offset = offset;
+			this.messageLength = record.message.length;
+			this.responseLength = record.response.length;
+			this.ok = record.ok;
+			this.name = record.name;
+			this.controlID = record.controlID;
+			this.patientID = record.patientID;
+			this.destination = record.destination;
+		}
+
+		//Parse an index line.
+		Entry(String line) {
+			String[] f = line.split("\t", -1);
+			id = Integer.parseInt(f[0]);
+			time = Long.parseLong(f[1]);
+			segment = Integer.parseInt(f[2]);
+			offset = Long.parseLong(f[3]);
+			messageLength = Integer.parseInt(f[4]);
+			responseLength = Integer.parseInt(f[5]);
+			ok = f[6].equals("ok");
+			name = f[7];
+			controlID = f[8];
+			patientID = f[9];
+			destination = f[10];
+		}
+
+		public String toString() {
+			return id + "\t" + time + "\t" + segment + "\t" + offset + "\t"
+					+ messageLength + "\t" + responseLength + "\t" + (ok ? "ok" : "error") + "\t"
+					+ clean(name) + "\t" + clean(controlID) + "\t"
+					+ clean(patientID) + "\t" + clean(destination);
+		}
+
+		private static String clean(String s) {
+			if (s == null) return "";
+			return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+		}
+	}
+
+}
@@ -10,12 +10,17 @@ package org.rsna.geneva.hl7;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+import org.rsna.geneva.misc.CircuitBreaker;
+import org.rsna.geneva.misc.RateLimiter;
 import org.rsna.geneva.misc.RegSysEvent;
 
 public class HL7Message {
 
 	public String name;
 	LinkedList<HL7Segment> segmentList;
+	byte[] encoded = null;
 
 	static final char char11 = '\u000B';
 	static final char char13 = '\r';
@@ -31,6 +36,13 @@ public class HL7Message {
 
 	public void addSegment(HL7Segment segment) {
 		segmentList.add(segment);
+		segment.message = this;
+		changed();
+	}
+
+	//Discard the encoded message when a segment changes.
+	void changed() {
+		encoded = null;
 	}
 
 	public HL7Segment getSegment(String name) {
@@ -61,93 +73,83 @@ public class HL7Message {
 	}
 
 	public String toString() {
-		StringBuffer sb = new StringBuffer();
-		ListIterator<HL7Segment> lit = segmentList.listIterator();
-		while (lit.hasNext()) sb.append(lit.next().toString());
-		return sb.toString();
+		byte[] bytes = getBytes();
+		return new String(bytes, 1, bytes.length - 3);
 	}
 
-	static int fileNumber = 0;
-	private synchronized void saveMessage() {
-		File messages = new File("messages");
-		int n = ++fileNumber;
-		messages.mkdirs();
-		File file = new File(messages,"HL7-"+n+"-"+name+".txt");
-		try {
-			byte[] bytes = (char11 + toString() + char28 + char13).getBytes();
-			FileOutputStream fos = new FileOutputStream(file);
-			fos.write(bytes);
-			fos.flush();
-			fos.close();
+	/**
+	 * Get the message encoded for transmission, including the MLLP
+	 * framing characters. The encoded message is kept until a segment
+	 * is changed, so the text for the event log and the archive is
+	 * made from the same bytes that are sent.
+	 */
+	public synchronized byte[] getBytes() {
+		if (encoded == null) {
+			int n = 3;
+			for (HL7Segment segment : segmentList) n += segment.getEncodedLength();
+			byte[] bytes = new byte[n];
+			int pos = 0;
+			bytes[pos++] = (byte)char11;
+			for (HL7Segment segment : segmentList) pos = segment.encode(bytes, pos);
+			bytes[pos++] = (byte)char28;
+			bytes[pos++] = (byte)char13;
+			encoded = bytes;
 		}
-		catch (Exception tooBad) { }
+		return encoded;
 	}
 
 	public String send(String urlString, int timeout) {
-		String response = null;
-		try {
-			byte[] bytes = (char11 + toString() + char28 + char13).getBytes();
-			URL url = new URL(urlString);
-			Socket socket = new Socket();
-			int to = (timeout>0) ? timeout : 5000;
-			socket.setSoTimeout(to);
-			InetSocketAddress isa = new InetSocketAddress(url.getHost(),url.getPort());
-			socket.connect(isa,to);
-
-			//Get both streams
-			InputStream in = socket.getInputStream();
-			OutputStream out = socket.getOutputStream();
-
-			//Write the message
-			out.write(bytes);
-			out.flush();
-
-			//Get the response
-			response = getResponse(in);
-
-			out.close();
-			socket.close();
-			return response;
-		}
-		catch (Exception ex) {
-			return "Error: " + ex.getMessage();
-		}
+		try { return sendAsync(urlString, timeout).get(); }
+		catch (Exception ex) { return "Error: " + ex.getMessage(); }
 	}
 
-	public String getResponse(InputStream in) throws Exception {
-		BufferedReader br = new BufferedReader( new InputStreamReader( in ) );
-		StringBuffer sb = new StringBuffer();
-		try {
-			char lastChar = 'x';
-			boolean done = false;
-			int codepoint;
-			while (!done && ((codepoint = br.read()) != -1)) {
-				char[] chars = Character.toChars(codepoint);
-				for (int i=0; i<chars.length; i++) {
-					if (!Character.isISOControl(chars[i]))
-						sb.append(chars[i]);
-					else
-						sb.append(' ');
-					if ((chars[i] == char13) && (lastChar == char28))
-						done = true;
-					lastChar = chars[i];
-				}
-			}
-			br.close();
-			return sb.toString();
-		}
-		catch (Exception ex) {
-			//To handle systems which don't send a complete response,
-			//don't throw an exception if the amount of text we received
-			//before the error (typically a read timeout) indicates success.
-			String response = sb.toString().trim();
-			if (isOK(response)) return response;
-
-			//Whatever it was, it wasn't a success response, so throw
-			//an exception so we can see the error.
-			//ex.printStackTrace();
-			throw new Exception(ex.getMessage() + (response.equals("") ? "" : "\r"+response));
+	/**
+	 * Send the message without waiting for the response. Callbacks added
+	 * to the returned future run on the HL7 I/O thread unless they are
+	 * added with one of the async methods, so they must not block.
+	 * @param urlString the URL of the destination.
+	 * @param timeout the connect and response timeout (ms), or zero for the default.
+	 * @return a future which is completed with the response, or with the
+	 * text of the error (starting with "Error:") if the exchange failed.
+	 */
+	public CompletableFuture<String> sendAsync(final String urlString, int timeout) {
+		final CircuitBreaker breaker = CircuitBreaker.getInstance(urlString);
+		if (!breaker.allowRequest()) {
+			return CompletableFuture.completedFuture(CircuitBreaker.OPEN_RESPONSE + " for " + urlString);
 		}
+		RateLimiter.take(urlString, 1);
+		byte[] bytes = getBytes();
+		final HL7Archive archive = HL7Archive.getInstance();
+		int to = (timeout>0) ? timeout : 5000;
+		return MLLPConnectionPool.sendAsync(urlString, bytes, getControlID(), getPatientID(), to).handle(
+			new BiFunction<MLLPFrame,Throwable,String>() {
+				public String apply(MLLPFrame response, Throwable error) {
+					if (error == null) {
+						breaker.recordSuccess();
+						archive.add(HL7Message.this, urlString, response.getBytes(), response.isOK());
+						return response.toString();
+					}
+					//A system which accepts the connection but fails to
+					//respond in time is as unavailable as one that refuses it.
+					breaker.recordFailure();
+					if ((error instanceof CompletionException) && (error.getCause() != null)) error = error.getCause();
+					String text = "Error: " + error.getMessage();
+					archive.add(HL7Message.this, urlString, text.getBytes(), false);
+					return text;
+				}
+			});
+	}
+
+	//Get the message control ID (MSH-10), which identifies the response to a pipelined message.
+	String getControlID() {
+		HL7Segment msh = getSegment("MSH");
+		return (msh != null) ? msh.getField(10) : null;
+	}
+
+	//Get the patient ID (PID-3), which keeps the pipelined messages for a patient in order.
+	String getPatientID() {
+		HL7Segment pid = getSegment("PID");
+		return (pid != null) ? pid.getField(3) : null;
 	}
 
 	public static boolean isOK(String response) {
@@ -156,6 +158,8 @@ public class HL7Message {
 	}
 
 	public static int toStatus(String response) {
+		if ((response != null) && response.startsWith(CircuitBreaker.OPEN_RESPONSE))
+			return RegSysEvent.STATUS_CIRCUIT_OPEN;
 		return isOK(response) ? RegSysEvent.STATUS_OK : RegSysEvent.STATUS_ERROR;
 	}
 
@@ -15,49 +15,101 @@ public class HL7Segment {
 
 	public String name;
 
-	Hashtable<Integer,String> fieldTable;
+	String[] fields;
+	int length = 0;
+	HL7Message message = null;
 
-	static final String separator = "|";
+	static final char separator = '|';
+	static final String mshEncoding = "|^~\\&";
 
 	/**
 	 * Create a new HL7Segment.
 	 */
 	public HL7Segment(String name) {
 		this.name = name.trim().toUpperCase();
-		fieldTable = new Hashtable<Integer,String>();
+		fields = new String[16];
 	}
 
 	public void setField(int seq, String value) {
-		fieldTable.put(new Integer(seq), value);
+		if (seq >= fields.length) fields = Arrays.copyOf(fields, Math.max(2 * fields.length, seq + 1));
+		fields[seq] = value;
+		if ((value != null) && (seq >= length)) length = seq + 1;
+		if (message != null) message.changed();
 	}
 
 	public String getField(int seq) {
-		return fieldTable.get(new Integer(seq));
+		return ((seq >= 0) && (seq < length)) ? fields[seq] : null;
 	}
 
 	public String toString() {
+		byte[] bytes = new byte[getEncodedLength()];
+		encode(bytes, 0);
+		return new String(bytes);
+	}
+
+	//Get the number of bytes in the encoded segment, including the terminator.
+	int getEncodedLength() {
+		int n = getLength(name);
 		int currentSeq = 0;
-		StringBuffer sb = new StringBuffer();
-		sb.append(name);
 		if (name.equals("MSH")) {
-			sb.append(separator + "^~\\&");
+			n += mshEncoding.length();
 			currentSeq = 2;
 		}
-		Set<Integer> keySet = fieldTable.keySet();
-		Integer[] keys = keySet.toArray(new Integer[0]);
-		Arrays.sort(keys);
-
-		for (int i=0; i<keys.length; i++) {
-			int seq = keys[i].intValue();
-			while (currentSeq < seq) {
-				sb.append(separator);
-				currentSeq++;
+		for (int seq=0; seq<length; seq++) {
+			if (fields[seq] != null) {
+				if (currentSeq < seq) {
+					n += seq - currentSeq;
+					currentSeq = seq;
+				}
+				n += getLength(fields[seq]);
 			}
-			sb.append(fieldTable.get(keys[i]));
 		}
-		sb.append("\r");
-		return sb.toString();
+		return n + 1;
 	}
 
-}
+	//Encode the segment into an array, returning the position after the terminator.
+	int encode(byte[] bytes, int pos) {
+		pos = put(bytes, pos, name);
+		int currentSeq = 0;
+		if (name.equals("MSH")) {
+			pos = put(bytes, pos, mshEncoding);
+			currentSeq = 2;
+		}
+		for (int seq=0; seq<length; seq++) {
+			if (fields[seq] != null) {
+				while (currentSeq < seq) {
+					bytes[pos++] = (byte)separator;
+					currentSeq++;
+				}
+				pos = put(bytes, pos, fields[seq]);
+			}
+		}
+		bytes[pos++] = (byte)'\r';
+		return pos;
+	}
 
+	//Get the encoded length of a string. ASCII text is encoded
+	//one byte per character; other text uses the platform charset.
+	private static int getLength(String s) {
+		int n = s.length();
+		for (int i=0; i<n; i++) {
+			if (s.charAt(i) >= 0x80) return s.getBytes().length;
+		}
+		return n;
+	}
+
+	private static int put(byte[] bytes, int pos, String s) {
+		int n = s.length();
+		for (int i=0; i<n; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				byte[] b = s.getBytes();
+				System.arraycopy(b, 0, bytes, pos - i, b.length);
+				return pos - i + b.length;
+			}
+			bytes[pos++] = (byte)c;
+		}
+		return pos;
+	}
+
+}
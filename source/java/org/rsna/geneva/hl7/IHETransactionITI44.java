@@ -46,6 +46,9 @@ import org.openhealthtools.ihe.pix.source.v3.V3PixSourceRecordAdded;
 //////////////////////
 
 import org.rsna.geneva.main.Configuration;
+import org.rsna.geneva.misc.CircuitBreaker;
+import org.rsna.geneva.misc.RateLimiter;
+import org.rsna.geneva.misc.RegSysEvent;
 import org.rsna.geneva.misc.Registration;
 
 public class IHETransactionITI44 implements PatientIdFeed {
@@ -181,13 +184,22 @@ System.out.println(" HL7URL: " + hl7URL);
 	V3PixSourceAcknowledgement v3PixAck = null;
 System.out.println("Ready to send");
 
+        CircuitBreaker breaker = CircuitBreaker.getInstance(hl7URL);
+        if (!breaker.allowRequest()) {
+            return new IHETransactionResponse(
+                        RegSysEvent.STATUS_CIRCUIT_OPEN,
+                        CircuitBreaker.OPEN_RESPONSE + " for " + hl7URL);
+        }
+        RateLimiter.take(hl7URL, 1);
         try {
 	    v3PixAck = pixSource.sendRecordAdded(v3RecordAddedMessage);
 System.out.println("Sent, must not have thrown an exception");
+            breaker.recordSuccess();
             return new IHETransactionResponse( 0, "Success: " + "dude");
         }
         catch( Exception e) {
 System.out.println("Exception " + dumpException(e));
+            breaker.recordFailure();
             return new IHETransactionResponse( 1, dumpException(e));
         }
     }
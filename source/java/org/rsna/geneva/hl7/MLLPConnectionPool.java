@@ -0,0 +1,583 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.hl7;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+import org.rsna.geneva.misc.ProcessingEngine;
+
+/**
+ * A pool of keep-alive MLLP connections, keyed by host:port, all driven
+ * by one I/O thread using non-blocking channels and a Selector. Messages
+ * are submitted with sendAsync, which returns immediately with a future
+ * for the response, so the number of messages in process is not limited
+ * by the number of threads.
+ * <p>
+ * A connection is kept open after each complete exchange of a message and
+ * its response, so the messages to an HL7 endpoint share a few TCP
+ * connections. At most hl7MaxConnections connections are opened to an
+ * endpoint; further messages wait for a connection to become free.
+ * Connections that are idle for longer than the idle timeout are closed,
+ * and a message whose connection was closed by the peer while it was idle
+ * is sent again on a new connection.
+ * <p>
+ * For destinations with a pipeline depth greater than one, messages are
+ * pipelined: up to that many messages are sent on a connection without
+ * waiting for their responses, and each response is matched to its
+ * message by the message control ID (MSA-2 and MSH-10). All the messages
+ * for a patient are sent on the same connection (its lane), in the order
+ * in which they are submitted, so a receiver processes them in that order.
+ * There are hl7PipelineLanes lanes to each endpoint. A change in the
+ * number of lanes takes effect at an endpoint only when none of its lanes
+ * has messages in process, so no patient's messages change lanes while
+ * earlier ones are still in flight.
+ */
+public class MLLPConnectionPool {
+
+	static final Logger logger = Logger.getLogger(MLLPConnectionPool.class);
+
+	public static final int defaultIdleTimeout = 30000;
+	public static final int defaultMaxIdle = 4;
+	public static final int defaultMaxConnections = 32;
+	public static final int defaultPipelineLanes = 4;
+
+	static volatile int idleTimeout = defaultIdleTimeout;
+	static volatile int maxIdle = defaultMaxIdle;
+	static volatile int maxConnections = defaultMaxConnections;
+	static volatile int pipelineLanes = defaultPipelineLanes;
+	static Hashtable<String,Integer> depths = new Hashtable<String,Integer>();
+
+	static final long scanInterval = 100;
+	static final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	static Selector selector = null;
+
+	//The following are used only by the I/O thread.
+	static final HashMap<String,Endpoint> endpoints = new HashMap<String,Endpoint>();
+	static final ByteBuffer readBuffer = ByteBuffer.allocate(16384);
+	static long lastScan = 0;
+
+	/**
+	 * Set the parameters of the pool.
+	 * @param idleTimeout the time an unused connection is kept open (ms),
+	 * or zero to close every connection when it has no more messages.
+	 * @param maxIdle the maximum number of unused connections which are
+	 * not pipelined kept for one endpoint.
+	 * @param maxConnections the maximum number of connections to one endpoint.
+	 */
+	public static void setParameters(int idleTimeout, int maxIdle, int maxConnections) {
+		MLLPConnectionPool.idleTimeout = Math.max(idleTimeout, 0);
+		MLLPConnectionPool.maxIdle = Math.max(maxIdle, 1);
+		MLLPConnectionPool.maxConnections = Math.max(maxConnections, 1);
+		if (idleTimeout == 0) closeAll();
+	}
+
+	public static int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public static int getMaxIdle() {
+		return maxIdle;
+	}
+
+	public static int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Set the number of pipelined connections (lanes) to each endpoint.
+	 */
+	public static void setPipelineLanes(int lanes) {
+		pipelineLanes = Math.max(lanes, 1);
+	}
+
+	public static int getPipelineLanes() {
+		return pipelineLanes;
+	}
+
+	/**
+	 * Set the pipeline depth for a destination.
+	 * @param url the URL of the destination.
+	 * @param depth the maximum number of messages sent on one connection
+	 * without waiting for their responses, or 1 (or less) to send each
+	 * message only after the response to the previous one.
+	 */
+	public static void setPipelineDepth(String url, int depth) {
+		if ((url == null) || url.equals("")) return;
+		if (depth > 1) depths.put(url, depth);
+		else depths.remove(url);
+	}
+
+	public static int getPipelineDepth(String url) {
+		Integer depth = depths.get(url);
+		return (depth != null) ? depth.intValue() : 1;
+	}
+
+	/**
+	 * Send a message without waiting for its response. The callbacks of
+	 * the returned future are run by the I/O thread unless they are added
+	 * with one of the async methods, so they must not block.
+	 * @param urlString the URL of the destination.
+	 * @param message the message, including the MLLP framing characters.
+	 * @param controlID the message control ID (MSH-10), or null if the
+	 * message cannot be pipelined.
+	 * @param lane the key which selects the connection for a pipelined
+	 * message (typically the patient ID), or null to use the control ID.
+	 * @param timeout the connect and response timeout (ms).
+	 * @return a future which is completed with the response, or
+	 * exceptionally with the IOException which prevented the exchange.
+	 */
+	public static CompletableFuture<MLLPFrame> sendAsync(String urlString, byte[] message,
+													  String controlID, String lane, int timeout) {
+		final Request request = new Request(message, controlID, lane, timeout, getPipelineDepth(urlString));
+		final URL url;
+		try { url = new URL(urlString); }
+		catch (MalformedURLException ex) {
+			request.fail(ex);
+			return request.future;
+		}
+		submit(new Runnable() {
+			public void run() {
+				getEndpoint(url.getHost(), url.getPort()).add(request);
+			}
+		});
+		return request.future;
+	}
+
+	/**
+	 * Close all the idle connections.
+	 */
+	public static void closeAll() {
+		if (selector == null) return;
+		submit(new Runnable() {
+			public void run() {
+				for (Endpoint endpoint : endpoints.values()) {
+					for (Link link : endpoint.getLinks()) {
+						if (!link.isBusy()) link.close(new EOFException("Connection closed"));
+					}
+				}
+			}
+		});
+	}
+
+	//Pass a task to the I/O thread, starting it if necessary.
+	private static void submit(Runnable task) {
+		Selector s = getSelector();
+		tasks.add(task);
+		s.wakeup();
+	}
+
+	private static synchronized Selector getSelector() {
+		if (selector == null) {
+			try { selector = Selector.open(); }
+			catch (IOException ex) { throw new IllegalStateException("Unable to open a Selector", ex); }
+			new ProcessingEngine.WorkerFactory("mllp-io").newThread(
+				new Runnable() {
+					public void run() { runSelector(); }
+				}).start();
+		}
+		return selector;
+	}
+
+	//The I/O thread.
+	private static void runSelector() {
+		while (true) {
+			try {
+				selector.select(scanInterval);
+				Runnable task;
+				while ((task = tasks.poll()) != null) task.run();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					((Link)key.attachment()).ready(key);
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastScan >= scanInterval) {
+					lastScan = now;
+					for (Endpoint endpoint : endpoints.values()) {
+						for (Link link : endpoint.getLinks()) link.checkTimeouts(now);
+					}
+				}
+			}
+			catch (Throwable t) { logger.warn("Unexpected error in the MLLP I/O thread", t); }
+		}
+	}
+
+	private static Endpoint getEndpoint(String host, int port) {
+		String key = host + ":" + port;
+		Endpoint endpoint = endpoints.get(key);
+		if (endpoint == null) {
+			endpoint = new Endpoint(key, host, port);
+			endpoints.put(key, endpoint);
+		}
+		return endpoint;
+	}
+
+	/**
+	 * The connections to one host:port. Messages which are not pipelined
+	 * wait in the queue of the endpoint for a free connection. Pipelined
+	 * messages go to the connection for their lane.
+	 */
+	static class Endpoint {
+		final String key;
+		final String host;
+		final int port;
+		final LinkedList<Request> queue = new LinkedList<Request>();
+		final LinkedList<Link> links = new LinkedList<Link>();
+		final HashMap<Integer,Link> lanes = new HashMap<Integer,Link>();
+		int laneCount = pipelineLanes;
+
+		Endpoint(String key, String host, int port) {
+			this.key = key;
+			this.host = host;
+			this.port = port;
+		}
+
+		List<Link> getLinks() {
+			List<Link> list = new ArrayList<Link>(links);
+			list.addAll(lanes.values());
+			return list;
+		}
+
+		void add(Request request) {
+			if ((request.depth > 1) && (request.controlID != null)) {
+				String lane = (request.lane != null) ? request.lane : request.controlID;
+				//Adopt a new number of lanes only when no pipelined
+				//messages are in process, so each patient's messages
+				//stay on one connection until they are done.
+				if ((laneCount != pipelineLanes) && !lanesBusy()) laneCount = pipelineLanes;
+				Integer n = Math.abs(lane.hashCode() % laneCount);
+				Link link = lanes.get(n);
+				if (link == null) {
+					try { link = new Link(this, n, request.depth, request.timeout); }
+					catch (Exception ex) {
+						request.fail(toIOException(ex));
+						return;
+					}
+					lanes.put(n, link);
+				}
+				link.enqueue(request);
+			}
+			else {
+				queue.add(request);
+				dispatch();
+			}
+		}
+
+		boolean lanesBusy() {
+			for (Link link : lanes.values()) {
+				if (link.isBusy()) return true;
+			}
+			return false;
+		}
+
+		//Give the waiting messages to free connections, opening new ones as required.
+		void dispatch() {
+			while (!queue.isEmpty()) {
+				Link link = null;
+				for (Link x : links) {
+					if (!x.isBusy()) {
+						link = x;
+						break;
+					}
+				}
+				if (link == null) {
+					if (links.size() >= maxConnections) return;
+					Request request = queue.getFirst();
+					try { link = new Link(this, null, 1, request.timeout); }
+					catch (Exception ex) {
+						queue.removeFirst();
+						request.fail(toIOException(ex));
+						continue;
+					}
+					links.add(link);
+				}
+				link.enqueue(queue.removeFirst());
+			}
+		}
+
+		//Called when a connection which is not pipelined has finished an exchange.
+		void released(Link link) {
+			if (!queue.isEmpty()) {
+				link.enqueue(queue.removeFirst());
+				return;
+			}
+			int idle = 0;
+			for (Link x : links) {
+				if (!x.isBusy()) idle++;
+			}
+			if ((idleTimeout == 0) || (idle > maxIdle)) link.close(new EOFException("Idle connection closed"));
+		}
+
+		void removed(Link link) {
+			if (link.lane != null) {
+				if (lanes.get(link.lane) == link) lanes.remove(link.lane);
+			}
+			else {
+				links.remove(link);
+				dispatch();
+			}
+		}
+
+		private IOException toIOException(Exception ex) {
+			if (ex instanceof IOException) return (IOException)ex;
+			return new IOException("Unable to connect to "+key+": "+ex.toString());
+		}
+	}
+
+	/**
+	 * One MLLP connection. Messages wait in the link until there is room
+	 * in the window (one message if the connection is not pipelined); they
+	 * are then written and kept in process until their responses arrive.
+	 */
+	static class Link {
+		final Endpoint endpoint;
+		final Integer lane;
+		final int depth;
+		final SocketChannel channel;
+		final SelectionKey key;
+		final long connectDeadline;
+		final LinkedList<Request> waiting = new LinkedList<Request>();
+		final LinkedList<Request> inProcess = new LinkedList<Request>();
+		final HashMap<String,Request> byControlID = new HashMap<String,Request>();
+		final LinkedList<ByteBuffer> writes = new LinkedList<ByteBuffer>();
+		final MLLPDecoder decoder = new MLLPDecoder();
+		boolean connected = false;
+		boolean closed = false;
+		long lastUsed = System.currentTimeMillis();
+		long received = 0;
+		int exchanges = 0;
+
+		Link(Endpoint endpoint, Integer lane, int depth, int timeout) throws IOException {
+			this.endpoint = endpoint;
+			this.lane = lane;
+			this.depth = depth;
+			connectDeadline = System.currentTimeMillis() + timeout;
+			channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+				connected = channel.connect(new InetSocketAddress(endpoint.host, endpoint.port));
+				key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+			}
+			catch (IOException ex) {
+				channel.close();
+				throw ex;
+			}
+			catch (RuntimeException ex) {
+				channel.close();
+				throw ex;
+			}
+		}
+
+		boolean isBusy() {
+			return !waiting.isEmpty() || !inProcess.isEmpty();
+		}
+
+		void enqueue(Request request) {
+			waiting.add(request);
+			if (connected) pump();
+		}
+
+		//Write the waiting messages for which there is room in the window.
+		private void pump() {
+			long now = System.currentTimeMillis();
+			while (!waiting.isEmpty() && (inProcess.size() < depth)) {
+				Request request = waiting.removeFirst();
+				if (lane != null) {
+					if (byControlID.containsKey(request.controlID)) {
+						request.fail(new IOException("Message control ID "+request.controlID
+														+" is already in process on "+endpoint.key));
+						continue;
+					}
+					byControlID.put(request.controlID, request);
+				}
+				request.reused = (exchanges > 0) && inProcess.isEmpty();
+				request.mark = received;
+				request.deadline = now + request.timeout;
+				inProcess.add(request);
+				writes.add(ByteBuffer.wrap(request.message));
+			}
+			try { write(); }
+			catch (IOException ex) { close(ex); }
+		}
+
+		private void write() throws IOException {
+			while (!writes.isEmpty()) {
+				ByteBuffer buffer = writes.getFirst();
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				writes.removeFirst();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		void ready(SelectionKey key) {
+			try {
+				if (key.isValid() && key.isConnectable() && channel.finishConnect()) {
+					connected = true;
+					lastUsed = System.currentTimeMillis();
+					key.interestOps(SelectionKey.OP_READ);
+					pump();
+				}
+				if (key.isValid() && key.isWritable()) write();
+				if (key.isValid() && key.isReadable()) read();
+			}
+			catch (IOException ex) { close(ex); }
+		}
+
+		//Read what is available, passing each complete response to its sender.
+		private void read() throws IOException {
+			int n;
+			while ((n = channel.read(readBuffer)) > 0) {
+				received += n;
+				readBuffer.flip();
+				MLLPFrame frame;
+				while (!closed && ((frame = decoder.decode(readBuffer)) != null)) deliver(frame);
+				readBuffer.clear();
+				if (closed) return;
+			}
+			if (n < 0) close(new EOFException("Connection closed by "+endpoint.key));
+		}
+
+		private void deliver(MLLPFrame response) {
+			Request request;
+			if (lane != null) {
+				String controlID = response.getControlID();
+				request = (controlID != null) ? byControlID.remove(controlID) : null;
+				if (request == null) {
+					logger.warn("Unmatched response on "+endpoint.key+" (MSA-2: "+controlID+")");
+					return;
+				}
+				inProcess.remove(request);
+			}
+			else {
+				request = inProcess.pollFirst();
+				if (request == null) {
+					logger.warn("Unsolicited response on "+endpoint.key);
+					return;
+				}
+			}
+			exchanges++;
+			lastUsed = System.currentTimeMillis();
+			request.complete(response);
+			if (lane == null) endpoint.released(this);
+			else if (!isBusy() && (idleTimeout == 0)) close(new EOFException("Idle connection closed"));
+			else pump();
+		}
+
+		void checkTimeouts(long now) {
+			if (closed) return;
+			if (!connected) {
+				if (now > connectDeadline) close(new SocketTimeoutException("connect timed out"));
+				return;
+			}
+			if (!isBusy()) {
+				if (now - lastUsed > idleTimeout) close(new EOFException("Idle connection closed"));
+				return;
+			}
+			if (lane == null) {
+				Request request = inProcess.peekFirst();
+				if ((request != null) && (now > request.deadline)) {
+					//To handle systems which don't send a complete response,
+					//don't fail the message if the text received before the
+					//timeout indicates success. Either way, the state of the
+					//connection is unknown, so close it.
+					inProcess.removeFirst();
+					MLLPFrame partial = decoder.getPartialFrame();
+					String text = partial.toString().trim();
+					if (partial.isOK()) request.complete(partial);
+					else request.fail(new SocketTimeoutException("Read timed out"
+											+ (text.equals("") ? "" : "\r"+text)));
+					close(new SocketTimeoutException("Read timed out"));
+				}
+				return;
+			}
+			boolean expired = false;
+			Iterator<Request> it = inProcess.iterator();
+			while (it.hasNext()) {
+				Request request = it.next();
+				if (now > request.deadline) {
+					it.remove();
+					byControlID.remove(request.controlID);
+					request.fail(new SocketTimeoutException("Read timed out"));
+					expired = true;
+				}
+			}
+			if (expired) pump();
+		}
+
+		//Close the connection. Messages which were not written, and messages
+		//on an idle connection which was closed before anything was received,
+		//are sent again on another connection; the others fail.
+		void close(IOException ex) {
+			if (closed) return;
+			closed = true;
+			key.cancel();
+			try { channel.close(); }
+			catch (Exception ignore) { }
+			LinkedList<Request> again = new LinkedList<Request>();
+			for (Request request : inProcess) {
+				if (request.reused && !request.retried && (request.mark == received)
+						&& !(ex instanceof SocketTimeoutException)) {
+					request.retried = true;
+					again.add(request);
+				}
+				else request.fail(ex);
+			}
+			for (Request request : waiting) {
+				if (connected) again.add(request);
+				else request.fail(ex);
+			}
+			inProcess.clear();
+			waiting.clear();
+			byControlID.clear();
+			endpoint.removed(this);
+			for (Request request : again) endpoint.add(request);
+		}
+	}
+
+	//A message and the future for its response.
+	static class Request {
+		final byte[] message;
+		final String controlID;
+		final String lane;
+		final int timeout;
+		final int depth;
+		final CompletableFuture<MLLPFrame> future = new CompletableFuture<MLLPFrame>();
+		long deadline = 0;
+		long mark = 0;
+		boolean reused = false;
+		boolean retried = false;
+
+		Request(byte[] message, String controlID, String lane, int timeout, int depth) {
+			this.message = message;
+			this.controlID = controlID;
+			this.lane = lane;
+			this.timeout = timeout;
+			this.depth = depth;
+		}
+
+		void complete(MLLPFrame response) {
+			future.complete(response);
+		}
+
+		void fail(IOException ex) {
+			future.completeExceptionally(ex);
+		}
+	}
+
+}
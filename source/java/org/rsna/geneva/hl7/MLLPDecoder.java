@@ -0,0 +1,111 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.hl7;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A decoder for MLLP frames. The bytes received on a connection are
+ * passed to the decoder as they arrive, in buffers of any size, and
+ * each complete frame (ending with FS CR) is returned as an MLLPFrame.
+ * The decoder searches the buffers for the end of a frame and copies
+ * the bytes in blocks; it does not convert them to characters.
+ */
+public class MLLPDecoder {
+
+	static final byte VT = 0x0B;
+	static final byte FS = 0x1C;
+	static final byte CR = 0x0D;
+
+	byte[] buffer = new byte[1024];
+	int length = 0;
+
+	/**
+	 * Decode the bytes in a buffer, stopping at the end of a frame.
+	 * Call this method until it returns null to decode all the frames
+	 * in the buffer; the bytes of an incomplete frame are kept for the
+	 * next buffer.
+	 * @param in the buffer, ready to be read.
+	 * @return the next complete frame, or null if the remaining bytes
+	 * in the buffer do not complete a frame.
+	 */
+	public MLLPFrame decode(ByteBuffer in) {
+		while (in.hasRemaining()) {
+			//If the last byte was FS, the frame ends if this one is CR.
+			if ((length > 0) && (buffer[length-1] == FS)) {
+				byte b = in.get();
+				append(b);
+				if (b == CR) return take();
+				continue;
+			}
+			//Copy everything up to and including the next FS.
+			int start = in.position();
+			int limit = in.limit();
+			int end;
+			if (in.hasArray()) {
+				byte[] array = in.array();
+				int offset = in.arrayOffset();
+				end = start;
+				while ((end < limit) && (array[offset + end] != FS)) end++;
+				if (end < limit) end++;
+				append(array, offset + start, end - start);
+				in.position(end);
+			}
+			else {
+				byte b;
+				do {
+					b = in.get();
+					append(b);
+				} while ((b != FS) && in.hasRemaining());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Determine whether part of a frame has been received.
+	 */
+	public boolean hasPartialFrame() {
+		return length > 0;
+	}
+
+	/**
+	 * Get the bytes of the incomplete frame received so far.
+	 */
+	public MLLPFrame getPartialFrame() {
+		return new MLLPFrame(Arrays.copyOf(buffer, length));
+	}
+
+	/**
+	 * Discard the bytes of the incomplete frame.
+	 */
+	public void reset() {
+		length = 0;
+	}
+
+	private MLLPFrame take() {
+		MLLPFrame frame = new MLLPFrame(Arrays.copyOf(buffer, length));
+		length = 0;
+		return frame;
+	}
+
+	private void append(byte b) {
+		if (length == buffer.length) buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+		buffer[length++] = b;
+	}
+
+	private void append(byte[] bytes, int offset, int n) {
+		if (length + n > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, length + n));
+		}
+		System.arraycopy(bytes, offset, buffer, length, n);
+		length += n;
+	}
+
+}
@@ -0,0 +1,120 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.hl7;
+
+/**
+ * One MLLP frame, typically an HL7 acknowledgement. The acknowledgement
+ * code (MSA-1) and the control ID of the acknowledged message (MSA-2) are
+ * located in the bytes of the frame when they are first needed, and the
+ * text of the frame is only created if it is requested.
+ */
+public class MLLPFrame {
+
+	final byte[] bytes;
+	boolean parsed = false;
+	int ackStart = -1;
+	int ackEnd = -1;
+	int idStart = -1;
+	int idEnd = -1;
+	String text = null;
+
+	/**
+	 * Create an MLLPFrame.
+	 * @param bytes the bytes of the frame, including the framing characters.
+	 */
+	public MLLPFrame(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	public int getLength() {
+		return bytes.length;
+	}
+
+	/**
+	 * Get the bytes of the frame, including the framing characters.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Determine whether the frame is a positive acknowledgement
+	 * (MSA-1 is AA). This method does not create any objects.
+	 */
+	public boolean isOK() {
+		parse();
+		return (ackEnd - ackStart == 2) && (bytes[ackStart] == 'A') && (bytes[ackStart+1] == 'A');
+	}
+
+	/**
+	 * Get the acknowledgement code (MSA-1), or null if the frame has no MSA segment.
+	 */
+	public String getAckCode() {
+		parse();
+		return (ackStart >= 0) ? getString(ackStart, ackEnd) : null;
+	}
+
+	/**
+	 * Get the control ID of the acknowledged message (MSA-2),
+	 * or null if the frame has no MSA-2 field.
+	 */
+	public String getControlID() {
+		parse();
+		return (idStart >= 0) ? getString(idStart, idEnd) : null;
+	}
+
+	/**
+	 * Get the text of the frame, with the control characters
+	 * (including the framing characters and the segment
+	 * terminators) replaced by spaces.
+	 */
+	public String toString() {
+		if (text == null) {
+			char[] chars = new String(bytes).toCharArray();
+			for (int i=0; i<chars.length; i++) {
+				if (Character.isISOControl(chars[i])) chars[i] = ' ';
+			}
+			text = new String(chars);
+		}
+		return text;
+	}
+
+	private String getString(int start, int end) {
+		return new String(bytes, start, end - start).trim();
+	}
+
+	//Find MSA-1 and MSA-2. The MSA segment starts the frame or follows
+	//a segment terminator; the character after its name is the field separator.
+	private void parse() {
+		if (parsed) return;
+		parsed = true;
+		int n = bytes.length;
+		for (int i=0; i+3<n; i++) {
+			if ((bytes[i] == 'M') && (bytes[i+1] == 'S') && (bytes[i+2] == 'A')
+					&& ((i == 0) || (bytes[i-1] == MLLPDecoder.CR)
+								 || (bytes[i-1] == MLLPDecoder.VT) || (bytes[i-1] == '\n'))) {
+				byte separator = bytes[i+3];
+				int k = i + 4;
+				ackStart = k;
+				while ((k < n) && (bytes[k] != separator) && !isEndOfSegment(bytes[k])) k++;
+				ackEnd = k;
+				if ((k < n) && (bytes[k] == separator)) {
+					idStart = ++k;
+					while ((k < n) && (bytes[k] != separator) && !isEndOfSegment(bytes[k])) k++;
+					idEnd = k;
+				}
+				return;
+			}
+		}
+	}
+
+	private boolean isEndOfSegment(byte b) {
+		return (b == MLLPDecoder.CR) || (b == '\n') || (b == MLLPDecoder.FS);
+	}
+
+}
@@ -7,17 +7,13 @@
 
 package org.rsna.geneva.hl7;
 
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import java.io.File;
 import java.net.*;
 import java.util.*;
 import org.rsna.geneva.elements.*;
 import org.rsna.geneva.main.Configuration;
 import org.rsna.geneva.misc.Registration;
-import org.rsna.util.XmlUtil;
-import org.rsna.geneva.misc.Address;
 
 public class Message extends ConfigElement {
 
@@ -28,6 +24,8 @@ public class Message extends ConfigElement {
 	public String systemID;
 	public String description;
 	public File file;
+	MessageTemplate template = null;
+	long lastModified = -1;
 
 	public Message(Element el) {
 		super(el);
@@ -35,45 +33,42 @@ public class Message extends ConfigElement {
 		this.systemID = el.getAttribute("ehrsystemID").trim();
 		this.filename = el.getAttribute("file").trim();
 		this.file = new File(filename);
+		getTemplate();
+	}
+
+	//Get the compiled template, compiling it again if the file has changed.
+	private synchronized MessageTemplate getTemplate() {
+		long lm = file.lastModified();
+		if (lm != lastModified) {
+			lastModified = lm;
+			try { template = new MessageTemplate(file); }
+			catch (Exception ex) { template = null; }
+		}
+		return template;
 	}
 
 	public HL7Message createHL7Message(EHRSystem ehrsystem, Registration reg, Configuration config) {
+		MessageTemplate template = getTemplate();
+		if (template == null) return null;
 		try {
-			Document msgDoc = XmlUtil.getDocument(file);
-			Element root = msgDoc.getDocumentElement();
-			HL7Message msg = new HL7Message(root.getTagName().toUpperCase());
-			Node ch = root.getFirstChild();
-			while (ch != null) {
-				if (ch.getNodeType() == Node.ELEMENT_NODE) {
-					Element segment = (Element)ch;
-					String name = segment.getTagName().toUpperCase();
-					HL7Segment seg = new HL7Segment(name);
-					msg.addSegment(seg);
-
-					//Prepopulate the segment if we can
-					if (name.equals("MSH")) setMSH(seg, ehrsystem, reg, config);
-					else if (name.equals("EVN")) setEVN(seg, ehrsystem, reg, config);
-					else if (name.equals("PID")) setPID(seg, ehrsystem, reg, config);
-					else if (name.equals("PV1")) setPV1(seg, ehrsystem, reg, config);
-					else if (name.equals("DG1")) setDG1(seg, ehrsystem, reg, config);
-
-					//Now process the child fields
-					Node gch = ch.getFirstChild();
-					while (gch != null) {
-						if (gch.getNodeType() == Node.ELEMENT_NODE) {
-							Element field = (Element)gch;
-							try {
-								int n = Integer.parseInt(field.getAttribute("n"));
-								String value = field.getTextContent().trim();
-								value = filter(value,ehrsystem,reg,config);
-								if (n > 0) seg.setField(n, value);
-							}
-							catch (Exception skipField) { }
-						}
-						gch = gch.getNextSibling();
-					}
+			HL7Message msg = new HL7Message(template.name);
+			for (MessageTemplate.Segment segment : template.segments) {
+				String name = segment.name;
+				HL7Segment seg = new HL7Segment(name);
+				msg.addSegment(seg);
+
+				//Prepopulate the segment if we can
+				if (name.equals("MSH")) setMSH(seg, ehrsystem, reg, config);
+				else if (name.equals("EVN")) setEVN(seg, ehrsystem, reg, config);
+				else if (name.equals("PID")) setPID(seg, ehrsystem, reg, config);
+				else if (name.equals("PV1")) setPV1(seg, ehrsystem, reg, config);
+				else if (name.equals("DG1")) setDG1(seg, ehrsystem, reg, config);
+
+				//Now fill in the fields from the template
+				for (MessageTemplate.Field field : segment.fields) {
+					String value = field.getValue(ehrsystem, reg, config);
+					if (value != null) seg.setField(field.n, value);
 				}
-				ch = ch.getNextSibling();
 			}
 			return msg;
 		}
@@ -81,33 +76,6 @@ public class Message extends ConfigElement {
 		return null;
 	}
 
-	private String filter(String value, EHRSystem ehrsystem, Registration reg, Configuration config) {
-		if (value.equals("@dateTime")) { //for backward compatibility
-			value = config.getDateTime();
-			return value;
-		}
-		value = value.replace("{reg.name}",reg.getName());
-		value = value.replace("{reg.birthdate}",reg.birthdate);
-		value = value.replace("{reg.email}",reg.email);
-		value = value.replace("{reg.sex}",reg.sex);
-		value = value.replace("{reg.address}",
-					reg.street + "^^" + reg.city + "^" + reg.state + "^" + reg.zip + "^" + reg.country);
-		value = value.replace("{reg.globalID}",reg.globalID);
-		value = value.replace("{reg.localID}",reg.localIDTable.get(ehrsystem.id));
-		value = value.replace("{config.dateTime}",config.getDateTime());
-		int k;
-		while ((k=value.indexOf("{config.address}")) != -1) {
-			Address adrs = config.getAddress(reg.sex);
-			String address =
-					adrs.street + "^^" + adrs.city + "^" + adrs.state + "^" + adrs.zip + "^" + adrs.country;
-			value = value.substring(0,k) + address + value.substring(k+16);
-		}
-		while ((k=value.indexOf("{config.docName}")) != -1) {
-			value = value.substring(0,k) + config.getPhysicianName() + value.substring(k+16);
-		}
-		return value;
-	}
-
 	private void setMSH(HL7Segment msh, EHRSystem ehr, Registration reg, Configuration config) {
 		msh.setField( 3,"XDSDEMO_ADT");
 		msh.setField( 4,"XDSDEMO");
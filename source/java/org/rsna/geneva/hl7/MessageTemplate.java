@@ -0,0 +1,179 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.hl7;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import java.io.File;
+import java.util.*;
+import org.rsna.geneva.elements.EHRSystem;
+import org.rsna.geneva.main.Configuration;
+import org.rsna.geneva.misc.Address;
+import org.rsna.geneva.misc.Registration;
+import org.rsna.util.XmlUtil;
+
+/**
+ * The compiled form of the template file of a Message. The file is parsed
+ * once, and the text of each field is divided into literal fragments and
+ * placeholder slots, so creating a message from the template requires
+ * no XML parsing and a single pass over each field.
+ */
+public class MessageTemplate {
+
+	static final String[] placeholders = {
+		"{reg.name}",
+		"{reg.birthdate}",
+		"{reg.email}",
+		"{reg.sex}",
+		"{reg.address}",
+		"{reg.globalID}",
+		"{reg.localID}",
+		"{config.dateTime}",
+		"{config.address}",
+		"{config.docName}"
+	};
+	static final int REG_NAME = 0;
+	static final int REG_BIRTHDATE = 1;
+	static final int REG_EMAIL = 2;
+	static final int REG_SEX = 3;
+	static final int REG_ADDRESS = 4;
+	static final int REG_GLOBALID = 5;
+	static final int REG_LOCALID = 6;
+	static final int CONFIG_DATETIME = 7;
+	static final int CONFIG_ADDRESS = 8;
+	static final int CONFIG_DOCNAME = 9;
+
+	public final String name;
+	final Segment[] segments;
+
+	/**
+	 * Compile a template file.
+	 * @param file the template file.
+	 * @throws Exception if the file cannot be parsed.
+	 */
+	public MessageTemplate(File file) throws Exception {
+		Document doc = XmlUtil.getDocument(file);
+		Element root = doc.getDocumentElement();
+		name = root.getTagName().toUpperCase();
+		LinkedList<Segment> list = new LinkedList<Segment>();
+		Node ch = root.getFirstChild();
+		while (ch != null) {
+			if (ch.getNodeType() == Node.ELEMENT_NODE) list.add(new Segment((Element)ch));
+			ch = ch.getNextSibling();
+		}
+		segments = list.toArray(new Segment[list.size()]);
+	}
+
+	//One segment of the template.
+	static class Segment {
+		final String name;
+		final Field[] fields;
+
+		Segment(Element segment) {
+			name = segment.getTagName().toUpperCase();
+			LinkedList<Field> list = new LinkedList<Field>();
+			Node gch = segment.getFirstChild();
+			while (gch != null) {
+				if (gch.getNodeType() == Node.ELEMENT_NODE) {
+					Element field = (Element)gch;
+					try {
+						int n = Integer.parseInt(field.getAttribute("n"));
+						if (n > 0) list.add(new Field(n, field.getTextContent().trim()));
+					}
+					catch (Exception skipField) { }
+				}
+				gch = gch.getNextSibling();
+			}
+			fields = list.toArray(new Field[list.size()]);
+		}
+	}
+
+	/**
+	 * One field of the template. The value of the field is
+	 * literals[0] + slot[0] + literals[1] + ... + literals[slots.length].
+	 */
+	static class Field {
+		final int n;
+		final String[] literals;
+		final int[] slots;
+
+		Field(int n, String text) {
+			this.n = n;
+			LinkedList<String> lits = new LinkedList<String>();
+			LinkedList<Integer> slotList = new LinkedList<Integer>();
+			if (text.equals("@dateTime")) { //for backward compatibility
+				lits.add("");
+				slotList.add(CONFIG_DATETIME);
+				lits.add("");
+			}
+			else {
+				int start = 0;
+				int k = 0;
+				while ((k = text.indexOf('{', k)) != -1) {
+					int slot = getSlot(text, k);
+					if (slot >= 0) {
+						lits.add(text.substring(start, k));
+						slotList.add(slot);
+						k += placeholders[slot].length();
+						start = k;
+					}
+					else k++;
+				}
+				lits.add(text.substring(start));
+			}
+			literals = lits.toArray(new String[lits.size()]);
+			slots = new int[slotList.size()];
+			for (int i=0; i<slots.length; i++) slots[i] = slotList.get(i).intValue();
+		}
+
+		private static int getSlot(String text, int k) {
+			for (int i=0; i<placeholders.length; i++) {
+				if (text.startsWith(placeholders[i], k)) return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * Get the value of the field for a registration.
+		 * @return the value, or null if a placeholder has no value.
+		 */
+		String getValue(EHRSystem ehrsystem, Registration reg, Configuration config) {
+			if (slots.length == 0) return literals[0];
+			StringBuffer sb = new StringBuffer();
+			for (int i=0; i<slots.length; i++) {
+				sb.append(literals[i]);
+				String value = getSlotValue(slots[i], ehrsystem, reg, config);
+				if (value == null) return null;
+				sb.append(value);
+			}
+			sb.append(literals[slots.length]);
+			return sb.toString();
+		}
+
+		private static String getSlotValue(int slot, EHRSystem ehrsystem, Registration reg, Configuration config) {
+			switch (slot) {
+				case REG_NAME:			return reg.getName();
+				case REG_BIRTHDATE:		return reg.birthdate;
+				case REG_EMAIL:			return reg.email;
+				case REG_SEX:			return reg.sex;
+				case REG_ADDRESS:
+					return reg.street + "^^" + reg.city + "^" + reg.state + "^" + reg.zip + "^" + reg.country;
+				case REG_GLOBALID:		return reg.globalID;
+				case REG_LOCALID:		return reg.localIDTable.get(ehrsystem.id);
+				case CONFIG_DATETIME:	return config.getDateTime();
+				case CONFIG_ADDRESS:
+					Address adrs = config.getAddress(reg.sex);
+					return adrs.street + "^^" + adrs.city + "^" + adrs.state + "^" + adrs.zip + "^" + adrs.country;
+				case CONFIG_DOCNAME:	return config.getPhysicianName();
+			}
+			return null;
+		}
+	}
+
+}
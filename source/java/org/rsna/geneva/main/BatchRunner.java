@@ -0,0 +1,167 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.main;
+
+import java.io.*;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.rsna.geneva.misc.BatchProcessor;
+import org.rsna.geneva.misc.EventLog;
+import org.rsna.geneva.misc.ProcessingEngine;
+import org.rsna.geneva.misc.Registration;
+import org.rsna.geneva.misc.RegistrationFile;
+import org.rsna.util.FileUtil;
+import org.rsna.util.JarClassLoader;
+
+/**
+ * The command-line program for processing a batch registration file
+ * without the GUI. It loads the configuration from the current directory,
+ * processes the registrations in the file, prints a report, and exits:
+ * <pre>
+ *   java -cp Geneva.jar org.rsna.geneva.main.BatchRunner
+ *        [-concurrency n] [-rate r] [-report reportfile] registrationfile
+ * </pre>
+ * The registrations are submitted as they are read from the file. The exit
+ * status is 0 if all the registrations were processed without failures,
+ * 1 if any step failed, and 2 if the batch could not be run or the file
+ * could not be read to the end.
+ */
+public class BatchRunner {
+
+	static final Logger logger = Logger.getLogger(BatchRunner.class);
+
+	static final String usage =
+		"Usage: java -cp Geneva.jar org.rsna.geneva.main.BatchRunner"
+		+ " [-concurrency n] [-rate r] [-report reportfile] registrationfile";
+
+	static final long progressInterval = 10000;
+
+	@SuppressWarnings("unchecked")
+	public static void main(String args[]) {
+		System.setProperty("java.awt.headless", "true");
+
+		//Get a JarClassLoader pointing to this program plus the libraries directory
+		JarClassLoader cl = JarClassLoader.getInstance(new File[] { new File(Geneva.jarName), Geneva.libraries });
+
+		//Set the context classloader to the JarClassLoader
+		Thread.currentThread().setContextClassLoader(cl);
+
+		//Load the class, instantiate it, and run the batch
+		int status = 2;
+		try {
+			Class theClass = cl.loadClass(BatchRunner.class.getName());
+			Object runner = theClass.getConstructor( new Class[0] ).newInstance( new Object[0] );
+			status = ((Integer)theClass.getMethod("run", String[].class).invoke(runner, new Object[] { args })).intValue();
+		}
+		catch (Exception unable) { unable.printStackTrace(); }
+		System.exit(status);
+	}
+
+	/**
+	 * Run a batch.
+	 * @param args the command-line arguments.
+	 * @return the exit status.
+	 */
+	public int run(String[] args) {
+		int concurrency = 4;
+		double rate = 0.0;
+		File reportFile = null;
+		File regFile = null;
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-concurrency")) concurrency = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-rate")) rate = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-report")) reportFile = new File(args[++i]);
+				else if (!args[i].startsWith("-") && (regFile == null)) regFile = new File(args[i]);
+				else throw new Exception("Unknown argument: "+args[i]);
+			}
+		}
+		catch (Exception ex) {
+			System.err.println(usage);
+			return 2;
+		}
+		if ((regFile == null) || !regFile.isFile()) {
+			System.err.println((regFile == null) ? usage : "Registration file not found: "+regFile);
+			return 2;
+		}
+
+		File logs = new File("logs");
+		logs.mkdirs();
+		File logProps = new File(Geneva.log4jFN);
+		PropertyConfigurator.configure(logProps.getAbsolutePath());
+
+		Configuration config = Configuration.getInstance();
+		EventLog eventLog = new EventLog(config.getLogDepth());
+		config.setEventLog(eventLog);
+		ProcessingEngine.getInstance().start();
+
+		RegistrationFile regs;
+		try { regs = new RegistrationFile(regFile); }
+		catch (Exception ex) {
+			System.err.println("Unable to load the registration file: "+regFile+" ("+ex.getMessage()+")");
+			return 2;
+		}
+
+		final BatchProcessor processor = new BatchProcessor(concurrency, rate);
+		boolean unreadable = false;
+
+		//Report the progress periodically on stderr.
+		Thread progress =
+			new Thread("batch-progress") {
+				public void run() {
+					while (true) {
+						try { Thread.sleep(progressInterval); }
+						catch (InterruptedException ex) { return; }
+						System.err.println(processor.getProgress());
+					}
+				}
+			};
+		progress.setDaemon(true);
+		progress.start();
+
+		//Submit the registrations as they are read.
+		try {
+			Registration reg;
+			while ((reg = regs.next()) != null) processor.submit(reg);
+			processor.setTotal(regs.getCount());
+			processor.waitForCompletion();
+		}
+		catch (InterruptedException ex) {
+			System.err.println("Interrupted");
+			return 2;
+		}
+		catch (Exception ex) {
+			//The file could not be parsed; finish the registrations already submitted.
+			System.err.println("Unable to read the registration file after "
+								+ regs.getCount()+" registrations: "+ex.getMessage());
+			regs.close();
+			try { processor.waitForCompletion(); }
+			catch (InterruptedException quit) { return 2; }
+			unreadable = true;
+		}
+		progress.interrupt();
+		System.err.println(processor.getProgress());
+
+		//Make the state durable before exiting.
+		ProcessingEngine.getInstance().flush();
+		config.save();
+
+		String report = processor.getReport();
+		System.out.println(report);
+		if (reportFile != null) {
+			if (!FileUtil.setText(reportFile, report))
+				System.err.println("Unable to write the report to "+reportFile);
+		}
+		logger.info("Batch "+regFile+" complete: "
+					+ processor.getCompleted()+" registrations; "
+					+ processor.getFailed()+" with failures");
+		if (unreadable) return 2;
+		return (processor.getFailed() > 0) ? 1 : 0;
+	}
+
+}
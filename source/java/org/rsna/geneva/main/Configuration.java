@@ -68,6 +68,9 @@ public class Configuration {
 	Message[] messages;
 	int logDepth = 100;
 	int serverPort = 80;
+	Hashtable<String,Integer> poolSizes = new Hashtable<String,Integer>();
+	WorkflowRules workflowRules = null;
+	RetryPolicies retryPolicies = null;
 	String uidRoot = "1.2.3.4.5.6.7";
 	String uidRootNoTrailer = "1.2.3.4.5.6.7";
 	String uidSubroot = "1";
@@ -199,6 +202,24 @@ public class Configuration {
 
 			askOnClose = !root.getAttribute("askOnClose").equals("no");
 
+			setPoolSizes(root);
+			ProcessingEngine.getInstance().setBackpressure(root.getAttribute("backpressure"));
+			ProcessingEngine.getInstance().setExecutionMode(root.getAttribute("executionMode"));
+			ProcessingEngine.getInstance().setJournaling(!root.getAttribute("journal").equals("no"));
+			CircuitBreaker.setParameters(
+				getInt(root, "breakerThreshold", CircuitBreaker.defaultThreshold),
+				getInt(root, "breakerProbeInterval", CircuitBreaker.defaultProbeInterval));
+			MLLPConnectionPool.setParameters(
+				getInt(root, "hl7IdleTimeout", MLLPConnectionPool.defaultIdleTimeout),
+				getInt(root, "hl7MaxIdleConnections", MLLPConnectionPool.defaultMaxIdle),
+				getInt(root, "hl7MaxConnections", MLLPConnectionPool.defaultMaxConnections));
+			MLLPConnectionPool.setPipelineLanes(
+				getInt(root, "hl7PipelineLanes", MLLPConnectionPool.defaultPipelineLanes));
+			HL7Archive.getInstance().setEnabled(root.getAttribute("hl7Archive").equals("yes"));
+			DicomAssociationPool.setParameters(
+				getInt(root, "dcmIdleTimeout", DicomAssociationPool.defaultIdleTimeout),
+				getInt(root, "dcmMaxAssociations", DicomAssociationPool.defaultMaxAssociations));
+
             senderDeviceId= root.getAttribute("senderDeviceId");
             senderDeviceName= root.getAttribute("senderDeviceName");
 
@@ -214,7 +235,10 @@ public class Configuration {
 			messagesTable = new Hashtable<String, Message>();
 
 			ArrayList<Message> messageList = new ArrayList<Message>();
+			workflowRules = new WorkflowRules(null);
+			retryPolicies = new RetryPolicies(null);
 
+			RateLimiter.startLoading();
 			Node child = root.getFirstChild();
 			while (child != null) {
 				if (child.getNodeType() == Node.ELEMENT_NODE) {
@@ -264,9 +288,16 @@ public class Configuration {
 						messagesTable.put(message.id, message);
 						elementsTable.put(message.id, message);
 					}
+					else if (childElement.getTagName().equals("workflow")) {
+						workflowRules = new WorkflowRules(childElement);
+					}
+					else if (childElement.getTagName().equals("retries")) {
+						retryPolicies = new RetryPolicies(childElement);
+					}
 				}
 				child = child.getNextSibling();
 			}
+			RateLimiter.endLoading();
 		}
 		System.out.println("Load done");
 	}
@@ -303,6 +334,37 @@ public class Configuration {
 		registrationDatabase.save();
 	}
 
+	//Set the sizes of the ProcessingEngine's worker pools
+	//from the attributes of the config element.
+	private void setPoolSizes(Element el) {
+		ProcessingEngine engine = ProcessingEngine.getInstance();
+		for (int i=0; i<ProcessingEngine.poolNames.length; i++) {
+			String name = ProcessingEngine.poolNames[i];
+			int size = getInt(el, name+"Threads", ProcessingEngine.defaultPoolSize);
+			if (size < 1) size = ProcessingEngine.defaultPoolSize;
+			poolSizes.put(name, size);
+			engine.setPoolSize(name, size);
+		}
+	}
+
+	//Get the number of worker threads for a Product class
+	public int getPoolSize(String name) {
+		Integer size = poolSizes.get(name);
+		return (size != null) ? size.intValue() : ProcessingEngine.defaultPoolSize;
+	}
+
+	//Get the ordering rules for the steps of registration workflows
+	public WorkflowRules getWorkflowRules() {
+		if (workflowRules == null) workflowRules = new WorkflowRules(null);
+		return workflowRules;
+	}
+
+	//Get the retry policies for the steps of registration workflows
+	public RetryPolicies getRetryPolicies() {
+		if (retryPolicies == null) retryPolicies = new RetryPolicies(null);
+		return retryPolicies;
+	}
+
 	public boolean getAskOnClose() {
 		return askOnClose;
 	}
@@ -357,7 +419,7 @@ public class Configuration {
 	}
 
 	//Create a new UID.
-	public String getUID() {
+	public synchronized String getUID() {
 		return uidRoot + uidSubroot + uidCount++;
 	}
 
@@ -368,7 +430,7 @@ public class Configuration {
 	}
 
 	//Create a new Accession Number.
-	public String getAccessionNumber() {
+	public synchronized String getAccessionNumber() {
 		//return "IHE" + uidSubroot + "0";
 		return "IHE" + uidSubroot + accCount++;
 	}
@@ -384,8 +446,9 @@ public class Configuration {
 		return s;
 	}
 
-	//Create an HL7 message control ID
-	public String getMessageControlID() {
+	//Create an HL7 message control ID. The IDs must be unique
+	//because they identify the responses to pipelined messages.
+	public synchronized String getMessageControlID() {
 		String s = Integer.toString(++cidCount);
 		if (s.length() < 8) s = "00000000" + s;
 		s = s.substring(s.length()-8, s.length());
@@ -691,6 +754,7 @@ public class Configuration {
 				ehrsystemsTable.remove(id);
 				dcmsystemsTable.remove(id);
 				elementsTable.remove(id);
+				RateLimiter.removeRates(id);
 				hasChanged = true;
 				logEvent("Element "+id+" deleted by "+username);
 				return "OK";
@@ -758,6 +822,10 @@ public class Configuration {
 					n = server.getOwnerDocument().importNode(n, true);
 					server.appendChild(n);
 				}
+				Element workflow = getWorkflowRules().getXML(server.getOwnerDocument());
+				if (workflow != null) server.appendChild(workflow);
+				Element retries = getRetryPolicies().getXML(server.getOwnerDocument());
+				if (retries != null) server.appendChild(retries);
 				String xml = XmlUtil.toPrettyString(server);
 				FileUtil.setText(file, xml);
 				hasChanged = true;
@@ -793,6 +861,23 @@ public class Configuration {
 				senderDeviceId = el.getAttribute("senderDeviceId");
 				senderDeviceName = el.getAttribute("senderDeviceName");
 				askOnClose = !el.getAttribute("askOnClose").equals("no");
+				setPoolSizes(el);
+				ProcessingEngine.getInstance().setBackpressure(el.getAttribute("backpressure"));
+				ProcessingEngine.getInstance().setExecutionMode(el.getAttribute("executionMode"));
+				ProcessingEngine.getInstance().setJournaling(!el.getAttribute("journal").equals("no"));
+				CircuitBreaker.setParameters(
+					getInt(el, "breakerThreshold", CircuitBreaker.defaultThreshold),
+					getInt(el, "breakerProbeInterval", CircuitBreaker.defaultProbeInterval));
+				MLLPConnectionPool.setParameters(
+					getInt(el, "hl7IdleTimeout", MLLPConnectionPool.defaultIdleTimeout),
+					getInt(el, "hl7MaxIdleConnections", MLLPConnectionPool.defaultMaxIdle),
+					getInt(el, "hl7MaxConnections", MLLPConnectionPool.defaultMaxConnections));
+				MLLPConnectionPool.setPipelineLanes(
+					getInt(el, "hl7PipelineLanes", MLLPConnectionPool.defaultPipelineLanes));
+				HL7Archive.getInstance().setEnabled(el.getAttribute("hl7Archive").equals("yes"));
+				DicomAssociationPool.setParameters(
+					getInt(el, "dcmIdleTimeout", DicomAssociationPool.defaultIdleTimeout),
+					getInt(el, "dcmMaxAssociations", DicomAssociationPool.defaultMaxAssociations));
 			}
 			else if (name.equals("registry")) {
 				Registry x = new Registry(el);
@@ -901,6 +986,24 @@ public class Configuration {
 		sb.append("<tr><td>UID Root:</td><td>"+uidRoot+"</td></tr>");
 		sb.append("<tr><td>senderDeviceId:</td><td>"+senderDeviceId+"</td></tr>");
 		sb.append("<tr><td>senderDeviceName:</td><td>"+senderDeviceName+"</td></tr>");
+		for (int i=0; i<ProcessingEngine.poolNames.length; i++) {
+			String name = ProcessingEngine.poolNames[i];
+			sb.append("<tr><td>"+name+" threads:</td><td>"+getPoolSize(name)+"</td></tr>");
+		}
+		sb.append("<tr><td>Backpressure:</td><td>"+ProcessingEngine.getInstance().getBackpressure()+"</td></tr>");
+		sb.append("<tr><td>Execution Mode:</td><td>"+ProcessingEngine.getInstance().getExecutionMode()+"</td></tr>");
+		sb.append("<tr><td>Journal:</td><td>"+ConfigElement.yesNo(ProcessingEngine.getInstance().isJournaling())+"</td></tr>");
+		sb.append("<tr><td>Circuit Breaker Threshold:</td><td>"+CircuitBreaker.getThreshold()+"</td></tr>");
+		sb.append("<tr><td>Circuit Breaker Probe Interval (ms):</td><td>"+CircuitBreaker.getProbeInterval()+"</td></tr>");
+		sb.append("<tr><td>HL7 Idle Connection Timeout (ms):</td><td>"+MLLPConnectionPool.getIdleTimeout()+"</td></tr>");
+		sb.append("<tr><td>HL7 Idle Connections per System:</td><td>"+MLLPConnectionPool.getMaxIdle()+"</td></tr>");
+		sb.append("<tr><td>HL7 Connections per System:</td><td>"+MLLPConnectionPool.getMaxConnections()+"</td></tr>");
+		sb.append("<tr><td>HL7 Pipelined Connections per System:</td><td>"+MLLPConnectionPool.getPipelineLanes()+"</td></tr>");
+		sb.append("<tr><td>HL7 Archive:</td><td>"+ConfigElement.yesNo(HL7Archive.getInstance().isEnabled())+"</td></tr>");
+		sb.append("<tr><td>DICOM Idle Association Timeout (ms):</td><td>"+DicomAssociationPool.getIdleTimeout()+"</td></tr>");
+		sb.append("<tr><td>DICOM Associations per System:</td><td>"+DicomAssociationPool.getMaxAssociations()+"</td></tr>");
+		getWorkflowRules().appendTableRows(sb);
+		getRetryPolicies().appendTableRows(sb);
 		PIXMgr[] pixmgrs = getPIXMgrs();
 		for (int i=0; i<pixmgrs.length; i++) {
 			if (pixmgrs[i].id.toLowerCase().contains(filter))
@@ -1099,6 +1202,22 @@ public class Configuration {
 			e.setAttribute("senderDeviceId", senderDeviceId);
 			e.setAttribute("senderDeviceName", senderDeviceName);
 			e.setAttribute("askOnClose", ConfigElement.yesNo(askOnClose));
+			for (int i=0; i<ProcessingEngine.poolNames.length; i++) {
+				String name = ProcessingEngine.poolNames[i];
+				e.setAttribute(name+"Threads", Integer.toString(getPoolSize(name)));
+			}
+			e.setAttribute("backpressure", ProcessingEngine.getInstance().getBackpressure());
+			e.setAttribute("executionMode", ProcessingEngine.getInstance().getExecutionMode());
+			e.setAttribute("journal", ConfigElement.yesNo(ProcessingEngine.getInstance().isJournaling()));
+			e.setAttribute("breakerThreshold", Integer.toString(CircuitBreaker.getThreshold()));
+			e.setAttribute("breakerProbeInterval", Integer.toString(CircuitBreaker.getProbeInterval()));
+			e.setAttribute("hl7IdleTimeout", Integer.toString(MLLPConnectionPool.getIdleTimeout()));
+			e.setAttribute("hl7MaxIdleConnections", Integer.toString(MLLPConnectionPool.getMaxIdle()));
+			e.setAttribute("hl7MaxConnections", Integer.toString(MLLPConnectionPool.getMaxConnections()));
+			e.setAttribute("hl7PipelineLanes", Integer.toString(MLLPConnectionPool.getPipelineLanes()));
+			e.setAttribute("hl7Archive", ConfigElement.yesNo(HL7Archive.getInstance().isEnabled()));
+			e.setAttribute("dcmIdleTimeout", Integer.toString(DicomAssociationPool.getIdleTimeout()));
+			e.setAttribute("dcmMaxAssociations", Integer.toString(DicomAssociationPool.getMaxAssociations()));
 			return e;
 		}
 		catch (Exception ex) { return null; }
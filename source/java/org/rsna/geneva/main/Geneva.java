@@ -97,6 +97,7 @@ public class Geneva extends JFrame implements RegSysListener {
 		eventLog = new EventLog(config.getLogDepth());
 		eventLog.addRegSysListener(this);
 		config.setEventLog(eventLog);
+		ProcessingEngine.getInstance().start();
 
 		setTitle(windowTitle + " - version " + version);
 		addWindowListener(new WindowCloser(this,config.getAskOnClose()));
@@ -143,8 +144,12 @@ public class Geneva extends JFrame implements RegSysListener {
 		selector.addServlet("editor",		ConfigEditorServlet.class);
 		selector.addServlet("controlpanel",	ControlPanelServlet.class);
 		selector.addServlet("dashboard",	DashboardServlet.class);
+		selector.addServlet("deadletters",	DeadLetterServlet.class);
 		selector.addServlet("pdq",			PDQServlet.class);
 		selector.addServlet("registration",	RegistrationServlet.class);
+		selector.addServlet("bulkregistration",BulkRegistrationServlet.class);
+		selector.addServlet("jobs",			JobServlet.class);
+		selector.addServlet("archive",		HL7ArchiveServlet.class);
 
 		return selector;
 	}
@@ -262,6 +267,7 @@ public class Geneva extends JFrame implements RegSysListener {
 												"Are you sure you want to stop the program?",
 												"Are you sure?",
 												JOptionPane.YES_NO_OPTION))) {
+				ProcessingEngine.getInstance().flush();
 				Logger.getLogger(Geneva.class).info("Normal Shutdown\n\n");
 				System.exit(0);
 			}
@@ -0,0 +1,316 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.rsna.geneva.main.Configuration;
+import org.w3c.dom.Element;
+
+/**
+ * Submits a batch of registrations to the ProcessingEngine, keeping at
+ * most a fixed number of them in progress at once and, optionally,
+ * submitting no more than a fixed number per second. It counts the
+ * registrations as they are submitted and completed, and it records the
+ * time taken by each step, by destination, for the final report.
+ */
+public class BatchProcessor implements Workflow.Listener {
+
+	static final Logger logger = Logger.getLogger(BatchProcessor.class);
+
+	static final int maxFailures = 1000;
+
+	final int concurrency;
+	final double rate;
+	final long period;
+	final Semaphore slots;
+	long next;
+	long startTime;
+	int total = 0;
+
+	AtomicInteger submitted = new AtomicInteger(0);
+	AtomicInteger completed = new AtomicInteger(0);
+	AtomicInteger invalid = new AtomicInteger(0);
+	AtomicInteger failed = new AtomicInteger(0);
+	Hashtable<String,Latencies> latencies = new Hashtable<String,Latencies>();
+	LinkedList<String> failures = new LinkedList<String>();
+
+	/**
+	 * Create a BatchProcessor.
+	 * @param concurrency the maximum number of registrations in progress at once.
+	 * @param rate the maximum number of registrations submitted per second,
+	 * or zero for no limit.
+	 */
+	public BatchProcessor(int concurrency, double rate) {
+		this.concurrency = Math.max(concurrency, 1);
+		this.rate = Math.max(rate, 0.0);
+		this.period = (rate > 0) ? (long)(1.0e9 / rate) : 0L;
+		this.slots = new Semaphore(this.concurrency);
+		this.startTime = System.currentTimeMillis();
+		this.next = System.nanoTime();
+	}
+
+	/**
+	 * Set the number of registrations in the batch, if it is known,
+	 * for the estimate of the time remaining.
+	 */
+	public void setTotal(int total) {
+		this.total = total;
+	}
+
+	/**
+	 * Submit a registration, waiting until a slot is free
+	 * and the rate limit, if any, allows it.
+	 * @param regElement the registration element.
+	 * @return true if the registration was submitted; false if it is invalid.
+	 */
+	public boolean submit(Element regElement) throws InterruptedException {
+		return submit(new Registration(regElement));
+	}
+
+	/**
+	 * Submit a registration, waiting until a slot is free
+	 * and the rate limit, if any, allows it.
+	 * @return true if the registration was submitted; false if it is invalid.
+	 */
+	public boolean submit(Registration reg) throws InterruptedException {
+		if (!validateInput(reg)) {
+			invalid.incrementAndGet();
+			return false;
+		}
+		slots.acquire();
+		try {
+			if (period > 0) {
+				long wait;
+				synchronized (this) {
+					long now = System.nanoTime();
+					wait = next - now;
+					next = Math.max(next, now - period) + period;
+				}
+				if (wait > 0) Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+			}
+			Workflow workflow = process(reg);
+			submitted.incrementAndGet();
+			workflow.addListener(this);
+			return true;
+		}
+		catch (InterruptedException ex) {
+			slots.release();
+			throw ex;
+		}
+	}
+
+	private boolean validateInput(Registration reg) {
+		return !reg.globalID.equals("") && !reg.familyName.equals("");
+	}
+
+	//Start the processing of a registration.
+	private Workflow process(Registration reg) throws InterruptedException {
+		Configuration config = Configuration.getInstance();
+
+		//See if the registration already exists.
+		RegistrationDatabase rdb = config.getRegistrationDatabase();
+		Registration regx = rdb.lookup(reg.globalID);
+		//If the registration already exists, use the data from the
+		//database in order not to confuse any of the systems.
+		if (regx != null) reg = regx;
+
+		//Set the local IDs.
+		//This must be done even if the registration came from the database
+		//because the configuration may have changed and some localIDs may
+		//be missing.
+		reg.assignLocalIDs(config);
+
+		//Wait for space in the dispatch queues.
+		ProcessingEngine engine = ProcessingEngine.getInstance();
+		while (!engine.hasCapacity()) Thread.sleep(1000);
+
+		//Add the registration to the database
+		rdb.add(reg);
+
+		//Start the processing workflow.
+		return engine.process(reg);
+	}
+
+	/**
+	 * The Workflow.Listener implementation. Record the
+	 * steps of the Workflow and free its slot.
+	 */
+	public void workflowComplete(Workflow workflow) {
+		try {
+			boolean ok = true;
+			Workflow.Step[] steps = workflow.getSteps();
+			for (int i=0; i<steps.length; i++) {
+				Workflow.Step step = steps[i];
+				String key = step.product.id + ":" + step.name;
+				Latencies lat;
+				synchronized (latencies) {
+					lat = latencies.get(key);
+					if (lat == null) {
+						lat = new Latencies();
+						latencies.put(key, lat);
+					}
+				}
+				lat.add(step.getElapsed(), step.isSucceeded());
+				if (!step.isSucceeded()) {
+					ok = false;
+					synchronized (failures) {
+						if (failures.size() < maxFailures) {
+							failures.add(step.key + " (" + workflow.reg.globalID + "): " + step.getFailure());
+						}
+					}
+				}
+			}
+			if (!ok) failed.incrementAndGet();
+		}
+		finally {
+			completed.incrementAndGet();
+			slots.release();
+		}
+	}
+
+	/**
+	 * Wait until all the registrations submitted are complete.
+	 */
+	public void waitForCompletion() throws InterruptedException {
+		slots.acquire(concurrency);
+		slots.release(concurrency);
+	}
+
+	public int getSubmitted() {
+		return submitted.get();
+	}
+
+	public int getCompleted() {
+		return completed.get();
+	}
+
+	public int getInvalid() {
+		return invalid.get();
+	}
+
+	/**
+	 * Get the number of completed registrations with at least one failed step.
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Get the time since the batch started (ms).
+	 */
+	public long getElapsedTime() {
+		return System.currentTimeMillis() - startTime;
+	}
+
+	/**
+	 * Get the progress line: the registrations submitted and completed,
+	 * the throughput since the batch started, and the estimated time remaining.
+	 */
+	public String getProgress() {
+		int sub = submitted.get();
+		int done = completed.get();
+		int skipped = invalid.get();
+		double sec = Math.max(getElapsedTime() / 1000.0, 0.001);
+		double throughput = done / sec;
+		String eta = "--";
+		if (total > 0) {
+			int remaining = total - skipped - done;
+			if (remaining <= 0) eta = "0:00";
+			else if (throughput > 0) {
+				long s = (long)Math.ceil(remaining / throughput);
+				eta = (s / 60) + ":" + String.format("%02d", s % 60);
+			}
+		}
+		return "Submitted: "+sub+((total > 0) ? "/"+total : "")
+				+ "    Completed: "+done
+				+ "    In progress: "+(sub - done)
+				+ ((skipped > 0) ? "    Invalid: "+skipped : "")
+				+ "    Throughput: "+String.format("%.2f", throughput)+"/sec"
+				+ "    ETA: "+eta;
+	}
+
+	/**
+	 * Get a plain-text report of the batch: the counts, the latency
+	 * percentiles of the steps for each destination, and the failures.
+	 */
+	public String getReport() {
+		double sec = getElapsedTime() / 1000.0;
+		int done = completed.get();
+		StringBuffer sb = new StringBuffer();
+		sb.append("Registrations submitted: "+submitted.get()+"\n");
+		sb.append("Registrations completed: "+done+"\n");
+		sb.append("Registrations with failures: "+failed.get()+"\n");
+		sb.append("Invalid registrations: "+invalid.get()+"\n");
+		sb.append(String.format("Elapsed time: %.1f sec\n", sec));
+		sb.append(String.format("Throughput: %.2f registrations/sec\n", (sec > 0) ? done / sec : 0.0));
+		sb.append("\n");
+
+		String[] keys;
+		synchronized (latencies) {
+			keys = latencies.keySet().toArray(new String[latencies.size()]);
+		}
+		Arrays.sort(keys);
+		int width = 20;
+		for (int i=0; i<keys.length; i++) width = Math.max(width, keys[i].length());
+		String format = "%-"+width+"s %8s %8s %8s %8s %8s %8s\n";
+		sb.append(String.format(format, "Destination:Step", "Count", "Failed", "p50 ms", "p90 ms", "p99 ms", "Max ms"));
+		for (int i=0; i<keys.length; i++) {
+			Latencies lat = latencies.get(keys[i]);
+			synchronized (lat) {
+				sb.append(String.format(format,
+							keys[i],
+							Integer.toString(lat.count),
+							Integer.toString(lat.failed),
+							Long.toString(lat.getPercentile(50)),
+							Long.toString(lat.getPercentile(90)),
+							Long.toString(lat.getPercentile(99)),
+							Long.toString(lat.getPercentile(100))));
+			}
+		}
+
+		synchronized (failures) {
+			if (failures.size() > 0) {
+				sb.append("\nFailures");
+				if (failures.size() >= maxFailures) sb.append(" (first "+maxFailures+")");
+				sb.append(":\n");
+				for (String f : failures) sb.append("  "+f+"\n");
+			}
+		}
+		return sb.toString();
+	}
+
+	//The times taken by the steps for one destination.
+	static class Latencies {
+		long[] values = new long[64];
+		int count = 0;
+		int failed = 0;
+		boolean sorted = true;
+
+		synchronized void add(long value, boolean ok) {
+			if (count == values.length) values = Arrays.copyOf(values, count * 2);
+			values[count++] = value;
+			if (!ok) failed++;
+			sorted = false;
+		}
+
+		//Get a percentile by the nearest-rank method.
+		synchronized long getPercentile(int p) {
+			if (count == 0) return 0;
+			if (!sorted) {
+				Arrays.sort(values, 0, count);
+				sorted = true;
+			}
+			int rank = (int)Math.ceil(p / 100.0 * count);
+			return values[Math.min(Math.max(rank, 1), count) - 1];
+		}
+	}
+
+}
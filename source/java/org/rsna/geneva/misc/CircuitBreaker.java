@@ -0,0 +1,297 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+import org.rsna.geneva.main.Configuration;
+import org.rsna.util.StringUtil;
+
+/**
+ * A circuit breaker for one destination URL (an hl7URL, dcmURL, or soapURL).
+ * The breaker is closed while the destination is working. After a number
+ * of consecutive connection failures, it opens, and transactions for the
+ * destination fail immediately instead of waiting for their timeouts.
+ * While the breaker is open, a probe attempts a TCP connection to the
+ * destination periodically. When a probe succeeds, the breaker is half-open:
+ * one trial transaction is allowed through, and its outcome closes or
+ * reopens the breaker.
+ */
+public class CircuitBreaker {
+
+	static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+	public static final int CLOSED		= 0;
+	public static final int OPEN		= 1;
+	public static final int HALF_OPEN	= 2;
+
+	static final String[] stateNames = { "closed", "open", "half-open" };
+
+	public static final String OPEN_RESPONSE = "Error: Circuit open";
+
+	public static final int defaultThreshold = 5;
+	public static final int defaultProbeInterval = 10000;
+	static final int probeTimeout = 3000;
+
+	static int threshold = defaultThreshold;
+	static int probeInterval = defaultProbeInterval;
+	static Hashtable<String,CircuitBreaker> breakers = new Hashtable<String,CircuitBreaker>();
+	static ScheduledExecutorService prober = null;
+
+	public final String url;
+	int state = CLOSED;
+	int failures = 0;
+	long changed = System.currentTimeMillis();
+	long trialStart = 0;
+	boolean probing = false;
+
+	/**
+	 * Get the breaker for a URL, creating it if necessary.
+	 */
+	public static CircuitBreaker getInstance(String url) {
+		url = (url != null) ? url.trim() : "";
+		synchronized (breakers) {
+			CircuitBreaker breaker = breakers.get(url);
+			if (breaker == null) {
+				breaker = new CircuitBreaker(url);
+				breakers.put(url, breaker);
+			}
+			return breaker;
+		}
+	}
+
+	protected CircuitBreaker(String url) {
+		this.url = url;
+	}
+
+	/**
+	 * Set the parameters for all breakers.
+	 * @param threshold the number of consecutive failures that opens
+	 * a breaker, or zero to disable the breakers.
+	 * @param probeInterval the time between probes of an open destination (ms).
+	 */
+	public static void setParameters(int threshold, int probeInterval) {
+		CircuitBreaker.threshold = Math.max(threshold, 0);
+		CircuitBreaker.probeInterval = (probeInterval > 0) ? probeInterval : defaultProbeInterval;
+	}
+
+	public static int getThreshold() {
+		return threshold;
+	}
+
+	public static int getProbeInterval() {
+		return probeInterval;
+	}
+
+	/**
+	 * Determine whether a transaction may be sent to the destination.
+	 * In the half-open state, only one trial transaction is allowed
+	 * until its outcome is recorded or the probe interval expires.
+	 */
+	public synchronized boolean allowRequest() {
+		if ((threshold == 0) || (state == CLOSED)) return true;
+		if (state == OPEN) return false;
+		long now = System.currentTimeMillis();
+		if (now - trialStart < probeInterval) return false;
+		trialStart = now;
+		return true;
+	}
+
+	/**
+	 * Throw an OpenException if a transaction may not be sent to the destination.
+	 */
+	public void check() throws OpenException {
+		if (!allowRequest()) throw new OpenException(url);
+	}
+
+	/**
+	 * Determine whether the breaker is open.
+	 */
+	public synchronized boolean isOpen() {
+		return (threshold > 0) && (state == OPEN);
+	}
+
+	public synchronized int getState() {
+		return state;
+	}
+
+	public synchronized String getStateName() {
+		return stateNames[state];
+	}
+
+	/**
+	 * Record a successful connection to the destination.
+	 */
+	public void recordSuccess() {
+		boolean closed = false;
+		synchronized (this) {
+			failures = 0;
+			if (state != CLOSED) {
+				setState(CLOSED);
+				closed = true;
+			}
+		}
+		if (closed) logEvent(RegSysEvent.STATUS_OK, "Circuit closed for "+url);
+	}
+
+	/**
+	 * Record a failure to connect to the destination.
+	 */
+	public void recordFailure() {
+		boolean opened = false;
+		synchronized (this) {
+			failures++;
+			if ((threshold > 0) && (state != OPEN)
+					&& ((state == HALF_OPEN) || (failures >= threshold))) {
+				setState(OPEN);
+				opened = true;
+			}
+		}
+		if (opened) {
+			logEvent(RegSysEvent.STATUS_CIRCUIT_OPEN,
+					 "Circuit opened for "+url+" after "+failures+" failure"+((failures!=1)?"s":""));
+			scheduleProbe();
+		}
+	}
+
+	private void setState(int state) {
+		this.state = state;
+		changed = System.currentTimeMillis();
+		trialStart = 0;
+	}
+
+	//Schedule a probe of the destination.
+	private void scheduleProbe() {
+		synchronized (this) {
+			if (probing) return;
+			probing = true;
+		}
+		getProber().schedule(
+			new Runnable() {
+				public void run() { probe(); }
+			},
+			probeInterval, TimeUnit.MILLISECONDS);
+	}
+
+	//Try to connect to the destination. If the connection succeeds,
+	//make the breaker half-open; otherwise, schedule another probe.
+	private void probe() {
+		synchronized (this) {
+			probing = false;
+			if (state != OPEN) return;
+		}
+		boolean ok = false;
+		Socket socket = new Socket();
+		try {
+			socket.connect(getAddress(), probeTimeout);
+			ok = true;
+		}
+		catch (Exception ex) { }
+		finally {
+			try { socket.close(); }
+			catch (Exception ignore) { }
+		}
+		synchronized (this) {
+			if (ok && (state == OPEN)) setState(HALF_OPEN);
+		}
+		if (ok) logger.info("Probe succeeded for "+url+"; circuit half-open");
+		else scheduleProbe();
+	}
+
+	//Get the address of the destination from its URL.
+	private InetSocketAddress getAddress() throws Exception {
+		URI uri = new URI(url);
+		int port = uri.getPort();
+		if (port < 0) port = "https".equals(uri.getScheme()) ? 443 : 80;
+		return new InetSocketAddress(uri.getHost(), port);
+	}
+
+	private static synchronized ScheduledExecutorService getProber() {
+		if (prober == null)
+			prober = Executors.newSingleThreadScheduledExecutor(
+						new ProcessingEngine.WorkerFactory("breaker-probe"));
+		return prober;
+	}
+
+	private void logEvent(int status, String text) {
+		logger.info(text);
+		try {
+			Configuration.getInstance().getEventLog().append(
+				new RegSysEvent(this, status, RegSysEvent.TYPE_STATUS, text));
+		}
+		catch (Exception ex) { }
+	}
+
+	/**
+	 * Get the name of the worst state of the breakers for a set of URLs.
+	 * @return "open", "half-open", or "closed".
+	 */
+	public static String getStateName(String[] urls) {
+		int worst = CLOSED;
+		for (int i=0; i<urls.length; i++) {
+			CircuitBreaker breaker = breakers.get(urls[i].trim());
+			if (breaker != null) {
+				int s = breaker.getState();
+				if ((s == OPEN) || ((s == HALF_OPEN) && (worst == CLOSED))) worst = s;
+			}
+		}
+		return stateNames[worst];
+	}
+
+	/**
+	 * Append a table of the breakers that have recorded failures to a page,
+	 * or a note that all the circuits are closed.
+	 */
+	public static void appendTable(StringBuffer sb) {
+		CircuitBreaker[] list;
+		synchronized (breakers) {
+			list = breakers.values().toArray(new CircuitBreaker[breakers.size()]);
+		}
+		Arrays.sort(list,
+			new Comparator<CircuitBreaker>() {
+				public int compare(CircuitBreaker a, CircuitBreaker b) {
+					return a.url.compareTo(b.url);
+				}
+			});
+		StringBuffer rows = new StringBuffer();
+		for (int i=0; i<list.length; i++) {
+			CircuitBreaker b = list[i];
+			synchronized (b) {
+				if ((b.state == CLOSED) && (b.failures == 0)) continue;
+				String color = (b.state == OPEN) ? "red" : ((b.state == HALF_OPEN) ? "maroon" : "black");
+				rows.append("<tr><td>"+StringUtil.displayable(b.url)+"</td>"
+							+ "<td><font color=\""+color+"\">"+stateNames[b.state]+"</font></td>"
+							+ "<td>"+b.failures+"</td>"
+							+ "<td>"+StringUtil.getDateTime(b.changed, " ")+"</td></tr>\n");
+			}
+		}
+		if (rows.length() == 0) {
+			sb.append("<p>All circuits are closed.</p>\n");
+			return;
+		}
+		sb.append("<table border=\"1\">\n");
+		sb.append("<tr><td><b>Destination</b></td><td><b>Circuit</b></td>"
+					+ "<td><b>Failures</b></td><td><b>Since</b></td></tr>\n");
+		sb.append(rows);
+		sb.append("</table>\n");
+	}
+
+	/**
+	 * The exception thrown when a transaction is refused by an open breaker.
+	 */
+	public static class OpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+		public OpenException(String url) {
+			super("Circuit open for "+url);
+		}
+	}
+
+}
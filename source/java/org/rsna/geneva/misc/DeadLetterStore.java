@@ -0,0 +1,231 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.io.*;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.geneva.elements.Product;
+import org.rsna.geneva.main.Configuration;
+import org.rsna.util.FileUtil;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The store of Workflow steps which failed on every attempt allowed by
+ * their retry policy. Each dead letter is an XML file in the deadletters
+ * directory containing the registration, the key of the failed step,
+ * and the keys of the steps which were skipped because it failed:
+ * <pre>
+ *   &lt;deadletter system="..." step="..." workflow="..." attempts="..." time="..." reason="..."&gt;
+ *     &lt;registration&gt;...&lt;/registration&gt;
+ *     &lt;skipped step="..."/&gt;
+ *   &lt;/deadletter&gt;
+ * </pre>
+ * A dead letter can be replayed, which starts a new Workflow containing
+ * the failed step and the skipped steps, and removes the dead letter.
+ */
+public class DeadLetterStore {
+
+	static final Logger logger = Logger.getLogger(DeadLetterStore.class);
+
+	public static final File deadLetterDir = new File("deadletters");
+
+	static DeadLetterStore store = null;
+	static int count = 0;
+
+	/**
+	 * Get the singleton instance of the DeadLetterStore.
+	 */
+	public static synchronized DeadLetterStore getInstance() {
+		if (store == null) store = new DeadLetterStore();
+		return store;
+	}
+
+	protected DeadLetterStore() { }
+
+	/**
+	 * Save a failed step.
+	 * @param step the step.
+	 * @param attempts the number of attempts made.
+	 * @param reason the reason for the last failure.
+	 * @param skipped the steps which were skipped because the step failed.
+	 * @return true if the step was saved; false otherwise.
+	 */
+	public boolean add(Workflow.Step step, int attempts, String reason, List<Workflow.Step> skipped) {
+		Registration reg = step.getWorkflow().reg;
+		try {
+			Document doc = XmlUtil.getDocument();
+			Element root = doc.createElement("deadletter");
+			root.setAttribute("system", step.product.id);
+			root.setAttribute("step", step.key);
+			root.setAttribute("workflow", step.getWorkflow().id);
+			root.setAttribute("attempts", Integer.toString(attempts));
+			root.setAttribute("time", Long.toString(System.currentTimeMillis()));
+			root.setAttribute("reason", (reason != null) ? reason : "");
+			root.appendChild(reg.toElement(doc));
+			for (Workflow.Step s : skipped) {
+				Element e = doc.createElement("skipped");
+				e.setAttribute("step", s.key);
+				root.appendChild(e);
+			}
+			doc.appendChild(root);
+			deadLetterDir.mkdirs();
+			FileUtil.setText(new File(deadLetterDir, getName()), XmlUtil.toString(doc));
+			return true;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to save the dead letter for "+step.key+" ("+reg.globalID+")", ex);
+			return false;
+		}
+	}
+
+	private static synchronized String getName() {
+		String n = Integer.toString(++count % 1000000);
+		n = "000000".substring(n.length()) + n;
+		return "DL" + System.currentTimeMillis() + "-" + n + ".xml";
+	}
+
+	/**
+	 * Get the dead letters, oldest first.
+	 */
+	public Entry[] getEntries() {
+		LinkedList<Entry> list = new LinkedList<Entry>();
+		File[] files = deadLetterDir.listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (int i=0; i<files.length; i++) {
+				try { list.add(new Entry(files[i])); }
+				catch (Exception ex) {
+					logger.warn("Unreadable dead letter: "+files[i]);
+				}
+			}
+		}
+		return list.toArray(new Entry[list.size()]);
+	}
+
+	/**
+	 * Get the number of dead letters.
+	 */
+	public int size() {
+		File[] files = deadLetterDir.listFiles();
+		return (files != null) ? files.length : 0;
+	}
+
+	/**
+	 * Replay dead letters.
+	 * @param names the names of the dead letters to replay,
+	 * or null to replay them all.
+	 * @return the number of dead letters replayed.
+	 */
+	public int replay(Collection<String> names) {
+		int n = 0;
+		Entry[] entries = getEntries();
+		for (int i=0; i<entries.length; i++) {
+			if ((names == null) || names.contains(entries[i].name)) {
+				if (entries[i].replay()) n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Delete dead letters.
+	 * @param names the names of the dead letters to delete.
+	 * @return the number of dead letters deleted.
+	 */
+	public int delete(Collection<String> names) {
+		int n = 0;
+		for (String name : names) {
+			File file = new File(deadLetterDir, new File(name).getName());
+			if (file.exists() && file.delete()) n++;
+		}
+		return n;
+	}
+
+	/**
+	 * One dead letter.
+	 */
+	public class Entry {
+		public final File file;
+		public final String name;
+		public final String system;
+		public final String step;
+		public final String workflow;
+		public final int attempts;
+		public final long time;
+		public final String reason;
+		public final Registration reg;
+		public final List<String> skipped = new LinkedList<String>();
+
+		public Entry(File file) throws Exception {
+			this.file = file;
+			this.name = file.getName();
+			Element root = XmlUtil.getDocument(file).getDocumentElement();
+			system = root.getAttribute("system");
+			step = root.getAttribute("step");
+			workflow = root.getAttribute("workflow");
+			int a;
+			try { a = Integer.parseInt(root.getAttribute("attempts")); }
+			catch (Exception ex) { a = 0; }
+			attempts = a;
+			long t;
+			try { t = Long.parseLong(root.getAttribute("time")); }
+			catch (Exception ex) { t = file.lastModified(); }
+			time = t;
+			reason = root.getAttribute("reason");
+			Registration r = null;
+			Node child = root.getFirstChild();
+			while (child != null) {
+				if (child.getNodeType() == Node.ELEMENT_NODE) {
+					Element e = (Element)child;
+					if (e.getTagName().equals("skipped")) skipped.add(e.getAttribute("step"));
+					else if (r == null) r = new Registration(e);
+				}
+				child = child.getNextSibling();
+			}
+			if (r == null) throw new Exception("Missing registration");
+			reg = r;
+		}
+
+		/**
+		 * Start a new Workflow containing the failed step, the steps which
+		 * were skipped because it failed, and the steps which share state
+		 * with them (for a step of a Study, all the steps of the Study, so
+		 * the orders, images, and KOS match), and delete the dead letter.
+		 * The skipped steps wait for the failed step as they did before.
+		 * Steps of systems that are no longer in the configuration are dropped.
+		 * @return true if the step was started; false if its system
+		 * is no longer in the configuration.
+		 */
+		public boolean replay() {
+			Configuration config = Configuration.getInstance();
+			Object product = config.getConfigElement(system);
+			if (!(product instanceof Product)) return false;
+			LinkedList<Product> list = new LinkedList<Product>();
+			list.add((Product)product);
+			for (String key : skipped) {
+				int k = key.indexOf(":");
+				Object p = config.getConfigElement((k > 0) ? key.substring(0, k) : key);
+				if ((p instanceof Product) && !list.contains(p)) list.add((Product)p);
+			}
+			LinkedList<String> keys = new LinkedList<String>(skipped);
+			keys.addFirst(step);
+			ProcessingEngine engine = ProcessingEngine.getInstance();
+			Workflow wf = engine.createWorkflow(reg, list.toArray(new Product[list.size()]));
+			wf.restrictToGroups(keys);
+			if (wf.getSteps().length == 0) return false;
+			file.delete();
+			engine.start(wf);
+			return true;
+		}
+	}
+
+}
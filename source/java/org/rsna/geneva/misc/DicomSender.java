@@ -18,8 +18,8 @@ import java.net.Socket;
 import java.security.GeneralSecurityException;
 import java.text.MessageFormat;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -49,6 +49,7 @@ import org.dcm4che.net.Association;
 import org.dcm4che.net.AssociationFactory;
 import org.dcm4che.net.DataSource;
 import org.dcm4che.net.Dimse;
+import org.dcm4che.net.DimseListener;
 import org.dcm4che.net.PDU;
 import org.dcm4che.net.PresContext;
 import org.dcm4che.util.DcmURL;
@@ -57,10 +58,26 @@ import org.rsna.geneva.objects.DicomObject;
 
 /**
   * Class to make DICOM associations and transmit instances over them.
+  * The association proposes presentation contexts for all the objects
+  * in the set supplied with setPresContexts (typically a whole study).
+  * It is kept open between objects, and is only replaced when it has no
+  * accepted presentation context for the next object. If the set has
+  * more contexts than one association can propose, it is divided into
+  * parts, and an association is opened with the part that includes
+  * the next object.
+  * <p>
+  * If a StoreListener is supplied, C-STOREs are sent asynchronously:
+  * up to the asynchronous operations window negotiated for the URL
+  * are outstanding at once, and the result of each is delivered to the
+  * listener when its response arrives.
+  * Senders are normally obtained from the DicomAssociationPool, so the
+  * association can also be used for later transfers to the same URL.
   */
 public class DicomSender {
 
     private static final String[] DEF_TS = { UIDs.ImplicitVRLittleEndian };
+    private static final int maxPCID = 255;
+    private static final int maxContexts = (maxPCID + 1) / 2;
 
 	static final Logger log = Logger.getLogger(DicomSender.class);
 
@@ -74,6 +91,8 @@ public class DicomSender {
         DcmParserFactory.getInstance();
 
     private DcmURL url = null;
+    private CircuitBreaker breaker = null;
+    private RateLimiter limiter = null;
     private int priority = Command.MEDIUM;
     private int acTimeout = 15000;
     private int dimseTimeout = 0;
@@ -85,8 +104,14 @@ public class DicomSender {
     private byte[] buffer = null;
     private ActiveAssociation active = null;
     private Association assoc = null;
-    private String currentTSUID = null;
-	private PresContext pc = null;
+    private List<PresContextSet> parts = null;
+    private StoreListener listener = null;
+    private int window = 1;
+    private final HashMap<Integer,DicomObject> pending = new HashMap<Integer,DicomObject>();
+
+	//Used by the DicomAssociationPool.
+	final String key;
+	long lastUsed = 0;
 
 	/**
 	 * Class constructor; creates a DICOM sender.
@@ -94,12 +119,70 @@ public class DicomSender {
 	 */
 	public DicomSender(String url) {
 		this.url = new DcmURL(url);
+		this.key = DicomAssociationPool.getKey(this.url);
+		this.breaker = CircuitBreaker.getInstance(url);
+		this.limiter = RateLimiter.get(url);
         buffer = new byte[bufferSize];
         initAssocParam(this.url);
 	}
 
 	/**
-	 * Close the association if it is open.
+	 * Set the SOP classes and transfer syntaxes to be proposed when
+	 * the next association is opened, in addition to those of the
+	 * object being sent.
+	 * @param presContexts the set, or null to propose only the contexts
+	 * for the SOP class of the object being sent.
+	 */
+	public void setPresContexts(PresContextSet presContexts) {
+		parts = (presContexts != null) ? divide(presContexts) : null;
+		if ((parts != null) && (parts.size() > 1)) {
+			log.info("The presentation contexts for "+url+" are divided among "+parts.size()+" associations");
+		}
+	}
+
+	/**
+	 * The interface for receiving the results of asynchronous C-STOREs.
+	 * The listener is called by the thread which reads the association,
+	 * or by the thread which closes it, so it must not block.
+	 */
+	public interface StoreListener {
+		/**
+		 * Receive the result of a C-STORE.
+		 * @param dicomObject the object that was sent.
+		 * @param ok true if the object was stored (with or without a warning).
+		 */
+		public void stored(DicomObject dicomObject, boolean ok);
+	}
+
+	/**
+	 * Set the listener for C-STORE results. If the listener is null,
+	 * each send waits for its response.
+	 */
+	public void setStoreListener(StoreListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Wait for the responses to all the outstanding C-STOREs.
+	 * If the association closes first, the objects that were not
+	 * acknowledged are reported to the listener as failures.
+	 */
+	public void waitForResponses() {
+		try {
+			synchronized (pending) {
+				while (!pending.isEmpty() && isOpen()) pending.wait(1000);
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			close();
+		}
+		failPending();
+	}
+
+	/**
+	 * Close the association if it is open. The association is released
+	 * after the responses to the outstanding C-STOREs have been received.
 	 */
 	public void close() {
 		if (active != null) {
@@ -108,11 +191,53 @@ public class DicomSender {
 				System.out.println("Unable to close the ActiveAssociation.");
 			}
 			active = null;
-			currentTSUID = null;
-			pc = null;
+			assoc = null;
+		}
+		failPending();
+	}
+
+	//Report the objects which will get no response as failures.
+	private void failPending() {
+		LinkedList<DicomObject> failed;
+		synchronized (pending) {
+			if (pending.isEmpty()) return;
+			failed = new LinkedList<DicomObject>(pending.values());
+			pending.clear();
+			pending.notifyAll();
+		}
+		if (listener != null) {
+			for (DicomObject dicomObject : failed) listener.stored(dicomObject, false);
 		}
 	}
 
+	//Receives the responses to asynchronous C-STOREs.
+	private final DimseListener responseListener = new DimseListener() {
+		public void dimseReceived(Association as, Dimse dimse) {
+			Command rsp = dimse.getCommand();
+			Integer key = rsp.getMessageIDToBeingRespondedTo();
+			//The object stays pending until the listener has been called,
+			//so waitForResponses does not return before the result is known.
+			synchronized (pending) {
+				DicomObject dicomObject = pending.get(key);
+				if (dicomObject == null) return;
+				if (listener != null) {
+					int status = rsp.getStatus();
+					//Success, or one of the warnings (Bxxx), means that the object was stored.
+					listener.stored(dicomObject, (status == 0) || ((status & 0xF000) == 0xB000));
+				}
+				pending.remove(key);
+				pending.notifyAll();
+			}
+		}
+	};
+
+	/**
+	 * Determine whether the sender has an established association.
+	 */
+	public boolean isOpen() {
+		return (assoc != null) && (assoc.getState() == Association.ASSOCIATION_ESTABLISHED);
+	}
+
 	/**
 	 * Send one DicomObject to the URL specified in the constructor.
 	 */
@@ -124,40 +249,82 @@ public class DicomSender {
         String sopClassUID = ds.getString(Tags.SOPClassUID);
         String tsUID = dicomObject.getTransferSyntaxUID();
 
-        //See if the current association fits this transfer syntax.
-        if ((currentTSUID == null) || !tsUID.equals(currentTSUID)) {
+        boolean encapsulated = parser.getDcmDecodeParam().encapsulated;
+
+        //See if the current association can carry this object.
+        PresContext pc = isOpen() ? getPresContext(sopClassUID, tsUID, encapsulated) : null;
+        if (pc == null) {
 
 			close();
-        	initPresContext(sopClassUID);
-			active = openAssoc();
-        	assoc = active.getAssociation();
-			if (parser.getDcmDecodeParam().encapsulated) {
-				pc = assoc.getAcceptedPresContext(sopClassUID, tsUID);
-			}
-			else {
-				pc = assoc.getAcceptedPresContext(sopClassUID, tsUID);
-				if (pc == null)
-					pc = assoc.getAcceptedPresContext(sopClassUID, UIDs.ImplicitVRLittleEndian);
-				else if (pc == null)
-					pc = assoc.getAcceptedPresContext(sopClassUID, UIDs.ExplicitVRLittleEndian);
-				else if (pc == null)
-					pc = assoc.getAcceptedPresContext(sopClassUID, UIDs.ExplicitVRBigEndian);
+			//Propose the contexts for this object first, then the
+			//part of the set which includes them.
+			PresContextSet proposal = new PresContextSet();
+			proposal.add(sopClassUID, tsUID);
+			if (parts != null) proposal.addAll(getPart(sopClassUID, tsUID));
+			else addTableSyntaxes(proposal, sopClassUID);
+        	initPresContext(proposal);
+        	breaker.check();
+        	try { active = openAssoc(); }
+        	catch (Exception ex) {
+				breaker.recordFailure();
+				throw ex;
 			}
+			//A rejected association still shows that the system is up.
+			breaker.recordSuccess();
+			if (active == null) throw new Exception("Association rejected by "+url);
+        	assoc = active.getAssociation();
+			pc = getPresContext(sopClassUID, tsUID, encapsulated);
 			if (pc == null) {
-				currentTSUID = null;
-				throw new Exception("Unable to negotiate transfer syntax.");
+				throw new Exception("No presentation context accepted by "+url+" for SOP class "
+										+sopClassUID+" in transfer syntax "+tsUID);
 			}
-			currentTSUID = pc.getTransferSyntaxUID();
 		}
 
 		//Make the command and do the transfer.
+        int msgID = assoc.nextMsgID();
         Command command = oFact.newCommand();
-        command.initCStoreRQ(assoc.nextMsgID(), sopClassUID, sopInstUID, priority);
+        command.initCStoreRQ(msgID, sopClassUID, sopInstUID, priority);
         Dimse request = aFact.newDimse(pc.pcid(), command, new MyDataSource(parser, ds, buffer));
-        Dimse response = active.invoke(request).get();
-		response.getCommand().getStatus();
+        try {
+        	if (listener == null) {
+        		Dimse response = active.invoke(request).get();
+				response.getCommand().getStatus();
+			}
+			else {
+				//Wait for room in the window, then send without waiting for the response.
+				Integer key = msgID;
+				synchronized (pending) {
+					while ((pending.size() >= window) && isOpen()) pending.wait(1000);
+					pending.put(key, dicomObject);
+				}
+				try { active.invoke(request, responseListener); }
+				catch (Exception ex) {
+					synchronized (pending) { pending.remove(key); }
+					throw ex;
+				}
+			}
+		}
+		catch (Exception ex) {
+			//Don't leave a broken association for the next transfer.
+			close();
+			throw ex;
+		}
     }
 
+	//Find an accepted presentation context for an object. Objects
+	//that are not encapsulated can be sent in any native syntax.
+	private PresContext getPresContext(String sopClassUID, String tsUID, boolean encapsulated) {
+		PresContext pc = assoc.getAcceptedPresContext(sopClassUID, tsUID);
+		if ((pc == null) && !encapsulated) {
+			pc = assoc.getAcceptedPresContext(sopClassUID, UIDs.ImplicitVRLittleEndian);
+			if (pc == null)
+				pc = assoc.getAcceptedPresContext(sopClassUID, UIDs.ExplicitVRLittleEndian);
+			if (pc == null)
+				pc = assoc.getAcceptedPresContext(sopClassUID, UIDs.ExplicitVRBigEndian);
+		}
+		return pc;
+	}
+
     private final class MyDataSource implements DataSource {
         final DcmParser parser;
         final Dataset ds;
@@ -168,6 +335,8 @@ public class DicomSender {
             this.buffer = buffer;
         }
         public void writeTo(OutputStream out, String tsUID) throws IOException {
+            //Shape the transfer if the destination is rate limited.
+            if (limiter != null) out = limiter.shape(out);
             DcmEncodeParam netParam =
                 (DcmEncodeParam) DcmDecodeParam.valueOf(tsUID);
 			ds.writeDataset(out, netParam);
@@ -292,6 +461,14 @@ public class DicomSender {
         assocRQ.setAsyncOpsWindow(aFact.newAsyncOpsWindow(0,1));
     }
 
+    //Propose the asynchronous operations window for the URL. The number
+    //of outstanding C-STOREs is limited to the window which is accepted.
+    private final void initAsyncOpsWindow() {
+		int maxOps = DicomAssociationPool.getAsyncOpsWindow(key);
+        assocRQ.setAsyncOpsWindow(aFact.newAsyncOpsWindow(maxOps,1));
+        window = maxOps;
+    }
+
     private ActiveAssociation openAssoc()
         throws IOException, GeneralSecurityException {
         Association assoc =
@@ -301,36 +478,95 @@ public class DicomSender {
         assoc.setSoCloseDelay(soCloseDelay);
         assoc.setPackPDVs(packPDVs);
 
+        initAsyncOpsWindow();
         PDU assocAC = assoc.connect(assocRQ);
         if (!(assocAC instanceof AAssociateAC)) {
             return null;
         }
+        int accepted = assoc.getMaxOpsInvoked();
+        if ((accepted > 0) && (accepted < window)) window = accepted;
         ActiveAssociation retval = aFact.newActiveAssociation(assoc, null);
         retval.start();
         return retval;
     }
 
-    private final void initPresContext(String asUID) {
-		try {
-			assocRQ.clearPresContext();
-    		List tsList = pcTable.get(asUID);
-			if (tsList != null) {
-				int pcid = 1;
-				Iterator it = tsList.iterator();
-				String skip = (String) it.next();
-				while (it.hasNext()) {
-					String tsName = (String) it.next();
-					String[] tsUID = new String[1];
-					tsUID[0] = UIDs.forName(tsName);
-					assocRQ.addPresContext(aFact.newPresContext(pcid, asUID, tsUID));
-					pcid += 2;
+    //Propose one presentation context for each SOP class and transfer
+    //syntax in a set which is allowed for the SOP class by the pcTable.
+    private final void initPresContext(PresContextSet proposal) {
+		assocRQ.clearPresContext();
+		int pcid = 1;
+		for (String asUID : proposal.getSOPClassUIDs()) {
+    		List<String> tsList = pcTable.get(asUID);
+			if (tsList == null) continue;
+			for (String tsUID : proposal.getTransferSyntaxUIDs(asUID)) {
+				if (!allows(tsList, tsUID)) continue;
+				if (pcid > maxPCID) {
+					log.warn("Too many presentation contexts for one association to "+url);
+					return;
 				}
+				String[] tsUIDs = new String[] { tsUID };
+				assocRQ.addPresContext(aFact.newPresContext(pcid, asUID, tsUIDs));
+				pcid += 2;
 			}
 		}
-		catch (Exception ex) { }
     }
 
-    static class PCTable extends Hashtable<String,LinkedList> {
+    //Divide a set into parts which can each be proposed on one
+    //association, counting only the contexts allowed by the pcTable.
+    //Room is left for the contexts of the object being sent, which
+    //are proposed ahead of the part.
+    private static List<PresContextSet> divide(PresContextSet set) {
+		List<PresContextSet> parts = new LinkedList<PresContextSet>();
+		PresContextSet part = new PresContextSet();
+		int count = 0;
+		for (String asUID : set.getSOPClassUIDs()) {
+			List<String> tsList = pcTable.get(asUID);
+			if (tsList == null) continue;
+			for (String tsUID : set.getTransferSyntaxUIDs(asUID)) {
+				if (!allows(tsList, tsUID)) continue;
+				if (count == maxContexts - 3) {
+					parts.add(part);
+					part = new PresContextSet();
+					count = 0;
+				}
+				part.addContext(asUID, tsUID);
+				count++;
+			}
+		}
+		parts.add(part);
+		return parts;
+    }
+
+    //Get the part of the set which includes a SOP class and transfer
+    //syntax, or the first part if none does.
+    private PresContextSet getPart(String asUID, String tsUID) {
+		for (PresContextSet part : parts) {
+			if (part.contains(asUID, tsUID)) return part;
+		}
+		return parts.get(0);
+    }
+
+    //Add all the transfer syntaxes in the pcTable for a SOP class.
+    private final void addTableSyntaxes(PresContextSet proposal, String asUID) {
+		List<String> tsList = pcTable.get(asUID);
+		if (tsList == null) return;
+		//The first item in the list is the SOP class name.
+		for (String tsName : tsList.subList(1, tsList.size())) {
+			try { proposal.add(asUID, UIDs.forName(tsName)); }
+			catch (Exception ex) { }
+		}
+    }
+
+    //Determine whether a pcTable list includes a transfer syntax.
+    private static boolean allows(List<String> tsList, String tsUID) {
+		for (String tsName : tsList.subList(1, tsList.size())) {
+			try { if (UIDs.forName(tsName).equals(tsUID)) return true; }
+			catch (Exception ex) { }
+		}
+		return false;
+    }
+
+    static class PCTable extends Hashtable<String,LinkedList<String>> {
 		public PCTable() {
 			super();
 			for (int i=0; i<pcs.length; i++) {
@@ -0,0 +1,220 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+import org.rsna.geneva.elements.Product;
+import org.rsna.geneva.main.Configuration;
+import org.rsna.util.FileUtil;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A bounded work queue and set of worker threads for one destination
+ * system. Each DataSystem has its own DispatchQueue so that a slow or
+ * dead endpoint can only consume its own workers. In the virtual
+ * execution mode, each unit of work gets its own virtual thread, and
+ * the number of workers limits how many of them run at once.
+ */
+public class DispatchQueue {
+
+	static final Logger logger = Logger.getLogger(DispatchQueue.class);
+
+	public static final File spillRoot = new File("spill");
+
+	public final String id;
+	public final int workers;
+	public final int queueSize;
+	public final boolean virtual;
+
+	ThreadPoolExecutor executor = null;
+	VirtualExecutor virtualExecutor = null;
+	File spillDir;
+	static int spillCount = 0;
+
+	/**
+	 * Create a DispatchQueue for a destination.
+	 * @param id the ID of the destination system.
+	 * @param workers the number of worker threads.
+	 * @param queueSize the maximum number of units of work waiting for a worker.
+	 * @param virtual true if each unit of work is to run in its own virtual thread.
+	 */
+	public DispatchQueue(String id, int workers, int queueSize, boolean virtual) {
+		this.id = id;
+		this.workers = Math.max(workers, 1);
+		this.queueSize = Math.max(queueSize, 1);
+		this.virtual = virtual;
+		if (virtual) virtualExecutor = new VirtualExecutor(id, this.workers, this.queueSize);
+		else {
+			executor =
+				new ThreadPoolExecutor(
+						this.workers, this.workers,
+						60L, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(this.queueSize),
+						new ProcessingEngine.WorkerFactory(id));
+			executor.allowCoreThreadTimeOut(true);
+		}
+		spillDir = new File(spillRoot, id);
+	}
+
+	/**
+	 * Determine whether the queue can accept another unit of work without blocking.
+	 */
+	public boolean hasCapacity() {
+		if (virtual) return virtualExecutor.hasCapacity();
+		return executor.getQueue().remainingCapacity() > 0;
+	}
+
+	/**
+	 * Get the number of units of work waiting for a worker.
+	 */
+	public int getQueueLength() {
+		if (virtual) return virtualExecutor.getQueueLength();
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Get the number of units of work spilled to disk.
+	 */
+	public int getSpillCount() {
+		File[] files = spillDir.listFiles();
+		return (files != null) ? files.length : 0;
+	}
+
+	/**
+	 * Queue a Workflow step if there is space for it.
+	 * @return true if the step was queued; false if the queue
+	 * is full or has been shut down.
+	 */
+	public boolean offer(Workflow.Step step) {
+		if (isShutdown()) return false;
+		try {
+			if (virtual) virtualExecutor.execute(step);
+			else executor.execute(step);
+			return true;
+		}
+		catch (RejectedExecutionException full) { return false; }
+	}
+
+	/**
+	 * Queue a Workflow step, waiting for space if necessary.
+	 */
+	public void put(Workflow.Step step) {
+		try {
+			if (virtual) virtualExecutor.put(step);
+			else {
+				executor.getQueue().put(step);
+				executor.prestartCoreThread();
+			}
+		}
+		catch (InterruptedException ex) {
+			throw new RejectedExecutionException("Interrupted while waiting for "+id);
+		}
+	}
+
+	/**
+	 * Determine whether the queue has been shut down.
+	 */
+	public boolean isShutdown() {
+		return virtual ? virtualExecutor.isShutdown() : executor.isShutdown();
+	}
+
+	/**
+	 * Stop accepting work. Units already in the queue are still processed.
+	 */
+	public void shutdown() {
+		if (virtual) virtualExecutor.shutdown();
+		else executor.shutdown();
+	}
+
+	/**
+	 * Save a Workflow step in the spill directory.
+	 * @return true if the step was saved; false otherwise.
+	 */
+	public boolean spill(Workflow.Step step) {
+		Registration reg = step.getWorkflow().reg;
+		try {
+			spillDir.mkdirs();
+			File file = new File(spillDir, getSpillName());
+			FileUtil.setText(
+				file,
+				"<spill system=\""+id+"\""
+					+ " epoch=\""+ProcessingEngine.getInstance().epoch+"\""
+					+ " workflow=\""+step.getWorkflow().id+"\""
+						+ " step=\""+step.key+"\">"
+							+ reg.toXMLString()
+								+ "</spill>");
+			logger.debug("Spilled "+step.key+" for "+reg.globalID);
+			return true;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to spill "+step.key+" for "+reg.globalID, ex);
+			return false;
+		}
+	}
+
+	private static synchronized String getSpillName() {
+		String n = Integer.toString(++spillCount % 1000000);
+		n = "000000".substring(n.length()) + n;
+		return System.currentTimeMillis() + "-" + n + ".xml";
+	}
+
+	/**
+	 * Move spilled steps back into the queue while there is space for them.
+	 * If the Workflow of a step is no longer running (for example, after a
+	 * restart), a new Workflow is built containing that step and the steps
+	 * which share state with it (all the steps of a Study). Steps
+	 * spilled before a restart are discarded when journaling is enabled,
+	 * since the journal replays them.
+	 */
+	public void drain() {
+		File[] files = spillDir.listFiles();
+		if ((files == null) || (files.length == 0)) return;
+		Arrays.sort(files);
+		Configuration config = Configuration.getInstance();
+		ProcessingEngine engine = ProcessingEngine.getInstance();
+		for (int i=0; (i<files.length) && hasCapacity(); i++) {
+			try {
+				Document doc = XmlUtil.getDocument(files[i]);
+				files[i].delete();
+				Element root = doc.getDocumentElement();
+				String key = root.getAttribute("step");
+				if (engine.isJournaling()
+						&& !root.getAttribute("epoch").equals(Long.toString(engine.epoch))) continue;
+				Workflow workflow = engine.getWorkflow(root.getAttribute("workflow"));
+				Workflow.Step step = (workflow != null) ? workflow.getStep(key) : null;
+				if (step != null) {
+					engine.dispatch(step, false);
+					continue;
+				}
+				Registration reg = null;
+				Node child = root.getFirstChild();
+				while ((child != null) && (reg == null)) {
+					if (child.getNodeType() == Node.ELEMENT_NODE)
+						reg = new Registration((Element)child);
+					child = child.getNextSibling();
+				}
+				Object product = config.getConfigElement(root.getAttribute("system"));
+				if ((reg != null) && (product instanceof Product)) {
+					workflow = engine.createWorkflow(reg, new Product[] { (Product)product });
+					workflow.restrictToGroups(Arrays.asList(new String[] { key }));
+					engine.start(workflow);
+				}
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to reload spilled work from "+files[i], ex);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.util.*;
+
+/**
+ * Minimal JSON support for the bulk interfaces: parsing flat objects
+ * whose values are strings, numbers, booleans, or null, and quoting
+ * strings for output.
+ */
+public class JSON {
+
+	/**
+	 * Parse a flat JSON object.
+	 * @param s the text of the object.
+	 * @return the names and values of the object. Numbers and booleans
+	 * are returned as their text; null values are omitted.
+	 * @throws IllegalArgumentException if the text is not a flat JSON object.
+	 */
+	public static Hashtable<String,String> parseObject(String s) {
+		Parser p = new Parser(s);
+		Hashtable<String,String> values = new Hashtable<String,String>();
+		p.expect('{');
+		if (!p.skip('}')) {
+			do {
+				String name = p.string();
+				p.expect(':');
+				String value = p.value();
+				if (value != null) values.put(name, value);
+			} while (p.skip(','));
+			p.expect('}');
+		}
+		if (p.more()) throw p.error("Unexpected text after the object");
+		return values;
+	}
+
+	/**
+	 * Quote and escape a string for inclusion in JSON output.
+	 */
+	public static String quote(String s) {
+		if (s == null) return "null";
+		StringBuffer sb = new StringBuffer(s.length() + 2);
+		sb.append('"');
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"':	sb.append("\\\""); break;
+				case '\\':	sb.append("\\\\"); break;
+				case '\n':	sb.append("\\n"); break;
+				case '\r':	sb.append("\\r"); break;
+				case '\t':	sb.append("\\t"); break;
+				default:
+					if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+					else sb.append(c);
+			}
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+
+	static class Parser {
+		String s;
+		int k = 0;
+
+		Parser(String s) {
+			this.s = s;
+		}
+
+		IllegalArgumentException error(String text) {
+			return new IllegalArgumentException(text+" at position "+k);
+		}
+
+		void space() {
+			while ((k < s.length()) && Character.isWhitespace(s.charAt(k))) k++;
+		}
+
+		boolean more() {
+			space();
+			return k < s.length();
+		}
+
+		boolean skip(char c) {
+			space();
+			if ((k < s.length()) && (s.charAt(k) == c)) {
+				k++;
+				return true;
+			}
+			return false;
+		}
+
+		void expect(char c) {
+			if (!skip(c)) throw error("Expected '"+c+"'");
+		}
+
+		String string() {
+			expect('"');
+			StringBuffer sb = null;
+			int start = k;
+			while (k < s.length()) {
+				char c = s.charAt(k);
+				if (c == '"') {
+					String value = s.substring(start, k++);
+					return (sb == null) ? value : sb.append(value).toString();
+				}
+				if (c == '\\') {
+					if (sb == null) sb = new StringBuffer();
+					sb.append(s, start, k++);
+					if (k >= s.length()) break;
+					c = s.charAt(k++);
+					switch (c) {
+						case 'b': sb.append('\b'); break;
+						case 'f': sb.append('\f'); break;
+						case 'n': sb.append('\n'); break;
+						case 'r': sb.append('\r'); break;
+						case 't': sb.append('\t'); break;
+						case 'u':
+							if (k + 4 > s.length()) throw error("Invalid escape");
+							try { sb.append((char)Integer.parseInt(s.substring(k, k+4), 16)); }
+							catch (NumberFormatException ex) { throw error("Invalid escape"); }
+							k += 4;
+							break;
+						default: sb.append(c);
+					}
+					start = k;
+				}
+				else k++;
+			}
+			throw error("Unterminated string");
+		}
+
+		String value() {
+			space();
+			if (k >= s.length()) throw error("Missing value");
+			char c = s.charAt(k);
+			if (c == '"') return string();
+			if ((c == '{') || (c == '[')) throw error("Nested values are not supported");
+			int start = k;
+			while ((k < s.length()) && (",}".indexOf(s.charAt(k)) == -1)
+						&& !Character.isWhitespace(s.charAt(k))) k++;
+			String value = s.substring(start, k);
+			if (value.equals("null")) return null;
+			if (value.equals("true") || value.equals("false")) return value;
+			try { Double.parseDouble(value); }
+			catch (NumberFormatException ex) { throw error("Invalid value"); }
+			return value;
+		}
+	}
+
+}
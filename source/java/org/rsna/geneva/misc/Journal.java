@@ -0,0 +1,377 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * An append-only journal of the Workflows in progress. The journal
+ * records the plan for each Workflow (its registration and steps),
+ * the outcome of each step, and the end of each Workflow, one record
+ * per line:
+ * <pre>
+ *   &lt;plan id="WF..."&gt;&lt;registration&gt;...&lt;/registration&gt;&lt;step key="..."/&gt;...&lt;/plan&gt;
+ *   &lt;done id="WF..." step="..." status="ok|failed|skipped"/&gt;
+ *   &lt;end id="WF..."/&gt;
+ * </pre>
+ * Records are written by a single writer thread, which syncs the file
+ * once for each batch of records it finds waiting (group commit).
+ * A plan is durable before the call to record it returns, and the caller
+ * is told if it could not be written; step outcomes and ends are not
+ * waited for, so a step may be repeated after a crash.
+ * <p>
+ * The table of Workflows in progress, and every Entry in it, is guarded
+ * by the lock on the table.
+ * <p>
+ * Compaction rewrites the journal with one plan record containing only
+ * the pending steps of each Workflow still in progress.
+ */
+public class Journal extends Thread {
+
+	static final Logger logger = Logger.getLogger(Journal.class);
+
+	public static final String journalName = "journal.log";
+
+	File dir;
+	File file;
+	FileOutputStream out = null;
+	LinkedBlockingQueue<Record> queue;
+	Hashtable<String,Entry> entries;
+	Object commitLock = new Object();
+	boolean compactRequested = false;
+
+	/**
+	 * Create a Journal in a directory. The journal is not open
+	 * for writing until the open method is called.
+	 * @param dir the directory containing the journal file.
+	 */
+	public Journal(File dir) {
+		super("journal-writer");
+		setDaemon(true);
+		this.dir = dir;
+		this.file = new File(dir, journalName);
+		queue = new LinkedBlockingQueue<Record>();
+		entries = new Hashtable<String,Entry>();
+	}
+
+	/**
+	 * Read the journal and determine which Workflows were still in progress.
+	 * Records that cannot be parsed (for example, a final record that was
+	 * only partially written) are ignored.
+	 * @return the Workflows that had pending steps.
+	 */
+	public synchronized Entry[] recover() {
+		entries.clear();
+		if (file.exists()) {
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(
+							new InputStreamReader(
+								new FileInputStream(file), "UTF-8"));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.length() == 0) continue;
+					try { apply(XmlUtil.getDocument(line).getDocumentElement()); }
+					catch (Exception skip) { logger.warn("Unreadable journal record skipped"); }
+				}
+			}
+			catch (Exception ex) { logger.warn("Unable to read the journal", ex); }
+			finally {
+				try { if (reader != null) reader.close(); }
+				catch (Exception ignore) { }
+			}
+		}
+		LinkedList<Entry> list = new LinkedList<Entry>();
+		for (Entry entry : entries.values()) {
+			if (entry.getPending().size() > 0) list.add(entry);
+		}
+		return list.toArray(new Entry[list.size()]);
+	}
+
+	//Update the table of Workflows in progress from a record.
+	private void apply(Element record) {
+		String name = record.getTagName();
+		String id = record.getAttribute("id");
+		synchronized (entries) {
+			Entry entry = entries.get(id);
+			if (name.equals("plan")) {
+				if (entry == null) {
+					entry = new Entry(id);
+					entries.put(id, entry);
+				}
+				Node child = record.getFirstChild();
+				while (child != null) {
+					if (child.getNodeType() == Node.ELEMENT_NODE) {
+						Element e = (Element)child;
+						if (e.getTagName().equals("registration"))
+							entry.registration = XmlUtil.toString(e);
+						else if (e.getTagName().equals("step"))
+							entry.planned.add(e.getAttribute("key"));
+					}
+					child = child.getNextSibling();
+				}
+			}
+			else if (name.equals("done")) {
+				if (entry != null) entry.done.add(record.getAttribute("step"));
+			}
+			else if (name.equals("end")) {
+				entries.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Open the journal for appending and start the writer thread.
+	 */
+	public synchronized void open() throws IOException {
+		dir.mkdirs();
+		out = new FileOutputStream(file, true);
+		start();
+	}
+
+	/**
+	 * Record the plan for a Workflow, waiting until it is durable.
+	 * @return true if the plan was written; false if it was not.
+	 */
+	public boolean plan(Workflow workflow) {
+		try {
+			Document doc = XmlUtil.getDocument();
+			Element plan = doc.createElement("plan");
+			plan.setAttribute("id", workflow.id);
+			plan.appendChild(workflow.reg.toElement(doc));
+			Workflow.Step[] steps = workflow.getSteps();
+			for (int i=0; i<steps.length; i++) {
+				Element step = doc.createElement("step");
+				step.setAttribute("key", steps[i].key);
+				plan.appendChild(step);
+			}
+			if (waitFor(append(plan))) return true;
+			logger.warn("Unable to journal "+workflow.id);
+		}
+		catch (Exception ex) { logger.warn("Unable to journal "+workflow.id, ex); }
+		return false;
+	}
+
+	/**
+	 * Record the outcome of a step.
+	 */
+	public void done(Workflow.Step step) {
+		try {
+			Document doc = XmlUtil.getDocument();
+			Element done = doc.createElement("done");
+			done.setAttribute("id", step.getWorkflow().id);
+			done.setAttribute("step", step.key);
+			done.setAttribute("status", step.succeeded ? "ok" : (step.skipped ? "skipped" : "failed"));
+			append(done);
+		}
+		catch (Exception ex) { logger.warn("Unable to journal "+step.key, ex); }
+	}
+
+	/**
+	 * Record the end of a Workflow.
+	 */
+	public void end(Workflow workflow) {
+		try {
+			Document doc = XmlUtil.getDocument();
+			Element end = doc.createElement("end");
+			end.setAttribute("id", workflow.id);
+			append(end);
+		}
+		catch (Exception ex) { logger.warn("Unable to journal the end of "+workflow.id, ex); }
+	}
+
+	/**
+	 * Wait until all the records appended so far are on the disk.
+	 * @return true if they were written; false if a write failed.
+	 */
+	public boolean flush() {
+		Record record = new Record(null);
+		queue.offer(record);
+		return waitFor(record);
+	}
+
+	/**
+	 * Request a compaction. The compaction is done by the writer thread.
+	 */
+	public void compact() {
+		compactRequested = true;
+		queue.offer(new Record(null));
+	}
+
+	/**
+	 * Get the number of Workflows in progress.
+	 */
+	public int getSize() {
+		return entries.size();
+	}
+
+	//Apply a record to the table and queue it for writing.
+	private Record append(Element element) {
+		String line = XmlUtil.toString(element).replace("\r", "&#13;").replace("\n", "&#10;");
+		apply(element);
+		Record record = new Record(line);
+		queue.offer(record);
+		return record;
+	}
+
+	//Wait until the writer has finished with a record.
+	//Return true if the record was synced to the disk.
+	private boolean waitFor(Record record) {
+		synchronized (commitLock) {
+			while (!record.done) {
+				try { commitLock.wait(); }
+				catch (InterruptedException ex) { return false; }
+			}
+			return record.ok;
+		}
+	}
+
+	/**
+	 * The writer thread. Each pass writes all the records that are
+	 * waiting and then syncs the file once.
+	 */
+	public void run() {
+		LinkedList<Record> batch = new LinkedList<Record>();
+		while (true) {
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				boolean written = false;
+				for (Record record : batch) {
+					if (record.line != null) {
+						out.write((record.line + "\n").getBytes("UTF-8"));
+						written = true;
+					}
+				}
+				if (written) {
+					out.flush();
+					out.getFD().sync();
+				}
+				release(batch, true);
+			}
+			catch (InterruptedException ex) { return; }
+			catch (Exception ex) {
+				//The callers waiting for these records are told
+				//that they were not written.
+				logger.warn("Unable to write the journal", ex);
+				release(batch, false);
+			}
+			if (compactRequested) {
+				compactRequested = false;
+				try { rewrite(); }
+				catch (Exception ex) { logger.warn("Unable to compact the journal", ex); }
+			}
+		}
+	}
+
+	//Notify the callers waiting for a batch of records.
+	private void release(List<Record> batch, boolean ok) {
+		synchronized (commitLock) {
+			for (Record record : batch) {
+				record.done = true;
+				record.ok = ok;
+			}
+			commitLock.notifyAll();
+		}
+		batch.clear();
+	}
+
+	//Write a new journal containing only the pending steps of the
+	//Workflows in progress, and replace the old journal with it.
+	private void rewrite() throws Exception {
+		File temp = new File(dir, journalName + ".tmp");
+		LinkedList<String> lines = new LinkedList<String>();
+		synchronized (entries) {
+			for (Entry entry : entries.values()) {
+				String line = entry.toPlanString();
+				if (line != null) lines.add(line);
+			}
+		}
+		FileOutputStream tempOut = new FileOutputStream(temp);
+		try {
+			for (String line : lines) tempOut.write((line + "\n").getBytes("UTF-8"));
+			tempOut.flush();
+			tempOut.getFD().sync();
+		}
+		finally { tempOut.close(); }
+		out.close();
+		try {
+			file.delete();
+			if (!temp.renameTo(file)) logger.warn("Unable to replace the journal with the compacted journal");
+		}
+		finally { out = new FileOutputStream(file, true); }
+		logger.debug("Journal compacted: "+lines.size()+" workflows in progress");
+	}
+
+	//A line to be written, or a marker (with a null line) used to wait
+	//for the records queued before it. The done and ok fields are
+	//guarded by the commitLock.
+	class Record {
+		String line;
+		boolean done = false;
+		boolean ok = false;
+		public Record(String line) {
+			this.line = line;
+		}
+	}
+
+	/**
+	 * The state of one Workflow in the journal.
+	 */
+	public class Entry {
+		public final String id;
+		public String registration = null;
+		LinkedHashSet<String> planned = new LinkedHashSet<String>();
+		HashSet<String> done = new HashSet<String>();
+
+		public Entry(String id) {
+			this.id = id;
+		}
+
+		/**
+		 * Get the keys of the steps that have not been completed.
+		 */
+		public Set<String> getPending() {
+			synchronized (entries) {
+				LinkedHashSet<String> pending = new LinkedHashSet<String>(planned);
+				pending.removeAll(done);
+				return pending;
+			}
+		}
+
+		/**
+		 * Get the registration of the Workflow.
+		 */
+		public Registration getRegistration() throws Exception {
+			return new Registration(XmlUtil.getDocument(registration).getDocumentElement());
+		}
+
+		//Get a plan record for the pending steps.
+		//This must be called while synchronized on the table.
+		String toPlanString() {
+			if (registration == null) return null;
+			StringBuffer sb = new StringBuffer();
+			sb.append("<plan id=\""+XmlUtil.escapeChars(id)+"\">");
+			sb.append(registration.replace("\r", "&#13;").replace("\n", "&#10;"));
+			for (String key : getPending()) {
+				sb.append("<step key=\""+XmlUtil.escapeChars(key)+"\"/>");
+			}
+			sb.append("</plan>");
+			return sb.toString();
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.dcm4che.data.DcmDecodeParam;
+import org.dcm4che.dict.UIDs;
+
+/**
+  * The SOP classes and transfer syntaxes of a set of DICOM objects,
+  * for proposal as presentation contexts in a single association.
+  * For objects that are not encapsulated, the native syntaxes are
+  * included too, so the receiver can choose among them.
+  */
+public class PresContextSet {
+
+	private final LinkedHashMap<String,LinkedHashSet<String>> map = new LinkedHashMap<String,LinkedHashSet<String>>();
+
+	/**
+	 * Create an empty PresContextSet.
+	 */
+	public PresContextSet() {
+	}
+
+	/**
+	 * Create a PresContextSet for all the DICOM files in a directory tree,
+	 * from the manifest of the tree.
+	 * @param dir the root of the tree.
+	 */
+	public PresContextSet(File dir) {
+		addAll(StudyManifest.getInstance(dir).getPresContexts());
+	}
+
+	/**
+	 * Add a SOP class and transfer syntax.
+	 */
+	public void add(String sopClassUID, String tsUID) {
+		if ((sopClassUID == null) || (tsUID == null)) return;
+		addContext(sopClassUID, tsUID);
+		if (!DcmDecodeParam.valueOf(tsUID).encapsulated) {
+			addContext(sopClassUID, UIDs.ExplicitVRLittleEndian);
+			addContext(sopClassUID, UIDs.ImplicitVRLittleEndian);
+		}
+	}
+
+	/**
+	 * Add a SOP class and transfer syntax without adding the native syntaxes.
+	 */
+	void addContext(String sopClassUID, String tsUID) {
+		LinkedHashSet<String> tsSet = map.get(sopClassUID);
+		if (tsSet == null) {
+			tsSet = new LinkedHashSet<String>();
+			map.put(sopClassUID, tsSet);
+		}
+		tsSet.add(tsUID);
+	}
+
+	/**
+	 * Add all the SOP classes and transfer syntaxes of another set.
+	 */
+	public void addAll(PresContextSet set) {
+		for (Map.Entry<String,LinkedHashSet<String>> entry : set.map.entrySet()) {
+			for (String tsUID : entry.getValue()) add(entry.getKey(), tsUID);
+		}
+	}
+
+	/**
+	 * Determine whether the set includes a SOP class and transfer syntax.
+	 */
+	public boolean contains(String sopClassUID, String tsUID) {
+		LinkedHashSet<String> tsSet = map.get(sopClassUID);
+		return (tsSet != null) && tsSet.contains(tsUID);
+	}
+
+	/**
+	 * Get the SOP classes in the set, in the order they were added.
+	 */
+	public Set<String> getSOPClassUIDs() {
+		return map.keySet();
+	}
+
+	/**
+	 * Get the transfer syntaxes for a SOP class, in the order they were added.
+	 * @return the syntaxes, or null if the SOP class is not in the set.
+	 */
+	public Set<String> getTransferSyntaxUIDs(String sopClassUID) {
+		return map.get(sopClassUID);
+	}
+
+	/**
+	 * Determine whether the set is empty.
+	 */
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+}
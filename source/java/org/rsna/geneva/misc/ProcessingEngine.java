@@ -0,0 +1,662 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.rsna.geneva.elements.DataSystem;
+import org.rsna.geneva.elements.Product;
+import org.rsna.geneva.main.Configuration;
+
+/**
+ * The shared execution engine for registration processing. Each
+ * registration is processed as a Workflow whose steps are queued as
+ * their dependencies are satisfied. Each DataSystem has its own
+ * DispatchQueue. Other Products are served by
+ * one bounded pool of worker threads for each Product class, each with
+ * its own queue of pending work. The pool size for a class is also the
+ * default number of workers for the DispatchQueues of its systems.
+ * <p>
+ * When a DispatchQueue is full, the backpressure policy determines what
+ * happens to the producer: it blocks (block), it is refused before the
+ * registration is accepted (reject), or the work is spilled to disk and
+ * reloaded when space is available (spill).
+ * <p>
+ * When journaling is enabled, the plan for each Workflow and the outcome
+ * of each step are recorded in a Journal, and the steps that were pending
+ * when the program stopped are replayed when it starts.
+ * <p>
+ * A step which fails is retried after a delay given by the RetryPolicy
+ * for its name. When its attempts are exhausted, it is saved in the
+ * DeadLetterStore.
+ * <p>
+ * A step for a destination with a RateLimiter is run only when the
+ * limiter admits it; until then, it waits on the engine's timer.
+ */
+public class ProcessingEngine {
+
+	static final Logger logger = Logger.getLogger(ProcessingEngine.class);
+
+	public static final String[] poolNames = {
+		"pixmgr",
+		"registry",
+		"pdqmgr",
+		"repository",
+		"ehrsystem",
+		"dcmsystem"
+	};
+
+	public static final int defaultPoolSize = 4;
+	public static final int defaultQueueSize = 1000;
+	public static final long compactionInterval = 5 * 60 * 1000L;
+	public static final int maxCompletedJobs = 10000;
+	public static final File journalDir = new File("journal");
+
+	public static final String BLOCK	= "block";
+	public static final String REJECT	= "reject";
+	public static final String SPILL	= "spill";
+
+	public static final String PLATFORM	= "platform";
+	public static final String VIRTUAL	= "virtual";
+
+	static ProcessingEngine engine = null;
+
+	Hashtable<String,ExecutorService> pools;
+	Hashtable<String,DispatchQueue> queues;
+	Hashtable<String,ExecutorService> helpers;
+	String backpressure = BLOCK;
+	String executionMode = PLATFORM;
+	Hashtable<String,Workflow> workflows;
+	LinkedHashMap<String,String> completedJobs;
+	ScheduledExecutorService timer = null;
+	boolean started = false;
+	boolean journaling = true;
+	Journal journal = null;
+	public final long epoch = System.currentTimeMillis();
+
+	/**
+	 * Get the singleton instance of the ProcessingEngine.
+	 */
+	public static synchronized ProcessingEngine getInstance() {
+		if (engine == null) engine = new ProcessingEngine();
+		return engine;
+	}
+
+	protected ProcessingEngine() {
+		pools = new Hashtable<String,ExecutorService>();
+		for (int i=0; i<poolNames.length; i++) {
+			pools.put(poolNames[i], createPool(poolNames[i], defaultPoolSize));
+		}
+		queues = new Hashtable<String,DispatchQueue>();
+		helpers = new Hashtable<String,ExecutorService>();
+		workflows = new Hashtable<String,Workflow>();
+		completedJobs =
+			new LinkedHashMap<String,String>() {
+				protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+					return size() > maxCompletedJobs;
+				}
+			};
+	}
+
+	/**
+	 * Start the background processing that reloads spilled work and,
+	 * if journaling is enabled, replay the Workflows that were in progress
+	 * when the program stopped. This must be called after the configuration
+	 * and the event log have been initialized.
+	 */
+	public synchronized void start() {
+		if (started) return;
+		started = true;
+		if (journaling) openJournal();
+		getTimer().scheduleWithFixedDelay(
+			new Runnable() {
+				public void run() {
+					try { drain(); }
+					catch (Exception ex) { logger.warn("Unable to drain spilled work", ex); }
+				}
+			},
+			1L, 1L, TimeUnit.SECONDS);
+		getTimer().scheduleWithFixedDelay(
+			new Runnable() {
+				public void run() {
+					Journal j = journal;
+					if (j != null) j.compact();
+				}
+			},
+			compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Enable or disable the journal. If the engine has already been started,
+	 * enabling the journal opens it and replays any pending work it contains.
+	 */
+	public synchronized void setJournaling(boolean journaling) {
+		this.journaling = journaling;
+		if (journaling && started && (journal == null)) openJournal();
+	}
+
+	public boolean isJournaling() {
+		return journaling;
+	}
+
+	/**
+	 * Wait until the journal records for the work done so far are on
+	 * the disk. This is called before the program exits so completed
+	 * steps are not replayed when it starts again.
+	 * @return true if the records were written; false if a write failed.
+	 */
+	public boolean flush() {
+		Journal j = journal;
+		return (j == null) || j.flush();
+	}
+
+	//Open the journal, replay the Workflows that were in progress,
+	//and compact the journal.
+	private void openJournal() {
+		Journal j = new Journal(journalDir);
+		Journal.Entry[] entries = j.recover();
+		try { j.open(); }
+		catch (Exception ex) {
+			logger.warn("Unable to open the journal; journaling is disabled", ex);
+			journaling = false;
+			return;
+		}
+		journal = j;
+		int replayed = 0;
+		for (int i=0; i<entries.length; i++) {
+			if (replay(entries[i])) replayed++;
+		}
+		journal.compact();
+		if (replayed > 0) {
+			String message = "Replayed "+replayed+" registration"+((replayed!=1)?"s":"")+" from the journal";
+			logger.info(message);
+			Configuration.getInstance().getEventLog().append(
+				new RegSysEvent(this, RegSysEvent.STATUS_OK, RegSysEvent.TYPE_STATUS, message));
+		}
+	}
+
+	//Rebuild a Workflow from the journal, containing its pending steps
+	//and the steps which share state with them (for example, all the
+	//steps of a Study whose DICOM step is pending), and start it. Steps
+	//for systems that are no longer in the configuration are dropped.
+	private boolean replay(Journal.Entry entry) {
+		try {
+			Registration reg = entry.getRegistration();
+			Set<String> pending = entry.getPending();
+			Configuration config = Configuration.getInstance();
+			LinkedList<Product> list = new LinkedList<Product>();
+			for (String key : pending) {
+				int k = key.indexOf(":");
+				Object product = config.getConfigElement((k > 0) ? key.substring(0, k) : key);
+				if ((product instanceof Product) && !list.contains(product)) list.add((Product)product);
+			}
+			Workflow workflow = buildWorkflow(new Workflow(entry.id, reg), list.toArray(new Product[list.size()]));
+			workflow.restrictToGroups(pending);
+			start(workflow);
+			return true;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to replay "+entry.id+" from the journal", ex);
+			return false;
+		}
+	}
+
+	//Get the timer used for scheduled work, creating it if necessary.
+	synchronized ScheduledExecutorService getTimer() {
+		if (timer == null)
+			timer = Executors.newSingleThreadScheduledExecutor(new WorkerFactory("engine-timer"));
+		return timer;
+	}
+
+	/**
+	 * Set the execution mode (platform or virtual). In virtual mode, each
+	 * unit of work is started on its own virtual thread, and a semaphore
+	 * sized by the number of workers for each pool and DispatchQueue
+	 * caps the concurrency for each destination. Virtual mode requires a Java runtime that
+	 * supports virtual threads; on older runtimes, platform mode is used.
+	 */
+	public synchronized void setExecutionMode(String mode) {
+		mode = (mode != null) ? mode.trim().toLowerCase() : "";
+		if (mode.equals(VIRTUAL) && !WorkerFactory.supportsVirtualThreads()) {
+			logger.warn("Virtual threads are not supported by this Java runtime; using platform threads");
+			mode = PLATFORM;
+		}
+		if (!mode.equals(VIRTUAL)) mode = PLATFORM;
+		if (mode.equals(executionMode)) return;
+		executionMode = mode;
+
+		//Replace the pools. The old pools finish the work they
+		//already have. The DispatchQueues are replaced as they
+		//are next used.
+		for (int i=0; i<poolNames.length; i++) {
+			ExecutorService old = pools.get(poolNames[i]);
+			int size = (old != null) ? getSize(old) : defaultPoolSize;
+			pools.put(poolNames[i], createPool(poolNames[i], size));
+			if (old != null) old.shutdown();
+		}
+		for (ExecutorService old : helpers.values()) old.shutdown();
+		helpers.clear();
+	}
+
+	public String getExecutionMode() {
+		return executionMode;
+	}
+
+	/**
+	 * Set the backpressure policy (block, reject, or spill).
+	 */
+	public void setBackpressure(String policy) {
+		policy = (policy != null) ? policy.trim().toLowerCase() : "";
+		if (!policy.equals(REJECT) && !policy.equals(SPILL)) policy = BLOCK;
+		backpressure = policy;
+	}
+
+	public String getBackpressure() {
+		return backpressure;
+	}
+
+	/**
+	 * Determine whether a new registration can be accepted. This is
+	 * always true unless the backpressure policy is reject, in which
+	 * case every enabled DataSystem must have space in its queue.
+	 */
+	public boolean hasCapacity() {
+		if (!backpressure.equals(REJECT)) return true;
+		Configuration config = Configuration.getInstance();
+		return hasCapacity(config.getPIXMgrs())
+				&& hasCapacity(config.getRegistries())
+					&& hasCapacity(config.getPDQMgrs())
+						&& hasCapacity(config.getEHRSystems())
+							&& hasCapacity(config.getDCMSystems());
+	}
+
+	private boolean hasCapacity(DataSystem[] systems) {
+		for (int i=0; i<systems.length; i++) {
+			if (systems[i].enabled && !getQueue(systems[i]).hasCapacity()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Build the Workflow for processing a registration by all the
+	 * enabled systems in the configuration and start it.
+	 * @return the running Workflow.
+	 */
+	public Workflow process(Registration reg) {
+		Configuration config = Configuration.getInstance();
+		LinkedList<Product> list = new LinkedList<Product>();
+		list.addAll(Arrays.asList(config.getRegistries()));
+		list.addAll(Arrays.asList(config.getPIXMgrs()));
+		list.addAll(Arrays.asList(config.getPDQMgrs()));
+		list.addAll(Arrays.asList(config.getRepositories()));
+		list.addAll(Arrays.asList(config.getEHRSystems()));
+		list.addAll(Arrays.asList(config.getDCMSystems()));
+		return process(reg, list.toArray(new Product[list.size()]));
+	}
+
+	/**
+	 * Build the Workflow for processing a registration by the enabled
+	 * members of an array of systems and start it. Disabled systems
+	 * are skipped here so they never occupy a place in a queue.
+	 * @return the running Workflow.
+	 */
+	public Workflow process(Registration reg, Product[] systems) {
+		Workflow workflow = createWorkflow(reg, systems);
+		start(workflow);
+		return workflow;
+	}
+
+	/**
+	 * Build the Workflow for processing a registration by the enabled
+	 * members of an array of systems, without starting it.
+	 */
+	public Workflow createWorkflow(Registration reg, Product[] systems) {
+		return buildWorkflow(new Workflow(reg), systems);
+	}
+
+	private Workflow buildWorkflow(Workflow workflow, Product[] systems) {
+		Registration reg = workflow.reg;
+		for (int i=0; i<systems.length; i++) {
+			if (systems[i].enabled) systems[i].addSteps(workflow, reg);
+		}
+		workflow.resolve(Configuration.getInstance().getWorkflowRules());
+		return workflow;
+	}
+
+	/**
+	 * Start a Workflow and keep track of it until it is complete.
+	 * If journaling is enabled, the plan is recorded before any step
+	 * is queued. If the plan cannot be written, the Workflow still runs,
+	 * but it cannot be replayed after a restart, and an event says so.
+	 */
+	public void start(Workflow workflow) {
+		workflows.put(workflow.id, workflow);
+		Journal j = journal;
+		if (journaling && (j != null) && !j.plan(workflow)) {
+			Configuration.getInstance().getEventLog().append(
+				new RegSysEvent(
+						this,
+						RegSysEvent.STATUS_ERROR,
+						RegSysEvent.TYPE_STATUS,
+						"Unable to journal "+workflow.id
+						+ "<br>Global ID: "+workflow.reg.globalID
+						+ "<br>The registration will not be replayed after a restart"));
+		}
+		workflow.start();
+	}
+
+	/**
+	 * Get a running Workflow.
+	 * @param id the ID of the Workflow.
+	 * @return the Workflow, or null if it is not running.
+	 */
+	public Workflow getWorkflow(String id) {
+		return workflows.get(id);
+	}
+
+	/**
+	 * Get the number of Workflows in progress.
+	 */
+	public int getRunningJobCount() {
+		return workflows.size();
+	}
+
+	/**
+	 * Get the status of a job (a Workflow) as a JSON object. The final
+	 * status of the most recently completed jobs is kept after the
+	 * Workflows themselves are discarded.
+	 * @param id the ID of the Workflow.
+	 * @return the status, or null if the job is unknown.
+	 */
+	public String getJobStatus(String id) {
+		Workflow workflow = workflows.get(id);
+		if (workflow != null) return workflow.toJSON();
+		synchronized (completedJobs) {
+			return completedJobs.get(id);
+		}
+	}
+
+	//Called by a Workflow when one of its steps is done.
+	void stepComplete(Workflow.Step step) {
+		Journal j = journal;
+		if (journaling && (j != null)) j.done(step);
+	}
+
+	//Called by a Workflow when its last step is done.
+	void workflowComplete(Workflow workflow) {
+		String status = workflow.toJSON();
+		synchronized (completedJobs) {
+			completedJobs.put(workflow.id, status);
+		}
+		workflows.remove(workflow.id);
+		Journal j = journal;
+		if (journaling && (j != null)) j.end(workflow);
+	}
+
+	/**
+	 * Schedule another attempt at a failed step if its RetryPolicy allows
+	 * it. The step is requeued from the engine's timer so no worker thread
+	 * waits out the delay. When no attempts remain, the Workflow saves the
+	 * step in the DeadLetterStore when it completes the step.
+	 * @return true if the step will be retried; false if it is finished.
+	 */
+	boolean retry(Workflow.Step step) {
+		Configuration config = Configuration.getInstance();
+		RetryPolicies.Policy policy = config.getRetryPolicies().getPolicy(step.name);
+		Registration reg = step.getWorkflow().reg;
+		if (step.attempts < policy.maxAttempts) {
+			long delay = policy.getDelay(step.attempts);
+			Workflow workflow = step.getWorkflow();
+			synchronized (workflow) {
+				step.state = Workflow.QUEUED;
+				workflow.changed();
+			}
+			logger.info("Retrying "+step.key+" for "+reg.globalID+" in "+delay+" ms"
+						+ " (attempt "+(step.attempts+1)+" of "+policy.maxAttempts+")");
+			defer(step, delay);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Save a step which failed on its last attempt in the DeadLetterStore,
+	 * together with the steps which were skipped because of it, and
+	 * report the failure in the event log.
+	 */
+	void deadLetter(Workflow.Step step, List<Workflow.Step> skipped) {
+		Configuration config = Configuration.getInstance();
+		Registration reg = step.getWorkflow().reg;
+		boolean saved = DeadLetterStore.getInstance().add(step, step.attempts, step.failure, skipped);
+		config.getEventLog().append(
+			new RegSysEvent(
+					this,
+					RegSysEvent.STATUS_ERROR,
+					RegSysEvent.TYPE_STATUS,
+					"Step "+step.key+" failed after "+step.attempts
+					+ " attempt"+((step.attempts!=1)?"s":"")
+					+ "<br>Global ID: "+reg.globalID
+					+ "<br>Reason: "+step.failure
+					+ ((skipped.size() > 0) ? "<br>Skipped steps: "+skipped.size() : "")
+					+ (saved ? "<br>Saved as a dead letter" : "")));
+	}
+
+	/**
+	 * Queue a step again after a delay. The step waits on the engine's
+	 * timer, so no worker thread is held while it waits.
+	 */
+	void defer(final Workflow.Step step, long delay) {
+		getTimer().schedule(
+			new Runnable() {
+				public void run() { dispatch(step, false); }
+			},
+			delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the thread priority for the steps of a Product class.
+	 */
+	public static int getPriority(String name) {
+		if (name.equals("registry")) return Thread.MAX_PRIORITY;
+		if (name.equals("ehrsystem") || name.equals("dcmsystem")) return Thread.MIN_PRIORITY;
+		return Thread.NORM_PRIORITY;
+	}
+
+	/**
+	 * Queue a Workflow step for processing. Steps for a DataSystem go to
+	 * its own DispatchQueue; other steps go to the pool for their class.
+	 * When the DispatchQueue is full, the step is spilled if the policy
+	 * is spill. Otherwise, a producer (the code accepting a registration)
+	 * blocks, while a worker queueing a dependent step never blocks;
+	 * the step is retried on the engine's timer instead.
+	 * @param step the step to queue.
+	 * @param producer true if the caller is accepting a new registration.
+	 */
+	public void dispatch(final Workflow.Step step, final boolean producer) {
+		if (step.product instanceof DataSystem) {
+			DispatchQueue queue = getQueue((DataSystem)step.product);
+			if (queue.offer(step)) return;
+			if (queue.isShutdown()) { dispatch(step, producer); return; }
+			if (backpressure.equals(SPILL) && queue.spill(step)) return;
+			if (producer) queue.put(step);
+			else {
+				getTimer().schedule(
+					new Runnable() {
+						public void run() { dispatch(step, false); }
+					},
+					100L, TimeUnit.MILLISECONDS);
+			}
+		}
+		else getPool(step.product.el.getTagName()).execute(step);
+	}
+
+	/**
+	 * Get the DispatchQueue for a DataSystem, creating it if necessary.
+	 * If the queue size, the number of workers, or the execution mode
+	 * has changed since the queue was created, the old queue is shut down after its pending
+	 * work is done, and a new one replaces it.
+	 */
+	public synchronized DispatchQueue getQueue(DataSystem system) {
+		int workers = system.workers;
+		if (workers <= 0) workers = Configuration.getInstance().getPoolSize(system.el.getTagName());
+		int queueSize = (system.queueSize > 0) ? system.queueSize : defaultQueueSize;
+		DispatchQueue queue = queues.get(system.id);
+		boolean virtual = executionMode.equals(VIRTUAL);
+		if ((queue == null) || (queue.workers != workers)
+				|| (queue.queueSize != queueSize) || (queue.virtual != virtual)) {
+			if (queue != null) queue.shutdown();
+			queue = new DispatchQueue(system.id, workers, queueSize, virtual);
+			queues.put(system.id, queue);
+		}
+		return queue;
+	}
+
+	/**
+	 * Get the pool of helper threads for a DataSystem, which its steps
+	 * use to divide their work among several threads. The pool has
+	 * enough threads for each of the system's workers to have the
+	 * given number of helpers, and it uses the current execution mode.
+	 * If the size or the mode has changed since the pool was created,
+	 * the old pool is shut down after its pending work is done, and a
+	 * new one replaces it.
+	 * @param system the DataSystem.
+	 * @param perStep the number of helpers for one step.
+	 */
+	public synchronized ExecutorService getHelperPool(DataSystem system, int perStep) {
+		int workers = system.workers;
+		if (workers <= 0) workers = Configuration.getInstance().getPoolSize(system.el.getTagName());
+		int size = Math.max(1, workers * perStep);
+		ExecutorService pool = helpers.get(system.id);
+		if ((pool == null) || (getSize(pool) != size)) {
+			if (pool != null) pool.shutdown();
+			pool = createPool("helper-"+system.id, size);
+			helpers.put(system.id, pool);
+		}
+		return pool;
+	}
+
+	//Reload spilled work into the queues that have space for it.
+	private void drain() {
+		DispatchQueue[] qs;
+		synchronized (this) {
+			qs = queues.values().toArray(new DispatchQueue[queues.size()]);
+		}
+		for (int i=0; i<qs.length; i++) qs[i].drain();
+	}
+
+	/**
+	 * Set the number of worker threads in the pool for a Product class.
+	 * @param name the element name of the Product class (e.g., "dcmsystem").
+	 * @param size the number of worker threads.
+	 */
+	public synchronized void setPoolSize(String name, int size) {
+		if (size < 1) size = 1;
+		ExecutorService executor = getPool(name);
+		if (executor instanceof VirtualExecutor) {
+			//The limit of a VirtualExecutor is fixed, so it is replaced.
+			//The old one finishes the work it already has.
+			if (getSize(executor) != size) {
+				pools.put(name, createPool(name, size));
+				executor.shutdown();
+			}
+			return;
+		}
+		ThreadPoolExecutor pool = (ThreadPoolExecutor)executor;
+		if (size > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		}
+		else {
+			pool.setCorePoolSize(size);
+			pool.setMaximumPoolSize(size);
+		}
+	}
+
+	/**
+	 * Get the number of units of work waiting for a worker thread
+	 * in the pool for a Product class.
+	 */
+	public int getQueueLength(String name) {
+		ExecutorService pool = getPool(name);
+		if (pool instanceof VirtualExecutor) return ((VirtualExecutor)pool).getQueueLength();
+		return ((ThreadPoolExecutor)pool).getQueue().size();
+	}
+
+	private synchronized ExecutorService getPool(String name) {
+		ExecutorService pool = pools.get(name);
+		if (pool == null) {
+			pool = createPool(name, defaultPoolSize);
+			pools.put(name, pool);
+		}
+		return pool;
+	}
+
+	//Create a pool with an unbounded queue in the current execution mode.
+	private ExecutorService createPool(String name, int size) {
+		if (executionMode.equals(VIRTUAL)) return new VirtualExecutor(name, size, Integer.MAX_VALUE);
+		ThreadPoolExecutor pool =
+			new ThreadPoolExecutor(
+					size, size,
+					60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new WorkerFactory(name));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	//Get the number of units of work a pool runs at once.
+	private static int getSize(ExecutorService pool) {
+		if (pool instanceof VirtualExecutor) return ((VirtualExecutor)pool).limit;
+		return ((ThreadPoolExecutor)pool).getCorePoolSize();
+	}
+
+	//Create named daemon threads so idle pools do not keep the program alive.
+	//In virtual mode, the threads are virtual threads, which are always daemons.
+	//Virtual threads are created by reflection so the program still runs on
+	//Java runtimes that do not support them.
+	public static class WorkerFactory implements ThreadFactory {
+		static ThreadFactory virtualFactory = null;
+		static boolean checked = false;
+		String name;
+		boolean virtual;
+		AtomicInteger count = new AtomicInteger(0);
+		public WorkerFactory(String name) {
+			this(name, false);
+		}
+		public WorkerFactory(String name, boolean virtual) {
+			this.name = name;
+			this.virtual = virtual && supportsVirtualThreads();
+		}
+		public Thread newThread(Runnable runnable) {
+			if (virtual) {
+				Thread thread = virtualFactory.newThread(runnable);
+				thread.setName(name + "-vworker-" + count.incrementAndGet());
+				return thread;
+			}
+			Thread thread = new Thread(runnable, name + "-worker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+		static synchronized boolean supportsVirtualThreads() {
+			if (!checked) {
+				checked = true;
+				try {
+					Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+					Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+					virtualFactory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+				}
+				catch (Exception unsupported) { virtualFactory = null; }
+			}
+			return (virtualFactory != null);
+		}
+	}
+
+}
@@ -0,0 +1,245 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A token-bucket rate limiter for one destination URL. For an hl7URL or
+ * a soapURL, a token is one message; for a dcmURL, it is one byte. The
+ * bucket holds one second's worth of tokens (but at least one), and it is
+ * refilled continuously at the configured rate.
+ * <p>
+ * A Workflow step for a limited destination is admitted only when a token
+ * is available. Otherwise, it is requeued on the ProcessingEngine's timer,
+ * so no worker thread waits for tokens. The token taken on admission pays
+ * for the first message of the step. Any further messages sent by the step
+ * take their tokens without waiting, leaving the bucket in debt, which
+ * delays the admission of the next step. DICOM bytes are taken as they are
+ * written, pausing the transfer whenever the bucket is in debt, because an
+ * association in progress cannot be set aside.
+ */
+public class RateLimiter {
+
+	static Hashtable<String,RateLimiter> limiters = new Hashtable<String,RateLimiter>();
+	static Hashtable<String,Request> requests = new Hashtable<String,Request>();
+	static boolean loading = false;
+
+	public final String url;
+	double rate;
+	double capacity;
+	double tokens;
+	long last;
+
+	/**
+	 * Set the rate requested by a system for a destination. When several
+	 * systems limit the same destination, the lowest rate applies, so a
+	 * system which does not limit it does not remove the others' limit.
+	 * @param owner the ID of the system and the kind of destination
+	 * (e.g., "pacs1:dcm"), so a system which is loaded again replaces
+	 * its earlier request.
+	 * @param url the destination URL.
+	 * @param rate the number of tokens per second, or zero if the
+	 * system does not limit the destination.
+	 */
+	public static void setRate(String owner, String url, double rate) {
+		url = (url != null) ? url.trim() : "";
+		synchronized (limiters) {
+			Request old = requests.remove(owner);
+			if (!url.equals("") && (rate > 0)) requests.put(owner, new Request(url, rate));
+			if (old != null) apply(old.url);
+			apply(url);
+		}
+	}
+
+	/**
+	 * Remove the rates requested by a system which has been deleted.
+	 * @param id the ID of the system.
+	 */
+	public static void removeRates(String id) {
+		synchronized (limiters) {
+			String prefix = id + ":";
+			for (String owner : new LinkedList<String>(requests.keySet())) {
+				if (owner.startsWith(prefix)) setRate(owner, "", 0);
+			}
+		}
+	}
+
+	/**
+	 * Forget the requested rates before the configuration is loaded.
+	 * The limiters are kept while the systems are loaded, so the
+	 * steps which are waiting for them are not disturbed.
+	 */
+	public static void startLoading() {
+		synchronized (limiters) {
+			requests.clear();
+			loading = true;
+		}
+	}
+
+	/**
+	 * Remove the limiters for the destinations which are
+	 * not limited by any system in the loaded configuration.
+	 */
+	public static void endLoading() {
+		synchronized (limiters) {
+			loading = false;
+			for (String url : new LinkedList<String>(limiters.keySet())) apply(url);
+		}
+	}
+
+	//Apply the lowest rate requested for a destination, removing its
+	//limiter if no system limits it (except while loading).
+	private static void apply(String url) {
+		if (url.equals("")) return;
+		double rate = 0;
+		for (Request request : requests.values()) {
+			if (request.url.equals(url) && ((rate == 0) || (request.rate < rate))) rate = request.rate;
+		}
+		RateLimiter limiter = limiters.get(url);
+		if (rate <= 0) {
+			if ((limiter != null) && !loading) limiters.remove(url);
+		}
+		else if (limiter == null) limiters.put(url, new RateLimiter(url, rate));
+		else if (limiter.getRate() != rate) limiter.setRate(rate);
+	}
+
+	//A rate requested by one system.
+	static class Request {
+		final String url;
+		final double rate;
+		Request(String url, double rate) {
+			this.url = url;
+			this.rate = rate;
+		}
+	}
+
+	/**
+	 * Get the limiter for a destination.
+	 * @return the limiter, or null if the destination is not limited.
+	 */
+	public static RateLimiter get(String url) {
+		if (url == null) return null;
+		return limiters.get(url.trim());
+	}
+
+	/**
+	 * Take tokens for a destination without waiting.
+	 * Nothing is done if the destination is not limited.
+	 */
+	public static void take(String url, double n) {
+		RateLimiter limiter = get(url);
+		if (limiter != null) limiter.take(n);
+	}
+
+	protected RateLimiter(String url, double rate) {
+		this.url = url;
+		last = System.nanoTime();
+		setRate(rate);
+		tokens = capacity;
+	}
+
+	private synchronized void setRate(double rate) {
+		refill();
+		this.rate = rate;
+		this.capacity = Math.max(rate, 1.0);
+		tokens = Math.min(tokens, capacity);
+	}
+
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	//Add the tokens earned since the last refill.
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - last) * rate / 1.0e9);
+		last = now;
+	}
+
+	//Get the time in ms until the bucket holds n tokens.
+	private long getWait(double n) {
+		if (tokens >= n) return 0;
+		return Math.max(1L, (long)Math.ceil((n - tokens) * 1000.0 / rate));
+	}
+
+	/**
+	 * Admit a step if a token is available.
+	 * @param step the step to be run.
+	 * @return zero if the step was admitted, or the time
+	 * in ms to wait before trying again.
+	 */
+	public long admit(Workflow.Step step) {
+		synchronized (this) {
+			refill();
+			long wait = getWait(1.0);
+			if (wait > 0) return wait;
+			tokens -= 1.0;
+		}
+		step.admission = this;
+		return 0;
+	}
+
+	/**
+	 * Take tokens without waiting. If the step running in the current
+	 * thread was admitted by this limiter, its admission token is used first.
+	 */
+	public void take(double n) {
+		Workflow.Step step = Workflow.current.get();
+		if ((step != null) && (step.admission == this)) {
+			step.admission = null;
+			n -= 1.0;
+		}
+		if (n <= 0) return;
+		synchronized (this) {
+			refill();
+			tokens -= n;
+		}
+	}
+
+	/**
+	 * Take tokens, waiting until the bucket is out of debt.
+	 */
+	public void acquire(double n) throws InterruptedIOException {
+		take(n);
+		long wait;
+		synchronized (this) {
+			refill();
+			wait = getWait(0.0);
+		}
+		if (wait > 0) {
+			try { Thread.sleep(wait); }
+			catch (InterruptedException ex) {
+				throw new InterruptedIOException("Interrupted while shaping the transfer to "+url);
+			}
+		}
+	}
+
+	/**
+	 * Wrap a stream so the bytes written to it are shaped by this limiter.
+	 */
+	public OutputStream shape(OutputStream out) {
+		return new ShapedOutputStream(out);
+	}
+
+	class ShapedOutputStream extends FilterOutputStream {
+		public ShapedOutputStream(OutputStream out) {
+			super(out);
+		}
+		public void write(int b) throws IOException {
+			acquire(1.0);
+			out.write(b);
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			acquire(len);
+			out.write(b, off, len);
+		}
+	}
+
+}
@@ -20,6 +20,7 @@ public class RegSysEvent extends AWTEvent {
 
 	public static final int STATUS_OK		= 0;
 	public static final int STATUS_ERROR	= 1;
+	public static final int STATUS_CIRCUIT_OPEN	= 2;
 
 	public static final int TYPE_STATUS		= 0;
 	public static final int TYPE_HL7		= 1;
@@ -36,7 +37,8 @@ public class RegSysEvent extends AWTEvent {
 
 	private String[] statusStrings = {
 		"OK",
-		"ERROR"
+		"ERROR",
+		"CIRCUIT OPEN"
 	};
 
 	private String[] typeStrings = {
@@ -63,7 +65,7 @@ public class RegSysEvent extends AWTEvent {
 	/**
 	 * Class constructor capturing information about an XSDI event.
 	 * @param source the source of the event.
-	 * @param status the status conveyed by the event (OK or ERROR).
+	 * @param status the status conveyed by the event (OK, ERROR, or CIRCUIT_OPEN).
 	 * @param type the type of event.
 	 * @param text the message.
 	 */
@@ -122,7 +124,7 @@ public class RegSysEvent extends AWTEvent {
 
 	public void appendTableRow(StringBuffer sb) {
 		sb.append("<tr><td valign=\"top\" width=\"90\">"+timeText+"</td><td>");
-		if (status == STATUS_ERROR) sb.append("<font color=\"red\">");
+		if (status != STATUS_OK) sb.append("<font color=\"red\">");
 		else sb.append("<font color=\""+colors[type]+"\">");
 		sb.append(getType() + " (" + getStatus() + ")<br>" + text.replaceAll("\\r","<br>"));
 		sb.append("</font>");
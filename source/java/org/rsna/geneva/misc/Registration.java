@@ -14,6 +14,8 @@ import org.w3c.dom.NodeList;
 import java.io.File;
 import java.net.*;
 import java.util.*;
+import org.rsna.geneva.elements.DCMSystem;
+import org.rsna.geneva.elements.EHRSystem;
 import org.rsna.geneva.main.Configuration;
 import org.rsna.server.HttpRequest;
 import org.rsna.util.StringUtil;
@@ -38,19 +40,24 @@ public class Registration {
 
 	//This constructor is used for new registrations
 	public Registration(HttpRequest req, Configuration config) {
-		givenName = req.getParameter("givenName", "");
+		this(req.params, config);
+	}
+
+	//This constructor is used for new registrations from forms and bulk submissions
+	public Registration(Hashtable<String,String> fields, Configuration config) {
+		givenName = getField(fields,"givenName", "");
 		givenName = givenName.replaceAll("[^a-zA-Z]","");
-		familyName = req.getParameter("familyName", "");
+		familyName = getField(fields,"familyName", "");
 		familyName = familyName.replaceAll("[^a-zA-Z]","");
-		birthdate = filterDate(req.getParameter("birthdate", ""));
-		email = req.getParameter("email", "").trim();
+		birthdate = filterDate(getField(fields,"birthdate", ""));
+		email = getField(fields,"email", "").trim();
 		if (email.equals("")) {
 			email = givenName + "."
 						+ familyName + "."
 							+ ( (System.currentTimeMillis()/1000) % 1000 )
 								+"@ihe.net";
 		}
-		sex = req.getParameter("sex", "M");
+		sex = getField(fields,"sex", "M");
 		sex = sex.equals("") ? "M" : sex;
 		Address address = config.getAddress(sex);
 		street = address.street;
@@ -60,7 +67,7 @@ public class Registration {
 		country = address.country;
 
 		//get the globalID
-		globalID = req.getParameter("globalID", "").replaceAll("\\D","");
+		globalID = getField(fields,"globalID", "").replaceAll("\\D","");
 		if (globalID.length() > 15) globalID = globalID.substring(0,15);
 		if (globalID.length() == 0) {
 			//The globalID was empty or illegal, create a new one based on the date/time
@@ -69,7 +76,7 @@ public class Registration {
 			int len = globalID.length();
 			globalID = globalID.substring(0, len-3);
 		}
-		localID = req.getParameter("localID", ""); //for matching only
+		localID = getField(fields,"localID", ""); //for matching only
 		localIDs = new LinkedList<LocalID>();
 		localIDTable = new Hashtable<String,String>();
 	}
@@ -138,6 +145,33 @@ public class Registration {
 		localIDTable = new Hashtable<String,String>();
 	}
 
+	//This constructor is used for registrations read from batch files
+	public Registration(Hashtable<String,String> fields) {
+		givenName = getField(fields,"givenName");
+		familyName = getField(fields,"familyName");
+		street = getField(fields,"street");
+		city = getField(fields,"city");
+		state = getField(fields,"state");
+		zip = getField(fields,"zip");
+		country = getField(fields,"country");
+		email = getField(fields,"email");
+		birthdate = getField(fields,"birthdate");
+		sex = getField(fields,"sex");
+		globalID = getField(fields,"globalID");
+		localIDs = new LinkedList<LocalID>();
+		localIDTable = new Hashtable<String,String>();
+	}
+
+	private static String getField(Hashtable<String,String> fields, String name) {
+		String value = fields.get(name);
+		return (value != null) ? value.trim() : "";
+	}
+
+	private static String getField(Hashtable<String,String> fields, String name, String defaultValue) {
+		String value = fields.get(name);
+		return (value != null) ? value : defaultValue;
+	}
+
 	public Registration(Element reg) {
 		givenName = getChildElementText(reg,"givenName");
 		familyName = getChildElementText(reg,"familyName");
@@ -196,6 +230,36 @@ public class Registration {
 		return (value.toLowerCase().indexOf(substring.toLowerCase()) != -1);
 	}
 
+	/**
+	 * Set the local IDs for the DCMSystems and EHRSystems that do not already
+	 * have them. Systems with the same local assigning authority share one ID.
+	 */
+	public void assignLocalIDs(Configuration config) {
+		Hashtable<String,String> idgroups = new Hashtable<String,String>();
+		DCMSystem[] dcmsystems = config.getDCMSystems();
+		for (int i=0; i<dcmsystems.length; i++) {
+			String localAssigningAuthority = dcmsystems[i].localAssigningAuthority;
+			String localID = idgroups.get(localAssigningAuthority);
+			if (localID == null) {
+				localID = localIDTable.get(dcmsystems[i].id);
+				if (localID == null) localID = config.getLocalID();
+				idgroups.put(localAssigningAuthority,localID);
+			}
+			addLocalID(dcmsystems[i].id,localID);
+		}
+		EHRSystem[] ehrsystems = config.getEHRSystems();
+		for (int i=0; i<ehrsystems.length; i++) {
+			String localAssigningAuthority = ehrsystems[i].localAssigningAuthority;
+			String localID = idgroups.get(localAssigningAuthority);
+			if (localID == null) {
+				localID = localIDTable.get(ehrsystems[i].id);
+				if (localID == null) localID = config.getLocalID();
+				idgroups.put(localAssigningAuthority,localID);
+			}
+			addLocalID(ehrsystems[i].id,localID);
+		}
+	}
+
 	public void addLocalID(String systemID, String localID) {
 		if (localIDTable.get(systemID) ==  null) {
 			localIDs.add(new LocalID(systemID, localID));
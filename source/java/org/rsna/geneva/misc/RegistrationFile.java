@@ -0,0 +1,292 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * A streaming reader for batch registration files, shared by the Batch
+ * Registration panel and the command-line batch program. The file is
+ * either an XML file with the schema of the registration database or
+ * a CSV file whose columns are identified in the columns.properties file.
+ * The registrations are read one at a time, so a batch can be processed
+ * while the file is still being read, and the memory required does not
+ * depend on the size of the file.
+ */
+public class RegistrationFile {
+
+	static final Logger logger = Logger.getLogger(RegistrationFile.class);
+
+	//The fields that can be obtained from the columns of a CSV file.
+	static final String[] fieldNames = {
+		"globalID", "givenName", "familyName", "email", "birthdate",
+		"sex", "street", "city", "state", "country", "zip"
+	};
+	static final int NONE = -2;
+
+	File regFile;
+	InputStream in;
+	XMLStreamReader xml = null;
+	BufferedReader csv = null;
+	int[] columnIndexes;
+	String[] fields;
+	String defaultEmail;
+	String defaultCountry;
+	int count = 0;
+
+	/**
+	 * Open a registration file.
+	 * @param regFile the file.
+	 * @throws Exception if the file cannot be opened, or if it is a
+	 * CSV file and the columns.properties file cannot be loaded.
+	 */
+	public RegistrationFile(File regFile) throws Exception {
+		this.regFile = regFile;
+		in = new BufferedInputStream(new FileInputStream(regFile));
+		try {
+			if (isXML()) {
+				XMLInputFactory factory = XMLInputFactory.newInstance();
+				factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+				factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+				xml = factory.createXMLStreamReader(in);
+			}
+			else {
+				Properties columns = getColumns();
+				if (columns == null) throw new Exception("Unable to load columns.properties");
+				setColumns(columns);
+				csv = new BufferedReader(new InputStreamReader(in, FileUtil.latin1));
+				//Skip the first line; it contains the column headings.
+				csv.readLine();
+			}
+		}
+		catch (Exception ex) {
+			close();
+			throw ex;
+		}
+	}
+
+	//Determine whether the file is XML by looking
+	//for a '<' as the first non-whitespace character.
+	private boolean isXML() throws IOException {
+		in.mark(1024);
+		try {
+			int b;
+			for (int i=0; (i<1024) && ((b = in.read()) != -1); i++) {
+				if ((b == 0xEF) || (b == 0xBB) || (b == 0xBF)) continue; //UTF-8 BOM
+				if (!Character.isWhitespace(b)) return (b == '<');
+			}
+			return false;
+		}
+		finally { in.reset(); }
+	}
+
+	static Properties getColumns() {
+		Properties columns = new Properties();
+		FileInputStream stream = null;
+		try {
+			stream = new FileInputStream(new File("columns.properties"));
+			columns.load(stream);
+			stream.close();
+			return columns;
+		}
+		catch (Exception ex) {
+			if (stream != null) {
+				try { stream.close(); }
+				catch (Exception ignore) { }
+			}
+		}
+		return null;
+	}
+
+	//Get the column index of each field. Fields that are not in the
+	//properties are NONE; fields with an invalid column name are -1,
+	//which gives them an empty value.
+	private void setColumns(Properties columns) {
+		columnIndexes = new int[fieldNames.length];
+		int max = -1;
+		for (int i=0; i<fieldNames.length; i++) {
+			String column = columns.getProperty(fieldNames[i]);
+			columnIndexes[i] = (column != null) ? getFieldIndex(column.trim()) : NONE;
+			max = Math.max(max, columnIndexes[i]);
+		}
+		fields = new String[max + 1];
+		defaultEmail = columns.getProperty("givenName")
+							+ "."
+								+ columns.getProperty("familyName")
+									+ "@ihe.org";
+		defaultCountry = columns.getProperty("defaultCountry");
+	}
+
+	//Get the index of a column from its name (A, B, ..., Z, AA, ..., ZZ).
+	static int getFieldIndex(String column) {
+		column = column.toUpperCase();
+		int n = column.length();
+		if ((n < 1) || (n > 2)) return -1;
+		int index = -1;
+		for (int i=0; i<n; i++) {
+			int d = column.charAt(i) - 'A';
+			if ((d < 0) || (d > 25)) return -1;
+			index = (index + 1) * 26 + d;
+		}
+		return index;
+	}
+
+	/**
+	 * Get the next registration in the file.
+	 * @return the registration, or null if the end of the file has been reached.
+	 * @throws Exception if the file cannot be parsed.
+	 */
+	public Registration next() throws Exception {
+		Registration reg = null;
+		if (xml != null) reg = getXMLRegistration();
+		else if (csv != null) reg = getCSVRegistration();
+		if (reg != null) count++;
+		else close();
+		return reg;
+	}
+
+	/**
+	 * Get the number of registrations read so far.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Close the file. This is done automatically when the end of the file is reached.
+	 */
+	public void close() {
+		try { if (xml != null) xml.close(); }
+		catch (Exception ignore) { }
+		try { in.close(); }
+		catch (Exception ignore) { }
+		xml = null;
+		csv = null;
+	}
+
+	//Find the next registration element and get its fields.
+	private Registration getXMLRegistration() throws XMLStreamException {
+		while (xml.hasNext()) {
+			if ((xml.next() == XMLStreamConstants.START_ELEMENT)
+					&& xml.getLocalName().equals("registration")) {
+				Hashtable<String,String> values = new Hashtable<String,String>();
+				LinkedList<String[]> localIDs = new LinkedList<String[]>();
+				int event;
+				while ((event = xml.next()) != XMLStreamConstants.END_ELEMENT) {
+					if (event != XMLStreamConstants.START_ELEMENT) continue;
+					String name = xml.getLocalName();
+					if (name.equals("localID")) {
+						Hashtable<String,String> lid = new Hashtable<String,String>();
+						while ((event = xml.next()) != XMLStreamConstants.END_ELEMENT) {
+							if (event == XMLStreamConstants.START_ELEMENT) lid.put(xml.getLocalName(), getText());
+						}
+						String systemID = lid.get("systemID");
+						String localID = lid.get("localID");
+						if ((systemID != null) && (localID != null)) localIDs.add(new String[] { systemID, localID });
+					}
+					else values.put(name, getText());
+				}
+				Registration reg = new Registration(values);
+				for (String[] lid : localIDs) reg.addLocalID(lid[0], lid[1]);
+				return reg;
+			}
+		}
+		return null;
+	}
+
+	//Get the text of the current element, skipping any child elements.
+	private String getText() throws XMLStreamException {
+		StringBuffer sb = new StringBuffer();
+		int depth = 1;
+		while (depth > 0) {
+			int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT) depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+			else if ((depth == 1)
+						&& ((event == XMLStreamConstants.CHARACTERS)
+							|| (event == XMLStreamConstants.CDATA)
+							|| (event == XMLStreamConstants.SPACE))) {
+				sb.append(xml.getText());
+			}
+		}
+		return sb.toString().trim();
+	}
+
+	//Get the next line of the CSV file and map its columns to fields.
+	private Registration getCSVRegistration() throws IOException {
+		String line = csv.readLine();
+		if (line == null) return null;
+		split(line, fields);
+		Hashtable<String,String> values = new Hashtable<String,String>();
+		for (int i=0; i<fieldNames.length; i++) {
+			int index = columnIndexes[i];
+			if (index == NONE) continue;
+			String value = (index >= 0) ? fields[index] : null;
+			values.put(fieldNames[i], (value != null) ? value.trim() : "");
+		}
+		String email = values.get("email");
+		if ((email != null) && email.equals("")) values.put("email", defaultEmail);
+		String birthdate = values.get("birthdate");
+		if (birthdate != null) values.put("birthdate", Registration.filterDate(birthdate));
+		String sex = values.get("sex");
+		if (sex != null) values.put("sex", sex.toUpperCase().startsWith("F") ? "F" : "M");
+		String country = values.get("country");
+		if ((country != null) && country.equals("") && (defaultCountry != null)) values.put("country", defaultCountry);
+		return new Registration(values);
+	}
+
+	/**
+	 * Split a CSV line into fields. Only as many fields as the array holds
+	 * are obtained; missing fields are set to null. A field is a substring
+	 * of the line unless it contains a doubled quote, which must be unescaped.
+	 * @param line the line.
+	 * @param fields the array to receive the fields.
+	 */
+	static void split(String line, String[] fields) {
+		Arrays.fill(fields, null);
+		int n = line.length();
+		int k = 0;
+		for (int f=0; (f<fields.length) && (k<=n); f++) {
+			if ((k < n) && (line.charAt(k) == '"')) {
+				int start = ++k;
+				StringBuffer sb = null;
+				while (k < n) {
+					if (line.charAt(k) == '"') {
+						if ((k+1 < n) && (line.charAt(k+1) == '"')) {
+							if (sb == null) sb = new StringBuffer();
+							sb.append(line, start, k+1);
+							k += 2;
+							start = k;
+							continue;
+						}
+						break;
+					}
+					k++;
+				}
+				String value = line.substring(start, k);
+				fields[f] = (sb == null) ? value : sb.append(value).toString();
+				k = line.indexOf(',', k);
+				k = (k < 0) ? n+1 : k+1;
+			}
+			else {
+				int end = line.indexOf(',', k);
+				if (end < 0) end = n;
+				fields[f] = line.substring(k, end);
+				k = end + 1;
+			}
+		}
+	}
+
+}
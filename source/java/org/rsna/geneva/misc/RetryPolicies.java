@@ -0,0 +1,151 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.util.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The retry policies for the steps of registration Workflows. Each policy
+ * names a step (a transaction type, e.g., "ITI8" or "DICOM"), the maximum
+ * number of attempts, and the delays between attempts:
+ * <pre>
+ *   &lt;retries&gt;
+ *     &lt;retry step="DICOM" maxAttempts="3" initialDelay="10000" maxDelay="120000"/&gt;
+ *   &lt;/retries&gt;
+ * </pre>
+ * The delay doubles after each attempt up to the maximum, and a random
+ * jitter of up to half the delay is subtracted from it so that the retries
+ * for a system which has been down do not all arrive at once. The policy
+ * for step "*" applies to steps with no policy of their own. Policies in
+ * the configuration replace the default policy for the same step.
+ */
+public class RetryPolicies {
+
+	static final String[][] defaultPolicies = {
+		//step		maxAttempts		initialDelay	maxDelay
+		{ "*",		"4",			"2000",			"60000" },
+		{ "DICOM",	"3",			"10000",		"120000" },
+		{ "KOS",	"3",			"5000",			"60000" },
+		{ "XDS",	"3",			"5000",			"60000" }
+	};
+
+	static final Random random = new Random();
+
+	Hashtable<String,Policy> policies;
+	Element declared = null;
+
+	/**
+	 * Create the policies from a retries element.
+	 * @param el the retries element, or null to use only the default policies.
+	 */
+	public RetryPolicies(Element el) {
+		policies = new Hashtable<String,Policy>();
+		for (int i=0; i<defaultPolicies.length; i++) {
+			String[] p = defaultPolicies[i];
+			policies.put(p[0], new Policy(p[0], getInt(p[1], 1), getInt(p[2], 0), getInt(p[3], 0)));
+		}
+		if (el != null) {
+			declared = el;
+			Node child = el.getFirstChild();
+			while (child != null) {
+				if ((child.getNodeType() == Node.ELEMENT_NODE)
+						&& child.getNodeName().equals("retry")) {
+					Element retry = (Element)child;
+					String step = retry.getAttribute("step").trim();
+					if (!step.equals("")) {
+						Policy def = getPolicy(step);
+						policies.put(step,
+							new Policy(
+								step,
+								getInt(retry.getAttribute("maxAttempts"), def.maxAttempts),
+								getInt(retry.getAttribute("initialDelay"), def.initialDelay),
+								getInt(retry.getAttribute("maxDelay"), def.maxDelay)));
+					}
+				}
+				child = child.getNextSibling();
+			}
+		}
+	}
+
+	private static int getInt(String s, int defaultValue) {
+		try { return Integer.parseInt(s.trim()); }
+		catch (Exception ex) { return defaultValue; }
+	}
+
+	/**
+	 * Get the policy for a step.
+	 * @param step the name of the step.
+	 * @return the policy for the step, or the policy for "*" if
+	 * the step has no policy of its own.
+	 */
+	public Policy getPolicy(String step) {
+		Policy policy = policies.get(step);
+		if (policy == null) policy = policies.get("*");
+		return policy;
+	}
+
+	/**
+	 * Get a copy of the retries element from the configuration
+	 * for inclusion in a saved configuration file.
+	 * @return the retries element, or null if the configuration
+	 * did not declare one.
+	 */
+	public Element getXML(Document doc) {
+		if (declared == null) return null;
+		return (Element)doc.importNode(declared, true);
+	}
+
+	/**
+	 * Append the policies to a table of configuration parameters.
+	 */
+	public void appendTableRows(StringBuffer sb) {
+		String[] keys = policies.keySet().toArray(new String[policies.size()]);
+		Arrays.sort(keys);
+		for (int i=0; i<keys.length; i++) {
+			Policy p = policies.get(keys[i]);
+			sb.append("<tr><td>"+keys[i]+" retries:</td><td>"
+						+p.maxAttempts+" attempts; "
+						+p.initialDelay+"-"+p.maxDelay+" ms</td></tr>");
+		}
+	}
+
+	/**
+	 * The retry policy for one step.
+	 */
+	public static class Policy {
+		public final String step;
+		public final int maxAttempts;
+		public final int initialDelay;
+		public final int maxDelay;
+
+		public Policy(String step, int maxAttempts, int initialDelay, int maxDelay) {
+			this.step = step;
+			this.maxAttempts = Math.max(maxAttempts, 1);
+			this.initialDelay = Math.max(initialDelay, 0);
+			this.maxDelay = Math.max(maxDelay, this.initialDelay);
+		}
+
+		/**
+		 * Get the delay before the next attempt.
+		 * @param attempts the number of attempts already made.
+		 * @return the delay in milliseconds.
+		 */
+		public long getDelay(int attempts) {
+			long delay = initialDelay;
+			for (int i=1; (i<attempts) && (delay < maxDelay); i++) delay *= 2;
+			delay = Math.min(delay, maxDelay);
+			long jitter;
+			synchronized (random) { jitter = (long)(random.nextDouble() * delay / 2); }
+			return delay - jitter;
+		}
+	}
+
+}
@@ -0,0 +1,319 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.io.*;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.DcmParser;
+import org.dcm4che.dict.Tags;
+import org.rsna.geneva.objects.DicomObject;
+import org.rsna.util.FileUtil;
+
+/**
+ * The manifest of a Study directory: one entry for each file in the
+ * directory tree, in the order of their paths, giving the size of the
+ * file and, for DICOM files, the SOP class, SOP instance, series, and
+ * study UIDs, the modality, the transfer syntax, and the offset of the
+ * pixel data.
+ * <p>
+ * A manifest is built by parsing the headers of the files once, and it
+ * is saved in the manifests directory, so it is reused after a restart.
+ * It is rebuilt when the latest modification time of the files and
+ * directories in the tree changes. The tree is checked at most once
+ * per second, so many registrations can share one check.
+ * <p>
+ * A manifest is not changed after it is built, so a transfer that
+ * holds one sees the same files from start to finish.
+ */
+public class StudyManifest {
+
+	static final Logger logger = Logger.getLogger(StudyManifest.class);
+
+	public static final File manifestDir = new File("manifests");
+
+	static final long checkInterval = 1000;
+	static final Hashtable<String,Slot> slots = new Hashtable<String,Slot>();
+
+	File dir;
+	long stamp;
+	List<Entry> entries;
+
+	/**
+	 * Get the current manifest of a directory, loading or building it
+	 * if it is not cached or if the directory has been modified.
+	 * @param dir the root of the directory tree.
+	 * @return the manifest, which is empty if the directory does not exist.
+	 */
+	public static StudyManifest getInstance(File dir) {
+		String path = dir.getAbsolutePath();
+		Slot slot;
+		synchronized (slots) {
+			slot = slots.get(path);
+			if (slot == null) {
+				slot = new Slot();
+				slots.put(path, slot);
+			}
+		}
+		synchronized (slot) {
+			long now = System.currentTimeMillis();
+			if ((slot.manifest != null) && (now - slot.checked < checkInterval)) return slot.manifest;
+			long stamp = getStamp(dir);
+			if ((slot.manifest == null) || (slot.manifest.stamp != stamp)) {
+				StudyManifest manifest = load(dir, stamp);
+				if (manifest == null) {
+					manifest = new StudyManifest(dir, stamp);
+					manifest.save();
+				}
+				slot.manifest = manifest;
+			}
+			slot.checked = now;
+			return slot.manifest;
+		}
+	}
+
+	//Build a manifest by walking the tree.
+	protected StudyManifest(File dir, long stamp) {
+		this.dir = dir;
+		this.stamp = stamp;
+		entries = new ArrayList<Entry>();
+		addFiles(dir);
+		logger.debug("Manifest built for "+dir+" ("+entries.size()+" files)");
+	}
+
+	//Create a manifest from a saved list of entries.
+	protected StudyManifest(File dir, long stamp, List<Entry> entries) {
+		this.dir = dir;
+		this.stamp = stamp;
+		this.entries = entries;
+	}
+
+	/**
+	 * Get the entries of the manifest, in the order of their paths.
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * Get the DICOM files in the directory tree, in the order of their paths.
+	 * Files which are not DICOM objects are left out, so they are never
+	 * parsed or sent.
+	 */
+	public List<File> getDicomFiles() {
+		List<File> files = new ArrayList<File>(entries.size());
+		for (Entry entry : entries) {
+			if (entry.isDicom()) files.add(entry.file);
+		}
+		return files;
+	}
+
+	/**
+	 * Get the number of files in the directory tree.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the entry of the first DICOM file in the tree.
+	 * @return the entry, or null if the tree contains no DICOM files.
+	 */
+	public Entry getFirstDicomEntry() {
+		for (Entry entry : entries) {
+			if (entry.isDicom()) return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the SOP classes and transfer syntaxes of the DICOM files.
+	 */
+	public PresContextSet getPresContexts() {
+		PresContextSet set = new PresContextSet();
+		for (Entry entry : entries) {
+			if (entry.isDicom()) set.add(entry.sopClassUID, entry.transferSyntaxUID);
+		}
+		return set;
+	}
+
+	//Walk a directory tree in the order of the paths, adding all the files.
+	private void addFiles(File file) {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			if (files == null) return;
+			Arrays.sort(files);
+			for (int i=0; i<files.length; i++) addFiles(files[i]);
+		}
+		else entries.add(new Entry(file));
+	}
+
+	//Get the latest modification time of the files and directories in a tree.
+	private static long getStamp(File file) {
+		long stamp = file.lastModified();
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (int i=0; i<files.length; i++) stamp = Math.max(stamp, getStamp(files[i]));
+		}
+		return stamp;
+	}
+
+	//Get the file in which the manifest of a directory is saved.
+	private static File getManifestFile(File dir) {
+		String name = dir.getAbsolutePath().replaceAll("[^A-Za-z0-9._-]", "_");
+		return new File(manifestDir, name + ".txt");
+	}
+
+	//Save the manifest. The first line identifies the directory and
+	//its modification stamp; each of the others is a tab-separated entry.
+	private void save() {
+		if (entries.size() == 0) return;
+		try {
+			StringBuffer sb = new StringBuffer();
+			sb.append(dir.getAbsolutePath() + "\t" + stamp + "\n");
+			String root = dir.getAbsolutePath();
+			for (Entry entry : entries) {
+				sb.append(entry.file.getAbsolutePath().substring(root.length() + 1));
+				sb.append("\t" + entry.size);
+				sb.append("\t" + (entry.dicom ? "1" : "0"));
+				sb.append("\t" + entry.pixelDataOffset);
+				sb.append("\t" + str(entry.sopClassUID));
+				sb.append("\t" + str(entry.sopInstanceUID));
+				sb.append("\t" + str(entry.seriesInstanceUID));
+				sb.append("\t" + str(entry.studyInstanceUID));
+				sb.append("\t" + str(entry.modality));
+				sb.append("\t" + str(entry.transferSyntaxUID));
+				sb.append("\n");
+			}
+			manifestDir.mkdirs();
+			File file = getManifestFile(dir);
+			File temp = new File(manifestDir, file.getName() + ".tmp");
+			FileUtil.setText(temp, sb.toString());
+			file.delete();
+			temp.renameTo(file);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to save the manifest for "+dir, ex);
+		}
+	}
+
+	//Load a saved manifest if it has the current stamp.
+	private static StudyManifest load(File dir, long stamp) {
+		File file = getManifestFile(dir);
+		if (!file.exists()) return null;
+		try {
+			String[] lines = FileUtil.getText(file).split("\n");
+			if (!lines[0].equals(dir.getAbsolutePath() + "\t" + stamp)) return null;
+			List<Entry> entries = new ArrayList<Entry>();
+			for (int i=1; i<lines.length; i++) {
+				String[] fields = lines[i].split("\t", -1);
+				if (fields.length < 10) return null;
+				entries.add(new Entry(new File(dir, fields[0]), fields));
+			}
+			return new StudyManifest(dir, stamp, entries);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to load the manifest for "+dir, ex);
+			return null;
+		}
+	}
+
+	private static String str(String s) {
+		return (s != null) ? s.replaceAll("[\\t\\n\\r]", " ").trim() : "";
+	}
+
+	private static String nullIfEmpty(String s) {
+		return s.equals("") ? null : s;
+	}
+
+	/**
+	 * One file in the manifest. For files which are not DICOM objects,
+	 * the UIDs, modality, and transfer syntax are null and the pixel data
+	 * offset is -1. For DICOM objects, the UIDs and transfer syntax are
+	 * null if they are missing, the modality is empty if it is missing,
+	 * and the pixel data offset is -1 if there is no pixel data.
+	 */
+	public static class Entry {
+		public final File file;
+		public final long size;
+		public final boolean dicom;
+		public final long pixelDataOffset;
+		public final String sopClassUID;
+		public final String sopInstanceUID;
+		public final String seriesInstanceUID;
+		public final String studyInstanceUID;
+		public final String modality;
+		public final String transferSyntaxUID;
+
+		//Create an entry by parsing the header of a file.
+		Entry(File file) {
+			this.file = file;
+			this.size = file.length();
+			DicomObject dicomObject = null;
+			try { dicomObject = new DicomObject(file); }
+			catch (Exception notDicom) { }
+			dicom = (dicomObject != null);
+			if (dicom) {
+				DcmParser parser = dicomObject.getDcmParser();
+				pixelDataOffset = (parser.getReadTag() == Tags.PixelData) ? parser.getStreamPosition() : -1;
+				sopClassUID = dicomObject.getSOPClassUID();
+				sopInstanceUID = dicomObject.getSOPInstanceUID();
+				seriesInstanceUID = dicomObject.getSeriesInstanceUID();
+				studyInstanceUID = dicomObject.getStudyInstanceUID();
+				modality = dicomObject.getModality();
+				transferSyntaxUID = getTransferSyntaxUID(dicomObject);
+				dicomObject.close();
+			}
+			else {
+				pixelDataOffset = -1;
+				sopClassUID = null;
+				sopInstanceUID = null;
+				seriesInstanceUID = null;
+				studyInstanceUID = null;
+				modality = null;
+				transferSyntaxUID = null;
+			}
+		}
+
+		//Create an entry from the fields of a saved manifest line.
+		Entry(File file, String[] fields) {
+			this.file = file;
+			this.size = Long.parseLong(fields[1]);
+			this.dicom = fields[2].equals("1");
+			this.pixelDataOffset = Long.parseLong(fields[3]);
+			this.sopClassUID = nullIfEmpty(fields[4]);
+			this.sopInstanceUID = nullIfEmpty(fields[5]);
+			this.seriesInstanceUID = nullIfEmpty(fields[6]);
+			this.studyInstanceUID = nullIfEmpty(fields[7]);
+			this.modality = dicom ? fields[8] : null;
+			this.transferSyntaxUID = nullIfEmpty(fields[9]);
+		}
+
+		/**
+		 * Determine whether the file is a DICOM object.
+		 */
+		public boolean isDicom() {
+			return dicom;
+		}
+
+		//Get the transfer syntax, which is missing if the
+		//object has no file meta information.
+		private static String getTransferSyntaxUID(DicomObject dicomObject) {
+			try { return dicomObject.getTransferSyntaxUID(); }
+			catch (Exception noFileMetaInfo) { return null; }
+		}
+	}
+
+	//The cached manifest of one directory, which is also the
+	//lock held while the manifest is checked or built.
+	static class Slot {
+		StudyManifest manifest = null;
+		long checked = 0;
+	}
+
+}
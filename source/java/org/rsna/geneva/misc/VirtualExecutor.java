@@ -0,0 +1,144 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The executor used in the virtual execution mode. Each task is given
+ * its own virtual thread when it is submitted, and a semaphore lets at
+ * most a fixed number of the tasks run at once, so a destination is still
+ * limited to its number of workers, while the tasks waiting for it cost
+ * only a parked virtual thread each. At most queueSize tasks may wait;
+ * further tasks are rejected by execute, or wait for space in put.
+ */
+public class VirtualExecutor extends AbstractExecutorService {
+
+	public final String name;
+	public final int limit;
+	public final int queueSize;
+
+	final Semaphore permits;
+	final Semaphore slots;
+	final ThreadFactory factory;
+	final HashSet<Thread> threads = new HashSet<Thread>();
+	volatile boolean shutdown = false;
+
+	/**
+	 * Create a VirtualExecutor.
+	 * @param name the name of the executor, used to name its threads.
+	 * @param limit the maximum number of tasks running at once.
+	 * @param queueSize the maximum number of tasks waiting to run.
+	 */
+	public VirtualExecutor(String name, int limit, int queueSize) {
+		this.name = name;
+		this.limit = Math.max(limit, 1);
+		this.queueSize = Math.max(queueSize, 1);
+		permits = new Semaphore(this.limit, true);
+		slots = new Semaphore(this.queueSize);
+		factory = new ProcessingEngine.WorkerFactory(name, true);
+	}
+
+	/**
+	 * Start a task if there is space for it to wait.
+	 * @throws RejectedExecutionException if the executor is full or shut down.
+	 */
+	public void execute(Runnable task) {
+		if (shutdown) throw new RejectedExecutionException(name+" is shut down");
+		if (!slots.tryAcquire()) throw new RejectedExecutionException(name+" is full");
+		start(task);
+	}
+
+	/**
+	 * Start a task, waiting for space for it to wait if necessary.
+	 * @throws RejectedExecutionException if the executor is shut down.
+	 */
+	public void put(Runnable task) throws InterruptedException {
+		if (shutdown) throw new RejectedExecutionException(name+" is shut down");
+		slots.acquire();
+		start(task);
+	}
+
+	//Start the thread for a task. The thread gives up its place
+	//among the waiting tasks when it gets its permit to run.
+	private void start(final Runnable task) {
+		Thread thread = factory.newThread(
+			new Runnable() {
+				public void run() {
+					try {
+						try { permits.acquire(); }
+						catch (InterruptedException ex) { return; }
+						finally { slots.release(); }
+						try { task.run(); }
+						finally { permits.release(); }
+					}
+					finally { finished(Thread.currentThread()); }
+				}
+			});
+		synchronized (threads) { threads.add(thread); }
+		thread.start();
+	}
+
+	private void finished(Thread thread) {
+		synchronized (threads) {
+			threads.remove(thread);
+			threads.notifyAll();
+		}
+	}
+
+	/**
+	 * Determine whether a task can be started without waiting for space.
+	 */
+	public boolean hasCapacity() {
+		return slots.availablePermits() > 0;
+	}
+
+	/**
+	 * Get the number of tasks waiting to run.
+	 */
+	public int getQueueLength() {
+		return queueSize - slots.availablePermits();
+	}
+
+	public void shutdown() {
+		shutdown = true;
+	}
+
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		synchronized (threads) {
+			for (Thread thread : threads) thread.interrupt();
+		}
+		return new LinkedList<Runnable>();
+	}
+
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	public boolean isTerminated() {
+		synchronized (threads) {
+			return shutdown && threads.isEmpty();
+		}
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long now = System.currentTimeMillis();
+		long end = now + Math.min(unit.toMillis(timeout), Long.MAX_VALUE - now);
+		synchronized (threads) {
+			while (!isTerminated()) {
+				long wait = end - System.currentTimeMillis();
+				if (wait <= 0) return false;
+				threads.wait(wait);
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,569 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.geneva.elements.Product;
+
+/**
+ * The set of steps required to process one registration, together
+ * with the ordering constraints between them. Each step is one
+ * transaction (or group of transactions) for one system. A step is
+ * queued for processing as soon as all the steps it depends on have
+ * succeeded. If a step fails on its last attempt, the steps which
+ * require it, directly or indirectly, are skipped; they are complete
+ * but not successful, they are reported as skipped, and they are recorded
+ * with the failed step in its dead letter, so replaying it runs them too.
+ * A step requires the steps of its own system which it depends on, and
+ * the steps of other systems if its rule says it is skipped on their
+ * failure; otherwise it only waits for them to be complete.
+ */
+public class Workflow {
+
+	static final Logger logger = Logger.getLogger(Workflow.class);
+
+	static final int WAITING	= 0;
+	static final int QUEUED		= 1;
+	static final int RUNNING	= 2;
+	static final int DONE		= 3;
+
+	static int count = 0;
+	static ThreadLocal<Step> current = new ThreadLocal<Step>();
+
+	public final String id;
+	public final Registration reg;
+	public final long created = System.currentTimeMillis();
+
+	Hashtable<String,Step> steps;
+	LinkedList<Step> stepList;
+	int remaining = 0;
+	boolean finished = false;
+	long finishTime = 0;
+	int changes = 0;
+	LinkedList<Listener> listeners = new LinkedList<Listener>();
+
+	/**
+	 * Create an empty Workflow for a registration.
+	 */
+	public Workflow(Registration reg) {
+		this(getNextID(), reg);
+	}
+
+	/**
+	 * Create an empty Workflow with a known ID (e.g., when
+	 * a Workflow is replayed from the Journal).
+	 */
+	public Workflow(String id, Registration reg) {
+		this.reg = reg;
+		this.id = id;
+		steps = new Hashtable<String,Step>();
+		stepList = new LinkedList<Step>();
+	}
+
+	private static synchronized String getNextID() {
+		return "WF" + System.currentTimeMillis() + "-" + (++count);
+	}
+
+	/**
+	 * Add a step to the workflow.
+	 * @param product the system which performs the step.
+	 * @param name the name of the step (e.g., "ITI8").
+	 * @param scope a qualifier distinguishing multiple steps of the
+	 * same name for the same system (e.g., a study ID), or null.
+	 * @param body the processing to be done in the step.
+	 * @return the new step.
+	 */
+	public synchronized Step addStep(Product product, String name, String scope, Runnable body) {
+		Step step = new Step(product, name, scope, body);
+		if (steps.get(step.key) == null) {
+			steps.put(step.key, step);
+			stepList.add(step);
+		}
+		return step;
+	}
+
+	/**
+	 * Get a step.
+	 * @param key the key of the step (systemID:name[:scope]).
+	 */
+	public Step getStep(String key) {
+		return steps.get(key);
+	}
+
+	/**
+	 * Get all the steps in the order in which they were added.
+	 */
+	public synchronized Step[] getSteps() {
+		return stepList.toArray(new Step[stepList.size()]);
+	}
+
+	/**
+	 * Determine whether all the steps have been processed.
+	 */
+	public synchronized boolean isComplete() {
+		return (remaining == 0);
+	}
+
+	/**
+	 * Determine whether the Workflow is complete and its listeners have been notified.
+	 */
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Wait until the Workflow is finished.
+	 * @param timeout the maximum time to wait (ms).
+	 * @return true if the Workflow is finished.
+	 */
+	public synchronized boolean waitForCompletion(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		long wait;
+		while (!finished && ((wait = end - System.currentTimeMillis()) > 0)) wait(wait);
+		return finished;
+	}
+
+	/**
+	 * Wait until the state of a step changes or the Workflow is finished.
+	 * @param seen the change count returned by the last call, or zero.
+	 * @param timeout the maximum time to wait (ms).
+	 * @return the current change count.
+	 */
+	public synchronized int waitForChange(int seen, long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		long wait;
+		while ((changes == seen) && !finished && ((wait = end - System.currentTimeMillis()) > 0)) wait(wait);
+		return changes;
+	}
+
+	//Record a change of state and wake the threads waiting for it.
+	//This must be called while synchronized on the Workflow.
+	void changed() {
+		changes++;
+		notifyAll();
+	}
+
+	/**
+	 * Get the status of the Workflow and its steps as a JSON object.
+	 */
+	public synchronized String toJSON() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("{\"job\":"+JSON.quote(id));
+		sb.append(",\"globalID\":"+JSON.quote(reg.globalID));
+		sb.append(",\"complete\":"+finished);
+		sb.append(",\"created\":"+created);
+		if (finished) sb.append(",\"elapsed\":"+(finishTime - created));
+		int failed = 0;
+		int skipped = 0;
+		StringBuffer list = new StringBuffer();
+		for (Step step : stepList) {
+			String state = step.getState();
+			if (state.equals("failed")) failed++;
+			else if (state.equals("skipped")) skipped++;
+			if (list.length() > 0) list.append(",");
+			list.append("{\"system\":"+JSON.quote(step.product.id));
+			list.append(",\"step\":"+JSON.quote(step.name));
+			if (step.scope != null) list.append(",\"scope\":"+JSON.quote(step.scope));
+			list.append(",\"state\":\""+state+"\"");
+			list.append(",\"attempts\":"+step.attempts);
+			if (step.attempts > 0) list.append(",\"elapsed\":"+step.elapsed);
+			if (step.failure != null) list.append(",\"error\":"+JSON.quote(step.failure));
+			list.append("}");
+		}
+		sb.append(",\"failed\":"+failed);
+		sb.append(",\"skipped\":"+skipped);
+		sb.append(",\"steps\":["+list+"]}");
+		return sb.toString();
+	}
+
+	/**
+	 * Add a listener to be notified when the Workflow is complete.
+	 * If it is already complete, the listener is notified immediately.
+	 */
+	public void addListener(Listener listener) {
+		boolean done;
+		synchronized (this) {
+			done = finished;
+			if (!done) listeners.add(listener);
+		}
+		if (done) listener.workflowComplete(this);
+	}
+
+	//Mark the Workflow complete and notify the engine and the listeners.
+	private void finish() {
+		Listener[] list;
+		synchronized (this) {
+			finished = true;
+			finishTime = System.currentTimeMillis();
+			changed();
+			list = listeners.toArray(new Listener[listeners.size()]);
+			listeners.clear();
+		}
+		ProcessingEngine.getInstance().workflowComplete(this);
+		for (int i=0; i<list.length; i++) {
+			try { list[i].workflowComplete(this); }
+			catch (Exception ex) { logger.warn("Workflow listener failed for "+id, ex); }
+		}
+	}
+
+	/**
+	 * Link each step to the steps it depends on, as specified by
+	 * the rules. Dependencies on steps that are not in the workflow
+	 * are ignored. If the rules produce a cycle, the dependencies of
+	 * the steps in the cycle are dropped so the workflow can complete.
+	 */
+	public synchronized void resolve(WorkflowRules rules) {
+		for (Step step : stepList) {
+			String[] deps = rules.getDependencies(step.product.el.getTagName(), step.name);
+			boolean skips = rules.skipsOnFailure(step.product.el.getTagName(), step.name);
+			for (int i=0; i<deps.length; i++) {
+				int k = deps[i].indexOf(":");
+				if (k < 0) continue;
+				String system = deps[i].substring(0, k);
+				String name = deps[i].substring(k+1);
+				if (system.equals("self")) {
+					//A scoped step depends on the step with the same scope
+					//if there is one, or else on the unscoped step. An unscoped
+					//step depends on all the steps of that name for the system.
+					Step target = null;
+					if (step.scope != null) {
+						target = steps.get(step.product.id + ":" + name + ":" + step.scope);
+						if (target == null) target = steps.get(step.product.id + ":" + name);
+						if (target != null) link(step, target, true);
+					}
+					else {
+						for (Step t : stepList) {
+							if ((t.product == step.product) && t.name.equals(name)) link(step, t, true);
+						}
+					}
+				}
+				else {
+					for (Step target : stepList) {
+						if (target.name.equals(name)
+								&& (target.product.el.getTagName().equals(system)
+									|| target.product.id.equals(system))) {
+							link(step, target, skips);
+						}
+					}
+				}
+			}
+		}
+		breakCycles();
+	}
+
+	//Make a step wait for a target step. If the step requires
+	//the target, it is skipped if the target does not succeed.
+	private void link(Step step, Step target, boolean required) {
+		if (step == target) return;
+		if (step.waitingOn.add(target)) target.dependents.add(step);
+		if (required) step.required.add(target);
+	}
+
+	//Find the steps that can never start and release them.
+	private void breakCycles() {
+		Hashtable<Step,Integer> counts = new Hashtable<Step,Integer>();
+		LinkedList<Step> ready = new LinkedList<Step>();
+		for (Step step : stepList) {
+			counts.put(step, step.waitingOn.size());
+			if (step.waitingOn.size() == 0) ready.add(step);
+		}
+		while (ready.size() > 0) {
+			Step step = ready.removeFirst();
+			counts.remove(step);
+			for (Step dep : step.dependents) {
+				Integer n = counts.get(dep);
+				if (n == null) continue;
+				counts.put(dep, n - 1);
+				if (n == 1) ready.add(dep);
+			}
+		}
+		for (Step step : counts.keySet()) {
+			logger.warn("Workflow rule cycle; releasing "+step.key);
+			for (Step target : step.waitingOn) target.dependents.remove(step);
+			step.waitingOn.clear();
+			step.required.clear();
+		}
+	}
+
+	/**
+	 * Remove all the steps except the ones in a set. Dependencies on
+	 * removed steps are treated as satisfied. This must be called after
+	 * resolve and before start.
+	 * @param keys the keys of the steps to keep.
+	 */
+	public synchronized void restrict(Collection<String> keys) {
+		Iterator<Step> it = stepList.iterator();
+		while (it.hasNext()) {
+			Step step = it.next();
+			if (!keys.contains(step.key)) {
+				it.remove();
+				steps.remove(step.key);
+				for (Step dep : step.dependents) {
+					dep.waitingOn.remove(step);
+					dep.required.remove(step);
+				}
+				for (Step target : step.waitingOn) target.dependents.remove(step);
+			}
+		}
+	}
+
+	/**
+	 * Remove all the steps except the ones in a set and the steps which
+	 * share state with them, as determined by the Product.getStepGroup
+	 * method of their systems. This is used when steps are replayed in a
+	 * new Workflow, so a replayed step uses the same state as the steps it
+	 * depends on. This must be called after resolve and before start.
+	 * @param keys the keys of the steps to keep.
+	 */
+	public synchronized void restrictToGroups(Collection<String> keys) {
+		HashSet<String> kept = new HashSet<String>(keys);
+		for (Step step : stepList) {
+			if (!keys.contains(step.key)) continue;
+			String[] names = step.product.getStepGroup(step.name, step.scope);
+			for (int i=0; i<names.length; i++) {
+				kept.add(step.product.id + ":" + names[i] + ((step.scope != null) ? ":" + step.scope : ""));
+			}
+		}
+		restrict(kept);
+	}
+
+	/**
+	 * Queue all the steps that do not depend on any other steps.
+	 */
+	public void start() {
+		LinkedList<Step> ready = new LinkedList<Step>();
+		boolean empty;
+		synchronized (this) {
+			remaining = stepList.size();
+			empty = (remaining == 0);
+			for (Step step : stepList) {
+				if (step.waitingOn.size() == 0) {
+					step.state = QUEUED;
+					ready.add(step);
+				}
+			}
+		}
+		if (empty) finish();
+		ProcessingEngine engine = ProcessingEngine.getInstance();
+		for (Step step : ready) engine.dispatch(step, true);
+	}
+
+	/**
+	 * Report that the transaction being sent by the step running in
+	 * the current thread has failed. The step is retried according to
+	 * its RetryPolicy. Nothing is done if the current thread is not
+	 * running a step.
+	 * @param reason a description of the failure.
+	 */
+	public static void reportFailure(String reason) {
+		Step step = current.get();
+		if ((step != null) && (step.failure == null)) step.failure = reason;
+	}
+
+	/**
+	 * Report the status of a transaction sent by the step running
+	 * in the current thread. Any status except OK is reported as a failure.
+	 * @param status the status (RegSysEvent.STATUS_OK, STATUS_ERROR, or STATUS_CIRCUIT_OPEN).
+	 * @param transaction a description of the transaction.
+	 */
+	public static void reportStatus(int status, String transaction) {
+		if (status == RegSysEvent.STATUS_CIRCUIT_OPEN) reportFailure(transaction+" refused: circuit open");
+		else if (status != RegSysEvent.STATUS_OK) reportFailure(transaction+" failed");
+	}
+
+	//Record the completion of a step and queue the dependent steps
+	//which are now ready to start. If the step failed, the steps which
+	//require it, and the steps which require them, are skipped, and they
+	//are saved with the failed step as a dead letter.
+	void complete(Step step) {
+		LinkedList<Step> ready = new LinkedList<Step>();
+		LinkedList<Step> skipped = new LinkedList<Step>();
+		boolean done;
+		synchronized (this) {
+			if (step.state == DONE) return;
+			step.state = DONE;
+			remaining--;
+			LinkedList<Step> finished = new LinkedList<Step>();
+			finished.add(step);
+			while (finished.size() > 0) {
+				Step s = finished.removeFirst();
+				for (Step dep : s.dependents) {
+					dep.waitingOn.remove(s);
+					if (dep.state != WAITING) continue;
+					if (!s.succeeded && dep.required.contains(s)) {
+						dep.state = DONE;
+						dep.skipped = true;
+						dep.failure = "Skipped: "+s.key+" did not succeed";
+						remaining--;
+						skipped.add(dep);
+						finished.add(dep);
+					}
+					else if (dep.waitingOn.size() == 0) {
+						dep.state = QUEUED;
+						ready.add(dep);
+					}
+				}
+			}
+			done = (remaining == 0);
+			changed();
+		}
+		ProcessingEngine engine = ProcessingEngine.getInstance();
+		if (!step.succeeded) engine.deadLetter(step, skipped);
+		engine.stepComplete(step);
+		for (Step dep : skipped) {
+			logger.info("Skipping "+dep.key+" for "+reg.globalID+": "+dep.failure);
+			engine.stepComplete(dep);
+		}
+		for (Step dep : ready) engine.dispatch(dep, false);
+		if (done) finish();
+	}
+
+	/**
+	 * The interface for objects to be notified when a Workflow is complete.
+	 */
+	public interface Listener {
+		public void workflowComplete(Workflow workflow);
+	}
+
+	/**
+	 * One unit of work in a Workflow.
+	 */
+	public class Step implements Runnable {
+
+		public final String key;
+		public final String name;
+		public final String scope;
+		public final Product product;
+		public final int priority;
+
+		Runnable body;
+		int state = WAITING;
+		boolean succeeded = false;
+		boolean skipped = false;
+		int attempts = 0;
+		long elapsed = 0;
+		String failure = null;
+		RateLimiter admission = null;
+		HashSet<Step> waitingOn = new HashSet<Step>();
+		HashSet<Step> required = new HashSet<Step>();
+		LinkedList<Step> dependents = new LinkedList<Step>();
+
+		Step(Product product, String name, String scope, Runnable body) {
+			this.product = product;
+			this.name = name;
+			this.scope = scope;
+			this.body = body;
+			this.key = product.id + ":" + name + ((scope != null) ? ":" + scope : "");
+			this.priority = ProcessingEngine.getPriority(product.el.getTagName());
+		}
+
+		/**
+		 * Get the Workflow containing this step.
+		 */
+		public Workflow getWorkflow() {
+			return Workflow.this;
+		}
+
+		/**
+		 * Get the number of times the step has been run.
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * Determine whether the last attempt succeeded.
+		 */
+		public boolean isSucceeded() {
+			return succeeded;
+		}
+
+		/**
+		 * Get the time taken by the last attempt (ms).
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		/**
+		 * Determine whether the step was skipped because a step
+		 * it requires did not succeed.
+		 */
+		public boolean isSkipped() {
+			return skipped;
+		}
+
+		/**
+		 * Get the state of the step: "pending" (waiting for other steps,
+		 * queued, or waiting for a retry), "running", "ok", "failed",
+		 * or "skipped".
+		 */
+		public String getState() {
+			synchronized (Workflow.this) {
+				if (state == RUNNING) return "running";
+				if (state == DONE) return succeeded ? "ok" : (skipped ? "skipped" : "failed");
+				return "pending";
+			}
+		}
+
+		/**
+		 * Get the reason for the last failure of the step, or null
+		 * if the last attempt succeeded.
+		 */
+		public String getFailure() {
+			return failure;
+		}
+
+		public void run() {
+			//If the destination is rate limited and no token is available,
+			//release the worker thread and try again when one will be.
+			RateLimiter limiter = product.getRateLimiter(name);
+			if (limiter != null) {
+				long wait = limiter.admit(this);
+				if (wait > 0) {
+					ProcessingEngine.getInstance().defer(this, wait);
+					return;
+				}
+			}
+			//Virtual threads have no priorities; in virtual mode, each
+			//destination's own limit keeps the others from holding it back.
+			if (!ProcessingEngine.getInstance().getExecutionMode().equals(ProcessingEngine.VIRTUAL)) {
+				Thread.currentThread().setPriority(priority);
+			}
+			synchronized (Workflow.this) {
+				state = RUNNING;
+				changed();
+			}
+			attempts++;
+			failure = null;
+			long startTime = System.currentTimeMillis();
+			boolean retrying = false;
+			current.set(this);
+			try {
+				if (product.enabled) body.run();
+			}
+			catch (Exception ex) {
+				failure = ex.toString();
+				logger.warn("Step "+key+" failed for "+reg.globalID, ex);
+			}
+			finally {
+				current.remove();
+				admission = null;
+				elapsed = System.currentTimeMillis() - startTime;
+				succeeded = (failure == null);
+				if (!succeeded) {
+					try { retrying = ProcessingEngine.getInstance().retry(this); }
+					catch (Exception ex) { logger.warn("Unable to retry "+key, ex); }
+				}
+				if (!retrying) complete(this);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.misc;
+
+import java.util.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The ordering rules for the steps of a registration Workflow.
+ * Each rule names a system type (the element name of a Product class),
+ * a step, and the steps which must be complete before it can start:
+ * <pre>
+ *   &lt;workflow&gt;
+ *     &lt;rule system="dcmsystem" step="RAD2" after="pixmgr:ITI8 self:ITI8"/&gt;
+ *   &lt;/workflow&gt;
+ * </pre>
+ * Each entry in the after attribute has the form <i>system:STEP</i>, where
+ * <i>system</i> is a system type, a system ID, or "self" for another step
+ * of the same system. Rules in the configuration replace the default rule
+ * for the same system type and step.
+ * <p>
+ * If a step of the same system fails, the step is skipped. A dependency on
+ * another system only orders the steps: the step starts when the other
+ * system's step is complete, whether or not it succeeded, unless the rule
+ * has skipOnFailure="yes".
+ */
+public class WorkflowRules {
+
+	static final String[][] defaultRules = {
+		{ "ehrsystem",	"RAD1",		"self:ITI8" },
+		{ "ehrsystem",	"MSG",		"self:RAD1" },
+		{ "dcmsystem",	"RAD1",		"self:ITI8" },
+		{ "dcmsystem",	"MSG",		"self:RAD1" },
+		{ "dcmsystem",	"RAD2",		"pixmgr:ITI8 self:ITI8" },
+		{ "dcmsystem",	"RAD4",		"self:RAD2" },
+		{ "dcmsystem",	"DICOM",	"self:RAD4" },
+		{ "dcmsystem",	"RAD28",	"self:DICOM" },
+		{ "dcmsystem",	"MIRROR",	"self:RAD28" },
+		{ "dcmsystem",	"KOS",		"self:RAD28 registry:ITI8" },
+		{ "repository",	"XDS",		"registry:ITI8 pixmgr:ITI8" }
+	};
+
+	Hashtable<String,String> rules;
+	HashSet<String> skipping;
+	Element declared = null;
+
+	/**
+	 * Create the rules from a workflow element.
+	 * @param el the workflow element, or null to use only the default rules.
+	 */
+	public WorkflowRules(Element el) {
+		rules = new Hashtable<String,String>();
+		skipping = new HashSet<String>();
+		for (int i=0; i<defaultRules.length; i++) {
+			rules.put(defaultRules[i][0] + ":" + defaultRules[i][1], defaultRules[i][2]);
+		}
+		if (el != null) {
+			declared = el;
+			Node child = el.getFirstChild();
+			while (child != null) {
+				if ((child.getNodeType() == Node.ELEMENT_NODE)
+						&& child.getNodeName().equals("rule")) {
+					Element rule = (Element)child;
+					String system = rule.getAttribute("system").trim();
+					String step = rule.getAttribute("step").trim();
+					if (!system.equals("") && !step.equals("")) {
+						String key = system + ":" + step;
+						rules.put(key, rule.getAttribute("after").trim());
+						if (rule.getAttribute("skipOnFailure").trim().equals("yes")) skipping.add(key);
+						else skipping.remove(key);
+					}
+				}
+				child = child.getNextSibling();
+			}
+		}
+	}
+
+	/**
+	 * Get the steps which must be complete before a step can start.
+	 * @param system the element name of the Product class.
+	 * @param step the name of the step.
+	 * @return the list of dependencies, each in the form system:STEP.
+	 */
+	public String[] getDependencies(String system, String step) {
+		String after = rules.get(system + ":" + step);
+		if ((after == null) || after.equals("")) return new String[0];
+		return after.split("[\\s,]+");
+	}
+
+	/**
+	 * Determine whether a step is skipped when a step of another
+	 * system which it depends on fails.
+	 * @param system the element name of the Product class.
+	 * @param step the name of the step.
+	 * @return true if the rule for the step has skipOnFailure="yes".
+	 */
+	public boolean skipsOnFailure(String system, String step) {
+		return skipping.contains(system + ":" + step);
+	}
+
+	/**
+	 * Get a copy of the workflow element from the configuration
+	 * for inclusion in a saved configuration file.
+	 * @return the workflow element, or null if the configuration
+	 * did not declare one.
+	 */
+	public Element getXML(Document doc) {
+		if (declared == null) return null;
+		return (Element)doc.importNode(declared, true);
+	}
+
+	/**
+	 * Append the rules to a table of configuration parameters.
+	 */
+	public void appendTableRows(StringBuffer sb) {
+		String[] keys = rules.keySet().toArray(new String[rules.size()]);
+		Arrays.sort(keys);
+		for (int i=0; i<keys.length; i++) {
+			sb.append("<tr><td>"+keys[i]+" after:</td><td>"+rules.get(keys[i])
+						+ (skipping.contains(keys[i]) ? " (skip on failure)" : "")+"</td></tr>");
+		}
+	}
+
+}
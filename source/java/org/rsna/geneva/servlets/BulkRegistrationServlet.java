@@ -0,0 +1,250 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.servlets;
+
+import java.io.*;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.server.HttpRequest;
+import org.rsna.server.HttpResponse;
+import org.rsna.servlets.Servlet;
+import org.rsna.geneva.main.Configuration;
+import org.rsna.geneva.misc.JSON;
+import org.rsna.geneva.misc.ProcessingEngine;
+import org.rsna.geneva.misc.Registration;
+import org.rsna.geneva.misc.RegistrationDatabase;
+import org.rsna.geneva.misc.RegSysEvent;
+import org.rsna.geneva.misc.Workflow;
+
+/**
+ * The BulkRegistrationServlet. This implementation accepts a POST whose
+ * body is a stream of registrations in NDJSON format (one JSON object per
+ * line, with the field names of the registration form). Each registration
+ * is validated, assigned its local IDs, and queued for processing in the
+ * same way as a registration from the form, while the rest of the body is
+ * still being read. The result of each line is streamed back as an NDJSON
+ * object with the line number, the globalID, the status ("accepted" or
+ * "rejected"), and either the job ID and the assigned local IDs or the
+ * reason for the rejection. The last line of the response contains the totals.
+ */
+public class BulkRegistrationServlet extends Servlet {
+
+	static final Logger logger = Logger.getLogger(BulkRegistrationServlet.class);
+
+	static final String ACCEPTED = "\"status\":\"accepted\"";
+
+	public BulkRegistrationServlet(File root, String context) {
+		super(root, context);
+	}
+
+	//The POST handler.
+	public void doPost(HttpRequest req, HttpResponse res) {
+
+		//The form-encoded content has already been consumed by the server.
+		String contentType = req.getContentType().toLowerCase();
+		if (contentType.contains("application/x-www-form-urlencoded")) {
+			res.setResponseCode(415);
+			res.write("The body must be NDJSON.");
+			res.setContentType("txt");
+			res.send();
+			return;
+		}
+
+		Configuration config = Configuration.getInstance();
+		ProcessingEngine engine = ProcessingEngine.getInstance();
+		RegistrationDatabase rdb = config.getRegistrationDatabase();
+		int accepted = 0;
+		int rejected = 0;
+		int lineNumber = 0;
+		try {
+			OutputStream os = res.getOutputStream();
+			String expect = req.getHeader("Expect");
+			if ((expect != null) && expect.toLowerCase().startsWith("100")) {
+				os.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("UTF-8"));
+				os.flush();
+			}
+			BufferedReader in = new BufferedReader(new InputStreamReader(getBody(req), "UTF-8"));
+			Writer out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+			out.write("HTTP/1.1 200 OK\r\n"
+						+ "Content-Type: application/x-ndjson; charset=UTF-8\r\n"
+						+ "Cache-Control: no-cache\r\n"
+						+ "Connection: close\r\n\r\n");
+			out.flush();
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.equals("")) continue;
+				String result = register(line, lineNumber, config, engine, rdb);
+				if (result.contains(ACCEPTED)) accepted++;
+				else rejected++;
+				out.write(result);
+				out.write("\n");
+				//Send the results whenever the client pauses.
+				if (!in.ready()) out.flush();
+			}
+			out.write("{\"accepted\":"+accepted+",\"rejected\":"+rejected+"}\n");
+			out.flush();
+		}
+		catch (InterruptedException ex) { logger.warn("Bulk registration interrupted at line "+lineNumber); }
+		catch (IOException ex) { logger.warn("Bulk registration stream failed at line "+lineNumber, ex); }
+
+		String text = "Bulk registration from "+req.getRemoteAddress()+": "
+						+ accepted+" accepted, "+rejected+" rejected";
+		logger.info(text);
+		config.getEventLog().append(RegSysEvent.getOKEvent(this, text));
+	}
+
+	//Process one line, returning the result as a JSON object.
+	private String register(String line, int lineNumber,
+							Configuration config,
+							ProcessingEngine engine,
+							RegistrationDatabase rdb) throws InterruptedException {
+		String prefix = "{\"line\":"+lineNumber+",";
+		Hashtable<String,String> fields;
+		try { fields = JSON.parseObject(line); }
+		catch (IllegalArgumentException ex) {
+			return prefix + "\"status\":\"rejected\",\"error\":"+JSON.quote(ex.getMessage())+"}";
+		}
+
+		//Vet the input. Unlike the form, a missing or illegal
+		//globalID is not replaced by one made from the time,
+		//since many registrations arrive in the same second.
+		String globalID = fields.get("globalID");
+		if ((globalID == null) || globalID.replaceAll("\\D","").equals("")) {
+			return prefix + "\"status\":\"rejected\","
+						+ "\"error\":\"There must be at least one numeric digit in the registration number.\"}";
+		}
+		Registration reg = new Registration(fields, config);
+		reg.accessionNumber = config.getAccessionNumber();
+		prefix += "\"globalID\":"+JSON.quote(reg.globalID)+",";
+		if (reg.familyName.equals("")) {
+			return prefix + "\"status\":\"rejected\",\"error\":\"The Family Name field is blank.\"}";
+		}
+
+		//Wait for space in the dispatch queues. The client
+		//is held back by the unread part of its stream.
+		while (!engine.hasCapacity()) Thread.sleep(1000);
+
+		//Refuse duplicates, as the form does.
+		synchronized (rdb) {
+			if (rdb.lookup(reg.globalID) != null) {
+				return prefix + "\"status\":\"rejected\","
+							+ "\"error\":\"A registration already exists for this globalID.\"}";
+			}
+			reg.assignLocalIDs(config);
+			rdb.add(reg);
+		}
+		Workflow workflow = engine.process(reg);
+
+		StringBuffer sb = new StringBuffer(prefix);
+		sb.append(ACCEPTED + ",\"job\":"+JSON.quote(workflow.id)+",\"localIDs\":{");
+		String sep = "";
+		for (Map.Entry<String,String> e : reg.localIDTable.entrySet()) {
+			sb.append(sep + JSON.quote(e.getKey()) + ":" + JSON.quote(e.getValue()));
+			sep = ",";
+		}
+		sb.append("}}");
+		return sb.toString();
+	}
+
+	//Get the body of the request, decoding the chunked transfer encoding if necessary.
+	private InputStream getBody(HttpRequest req) {
+		InputStream in = req.getInputStream();
+		String te = req.getHeader("Transfer-Encoding");
+		if ((te != null) && te.toLowerCase().contains("chunked")) return new ChunkedInputStream(in);
+		int length = req.getContentLength();
+		if (length >= 0) return new LimitedInputStream(in, length);
+		return in;
+	}
+
+	//An InputStream that returns a fixed number of bytes from the underlying stream.
+	static class LimitedInputStream extends FilterInputStream {
+		long remaining;
+
+		LimitedInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		public int read() throws IOException {
+			if (remaining <= 0) return -1;
+			int b = in.read();
+			if (b >= 0) remaining--;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) return -1;
+			int n = in.read(b, off, (int)Math.min(len, remaining));
+			if (n > 0) remaining -= n;
+			return n;
+		}
+
+		public int available() throws IOException {
+			return (int)Math.min(in.available(), remaining);
+		}
+	}
+
+	//An InputStream that decodes the chunked transfer encoding.
+	static class ChunkedInputStream extends FilterInputStream {
+		long remaining = 0;
+		boolean eof = false;
+
+		ChunkedInputStream(InputStream in) {
+			super(in);
+		}
+
+		//Read the size line of the next chunk; at the last chunk, skip the trailers.
+		private boolean nextChunk() throws IOException {
+			if (eof) return false;
+			String line = readLine();
+			int semi = line.indexOf(';');
+			if (semi >= 0) line = line.substring(0, semi);
+			try { remaining = Long.parseLong(line.trim(), 16); }
+			catch (NumberFormatException ex) { throw new IOException("Invalid chunk size: "+line); }
+			if (remaining == 0) {
+				while (!readLine().equals("")) ;
+				eof = true;
+				return false;
+			}
+			return true;
+		}
+
+		private String readLine() throws IOException {
+			StringBuffer sb = new StringBuffer();
+			int b;
+			while ((b = in.read()) != '\n') {
+				if (b < 0) throw new EOFException("Unexpected end of chunked body");
+				if (b != '\r') sb.append((char)b);
+			}
+			return sb.toString();
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == 1) ? (b[0] & 0xff) : -1;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if ((remaining == 0) && !nextChunk()) return -1;
+			int n = in.read(b, off, (int)Math.min(len, remaining));
+			if (n < 0) throw new EOFException("Unexpected end of chunked body");
+			remaining -= n;
+			//Skip the CRLF at the end of the chunk.
+			if (remaining == 0) readLine();
+			return n;
+		}
+
+		public int available() throws IOException {
+			return (int)Math.min(in.available(), remaining);
+		}
+	}
+
+}
@@ -16,7 +16,9 @@ import org.rsna.server.HttpResponse;
 import org.rsna.server.User;
 import org.rsna.servlets.Servlet;
 import org.rsna.geneva.elements.ConfigElement;
+import org.rsna.geneva.elements.Product;
 import org.rsna.geneva.main.Configuration;
+import org.rsna.geneva.misc.CircuitBreaker;
 
 /**
  * The ControlPanelServlet. This implementation allows a user
@@ -85,6 +87,8 @@ public class ControlPanelServlet extends Servlet {
 		sb.append(".button {width: 100px;}\n");
 		sb.append(".selectable {color:black; font-family: sans-serif; font-weight:bold;}\n");
 		sb.append(".notselectable {color:gray; font-family: sans-serif; font-weight:normal;}\n");
+		sb.append(".open {color:red; font-family: sans-serif; font-size: 8pt;}\n");
+		sb.append(".half-open {color:maroon; font-family: sans-serif; font-size: 8pt;}\n");
 		sb.append("</style>\n");
 		sb.append("</head><body>\n");
 
@@ -174,8 +178,14 @@ public class ControlPanelServlet extends Servlet {
 				if (!enb) sb.append(" disabled");
 				if (ce.enabled) sb.append(" checked");
 				sb.append(">&nbsp;&nbsp;&nbsp;");
-				if (enb) sb.append("<span class=\"selectable\">" + ids[i] + "</span><br>");
-				else sb.append("<span class=\"notselectable\">" + ids[i] + "</span><br>");
+				if (enb) sb.append("<span class=\"selectable\">" + ids[i] + "</span>");
+				else sb.append("<span class=\"notselectable\">" + ids[i] + "</span>");
+				if (ce instanceof Product) {
+					String state = CircuitBreaker.getStateName(((Product)ce).getURLs());
+					if (!state.equals("closed"))
+						sb.append("&nbsp;<span class=\"" + state + "\">(circuit " + state + ")</span>");
+				}
+				sb.append("<br>");
 			}
 		}
 		return sb;
@@ -13,6 +13,7 @@ import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
 import org.rsna.servlets.Servlet;
 import org.rsna.geneva.main.Configuration;
+import org.rsna.geneva.misc.CircuitBreaker;
 
 /**
  * The DashboardServlet. This implementation simply returns the
@@ -74,6 +75,7 @@ public class DashboardServlet extends Servlet {
 		sb.append("</table>\n");
 
 		sb.append("<p>Number of registrations: "+config.getRegistrationDatabase().size()+".</p>");
+		CircuitBreaker.appendTable(sb);
 		sb.append("<p>");
 		sb.append(config.getEventLog().getTable(filter.replace("%20"," ")));
 		sb.append("</p>");
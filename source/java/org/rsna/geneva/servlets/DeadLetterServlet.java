@@ -0,0 +1,149 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.servlets;
+
+import java.io.*;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.server.HttpRequest;
+import org.rsna.server.HttpResponse;
+import org.rsna.server.User;
+import org.rsna.servlets.Servlet;
+import org.rsna.geneva.main.Configuration;
+import org.rsna.geneva.misc.DeadLetterStore;
+import org.rsna.geneva.misc.RegSysEvent;
+import org.rsna.util.StringUtil;
+
+/**
+ * The DeadLetterServlet. This implementation lists the Workflow
+ * steps which failed on every attempt allowed by their retry policies,
+ * and allows an administrator to replay or delete them.
+ */
+public class DeadLetterServlet extends Servlet {
+
+	static final Logger logger = Logger.getLogger(DeadLetterServlet.class);
+
+	public DeadLetterServlet(File root, String context) {
+		super(root, context);
+	}
+
+	//The GET handler.
+	public void doGet(HttpRequest req, HttpResponse res) {
+		doGet(req, res, "");
+	}
+
+	private void doGet(HttpRequest req, HttpResponse res, String message) {
+		res.disableCaching();
+		User user = req.getUser();
+		if (user != null) {
+			res.write(getPage(req.userHasRole("admin"), message));
+			res.setContentType("html");
+		}
+		else res.setResponseCode(res.notfound);
+		res.send();
+	}
+
+	//The POST handler.
+	//The action parameter is "Replay", "Replay All", or "Delete".
+	//The selected dead letters are in the dl parameters.
+	public void doPost(HttpRequest req, HttpResponse res) {
+		User user = req.getUser();
+		if ((user == null) || !user.hasRole("admin")) {
+			res.setResponseCode(res.notfound);
+			res.send();
+			return;
+		}
+		DeadLetterStore store = DeadLetterStore.getInstance();
+		String action = req.getParameter("action", "");
+		List<String> names = req.getParameterValues("dl");
+		if (names == null) names = new LinkedList<String>();
+		String message = "";
+		if (action.equals("Replay All")) {
+			message = store.replay(null) + " dead letters replayed.";
+		}
+		else if (action.equals("Replay")) {
+			message = store.replay(names) + " dead letters replayed.";
+		}
+		else if (action.equals("Delete")) {
+			message = store.delete(names) + " dead letters deleted.";
+		}
+		if (!message.equals("")) {
+			Configuration.getInstance().getEventLog().append(
+				RegSysEvent.getOKEvent(this, message + " ("+user.getUsername()+")"));
+		}
+		doGet(req, res, message);
+	}
+
+	//Make a page listing the dead letters.
+	private String getPage(boolean isAdmin, String message) {
+		DeadLetterStore.Entry[] entries = DeadLetterStore.getInstance().getEntries();
+		StringBuffer sb = new StringBuffer();
+		sb.append("<html>\n");
+		sb.append("<head>\n");
+		sb.append("<title>Dead Letters</title>\n");
+		sb.append("<style>\n");
+		sb.append("body {background-color: #c6d8f9;}\n");
+		sb.append("td {vertical-align: top; padding: 4px; font-family: sans-serif; font-size: 10pt;}\n");
+		sb.append("h1 {font-family: sans-serif; font-size: 12pt;}\n");
+		sb.append(".button {width: 100px;}\n");
+		sb.append("</style>\n");
+		sb.append("</head><body>\n");
+
+		sb.append("<form id=\"f1\" method=\"post\" target=\"_self\" action=\"\" accept-charset=\"UTF-8\">\n");
+
+		sb.append("<table border=\"0\" width=\"100%\">\n");
+		sb.append("<tr>\n");
+		sb.append("<td><h1>Dead Letters ("+entries.length+")</h1></td>\n");
+		sb.append("<td style=\"text-align:right\">\n");
+		sb.append("<input class=\"button\" type=\"button\" value=\"Home\" onclick=\"window.open('/','_self');\"/>\n");
+		if (isAdmin) {
+			sb.append("<br>");
+			sb.append("<input class=\"button\" type=\"submit\" name=\"action\" value=\"Replay\">");
+			sb.append("<br>");
+			sb.append("<input class=\"button\" type=\"submit\" name=\"action\" value=\"Replay All\">");
+			sb.append("<br>");
+			sb.append("<input class=\"button\" type=\"submit\" name=\"action\" value=\"Delete\">");
+		}
+		sb.append("</td>\n");
+		sb.append("</tr>\n");
+		sb.append("</table>\n");
+
+		if (!message.equals("")) sb.append("<p>"+StringUtil.displayable(message)+"</p>\n");
+
+		sb.append("<table border=\"1\">\n");
+		sb.append("<tr>");
+		if (isAdmin) sb.append("<td></td>");
+		sb.append("<td><b>Time</b></td>");
+		sb.append("<td><b>Step</b></td>");
+		sb.append("<td><b>Global ID</b></td>");
+		sb.append("<td><b>Name</b></td>");
+		sb.append("<td><b>Attempts</b></td>");
+		sb.append("<td><b>Reason</b></td>");
+		sb.append("</tr>\n");
+		for (int i=0; i<entries.length; i++) {
+			DeadLetterStore.Entry e = entries[i];
+			sb.append("<tr>");
+			if (isAdmin) sb.append("<td><input type=\"checkbox\" name=\"dl\" value=\""+e.name+"\"></td>");
+			sb.append("<td>"+StringUtil.getDateTime(e.time, " ")+"</td>");
+			sb.append("<td>"+StringUtil.displayable(e.step));
+			for (String key : e.skipped) sb.append("<br>skipped: "+StringUtil.displayable(key));
+			sb.append("</td>");
+			sb.append("<td>"+StringUtil.displayable(e.reg.globalID)+"</td>");
+			sb.append("<td>"+StringUtil.displayable(e.reg.getName())+"</td>");
+			sb.append("<td>"+e.attempts+"</td>");
+			sb.append("<td>"+StringUtil.displayable(e.reason)+"</td>");
+			sb.append("</tr>\n");
+		}
+		sb.append("</table>\n");
+
+		sb.append("</form>\n");
+		sb.append("</body></html>");
+		return sb.toString();
+	}
+
+}
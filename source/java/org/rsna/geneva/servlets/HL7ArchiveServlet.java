@@ -0,0 +1,121 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.servlets;
+
+import java.io.*;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.server.HttpRequest;
+import org.rsna.server.HttpResponse;
+import org.rsna.servlets.Servlet;
+import org.rsna.geneva.hl7.HL7Archive;
+import org.rsna.geneva.misc.JSON;
+
+/**
+ * The HL7ArchiveServlet. This implementation finds the messages in
+ * the HL7Archive and returns them with their responses, as JSON.
+ * <ul>
+ * <li>GET /archive?patient=id&amp;control=id&amp;dest=url&amp;limit=n
+ * lists the most recent messages which match all the criteria that
+ * are supplied.
+ * <li>GET /archive/{n} returns archived message n and its response.
+ * </ul>
+ * The archive contains patient information, so a login is required.
+ */
+public class HL7ArchiveServlet extends Servlet {
+
+	static final Logger logger = Logger.getLogger(HL7ArchiveServlet.class);
+
+	static final int defaultLimit = 100;
+	static final int maxLimit = 10000;
+
+	public HL7ArchiveServlet(File root, String context) {
+		super(root, context);
+	}
+
+	//The GET handler.
+	public void doGet(HttpRequest req, HttpResponse res) {
+		if (req.getUser() == null) {
+			res.setResponseCode(res.notfound);
+			res.send();
+			return;
+		}
+		HL7Archive archive = HL7Archive.getInstance();
+		String id = req.getParsedPath().element(1).trim();
+
+		if (id.equals("")) {
+			int limit = defaultLimit;
+			try { limit = Math.min(Math.max(Integer.parseInt(req.getParameter("limit", "")), 1), maxLimit); }
+			catch (Exception ex) { }
+			List<HL7Archive.Entry> entries = archive.find(
+				req.getParameter("patient"), req.getParameter("control"), req.getParameter("dest"), limit);
+			StringBuffer sb = new StringBuffer();
+			sb.append("{\"size\":"+archive.getSize()+",\"messages\":[");
+			boolean first = true;
+			for (HL7Archive.Entry entry : entries) {
+				if (!first) sb.append(",");
+				first = false;
+				appendEntry(sb, entry);
+				sb.append("}");
+			}
+			sb.append("]}");
+			send(res, 200, sb.toString());
+			return;
+		}
+
+		HL7Archive.Entry entry = null;
+		try { entry = archive.getEntry(Integer.parseInt(id)); }
+		catch (Exception ex) { }
+		if (entry == null) {
+			send(res, HttpResponse.notfound, "{\"id\":"+JSON.quote(id)+",\"error\":\"Unknown message\"}");
+			return;
+		}
+		try {
+			StringBuffer sb = new StringBuffer();
+			appendEntry(sb, entry);
+			sb.append(",\"message\":"+JSON.quote(getText(archive.read(entry, false))));
+			sb.append(",\"response\":"+JSON.quote(getText(archive.read(entry, true))));
+			sb.append("}");
+			send(res, 200, sb.toString());
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to read archived message "+id, ex);
+			send(res, HttpResponse.servererror, "{\"id\":"+JSON.quote(id)+",\"error\":\"Unable to read the message\"}");
+		}
+	}
+
+	//Append the index fields of an entry, leaving the object open.
+	private void appendEntry(StringBuffer sb, HL7Archive.Entry entry) {
+		sb.append("{\"id\":"+entry.id);
+		sb.append(",\"time\":"+entry.time);
+		sb.append(",\"name\":"+JSON.quote(entry.name));
+		sb.append(",\"controlID\":"+JSON.quote(entry.controlID));
+		sb.append(",\"patientID\":"+JSON.quote(entry.patientID));
+		sb.append(",\"destination\":"+JSON.quote(entry.destination));
+		sb.append(",\"status\":"+JSON.quote(entry.ok ? "ok" : "error"));
+	}
+
+	//Get the text of an archived message or response, without the
+	//MLLP framing characters, with one segment per line.
+	private String getText(byte[] bytes) {
+		int start = 0;
+		int end = bytes.length;
+		if ((end > 0) && (bytes[0] == 0x0B)) start++;
+		while ((end > start) && ((bytes[end-1] == 0x0D) || (bytes[end-1] == 0x1C))) end--;
+		return new String(bytes, start, end - start).replace('\r', '\n');
+	}
+
+	private void send(HttpResponse res, int code, String json) {
+		res.setResponseCode(code);
+		res.disableCaching();
+		res.setHeader("Content-Type", "application/json; charset=UTF-8");
+		res.write(json);
+		res.send();
+	}
+
+}
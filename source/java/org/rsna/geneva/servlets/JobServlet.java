@@ -0,0 +1,167 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.geneva.servlets;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import org.apache.log4j.Logger;
+import org.rsna.server.HttpRequest;
+import org.rsna.server.HttpResponse;
+import org.rsna.servlets.Servlet;
+import org.rsna.geneva.misc.JSON;
+import org.rsna.geneva.misc.ProcessingEngine;
+import org.rsna.geneva.misc.Workflow;
+
+/**
+ * The JobServlet. This implementation reports the status of the job
+ * (the Workflow) created for a registration, as a JSON object listing
+ * each step for each system with its state (pending, running, ok, or
+ * failed), its number of attempts, and the time taken by its last attempt.
+ * <ul>
+ * <li>GET /jobs/{id} returns the current status.
+ * <li>GET /jobs/{id}?wait=n waits up to n seconds for the job to
+ * complete before returning the status (long polling).
+ * <li>GET /jobs/{id}?events=yes, or a request that accepts
+ * text/event-stream, returns a stream of server-sent events: a status
+ * event when steps change state (at most four per second), and a
+ * complete event at the end. A stream which is still open after ten
+ * minutes ends with a timeout event, and the client can reconnect.
+ * </ul>
+ * Waiting and streaming requests each hold one of the server's threads,
+ * so only a few are allowed at once. When they are all in use, a waiting
+ * request returns the current status immediately, and a streaming request
+ * is refused with a 503 response.
+ */
+public class JobServlet extends Servlet {
+
+	static final Logger logger = Logger.getLogger(JobServlet.class);
+
+	static final int maxWait = 120;
+	static final long keepAliveInterval = 15000;
+	static final long minEventInterval = 250;
+	static final long maxStreamTime = 10 * 60 * 1000L;
+	static final int maxHeldRequests = 8;
+
+	//Limits the requests which hold a server thread while they wait.
+	static final Semaphore held = new Semaphore(maxHeldRequests);
+
+	public JobServlet(File root, String context) {
+		super(root, context);
+	}
+
+	//The GET handler.
+	public void doGet(HttpRequest req, HttpResponse res) {
+		ProcessingEngine engine = ProcessingEngine.getInstance();
+		String id = req.getParsedPath().element(1).trim();
+
+		if (id.equals("")) {
+			send(res, 200, "{\"running\":"+engine.getRunningJobCount()+"}");
+			return;
+		}
+
+		Workflow workflow = engine.getWorkflow(id);
+		String accept = req.getHeader("Accept");
+		boolean events = req.getParameter("events", "no").equals("yes")
+							|| ((accept != null) && accept.contains("text/event-stream"));
+		if (events && (workflow != null)) {
+			if (!held.tryAcquire()) {
+				res.setHeader("Retry-After", "15");
+				send(res, 503,
+					"{\"job\":"+JSON.quote(id)+",\"error\":\"Too many event streams; try again later\"}");
+				return;
+			}
+			try { streamEvents(res, workflow); }
+			finally { held.release(); }
+			return;
+		}
+
+		int wait = 0;
+		try { wait = Math.min(Math.max(Integer.parseInt(req.getParameter("wait", "0")), 0), maxWait); }
+		catch (Exception ex) { }
+		if ((wait > 0) && (workflow != null) && held.tryAcquire()) {
+			try { workflow.waitForCompletion(wait * 1000L); }
+			catch (InterruptedException ex) { }
+			finally { held.release(); }
+		}
+
+		String status = (workflow != null) ? workflow.toJSON() : engine.getJobStatus(id);
+		if (status == null) {
+			send(res, HttpResponse.notfound, "{\"job\":"+JSON.quote(id)+",\"error\":\"Unknown job\"}");
+			return;
+		}
+		if (events) {
+			//The job is already complete; send its final status as the only event.
+			try {
+				Writer out = startEventStream(res);
+				out.write("event: complete\ndata: "+status+"\n\n");
+				out.flush();
+			}
+			catch (IOException ex) { }
+			return;
+		}
+		send(res, 200, status);
+	}
+
+	private void send(HttpResponse res, int code, String json) {
+		res.setResponseCode(code);
+		res.disableCaching();
+		res.setHeader("Content-Type", "application/json; charset=UTF-8");
+		res.write(json);
+		res.send();
+	}
+
+	//Send the status each time it changes until the job is
+	//complete or the stream reaches its maximum lifetime.
+	private void streamEvents(HttpResponse res, Workflow workflow) {
+		long end = System.currentTimeMillis() + maxStreamTime;
+		try {
+			Writer out = startEventStream(res);
+			int seen = -1;
+			while (true) {
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0) {
+					out.write("event: timeout\ndata: "+workflow.toJSON()+"\n\n");
+					out.flush();
+					return;
+				}
+				int changes = workflow.waitForChange(seen, Math.min(keepAliveInterval, remaining));
+				boolean finished = workflow.isFinished();
+				if (finished) {
+					out.write("event: complete\ndata: "+workflow.toJSON()+"\n\n");
+					out.flush();
+					return;
+				}
+				if (changes != seen) {
+					out.write("event: status\ndata: "+workflow.toJSON()+"\n\n");
+					out.flush();
+					seen = changes;
+					//Let further changes accumulate so a large job does
+					//not send an event for every step.
+					Thread.sleep(minEventInterval);
+				}
+				else {
+					out.write(": keepalive\n\n");
+					out.flush();
+				}
+			}
+		}
+		catch (InterruptedException ex) { }
+		catch (IOException ex) { logger.debug("Event stream closed for "+workflow.id); }
+	}
+
+	private Writer startEventStream(HttpResponse res) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(res.getOutputStream(), "UTF-8"));
+		out.write("HTTP/1.1 200 OK\r\n"
+					+ "Content-Type: text/event-stream; charset=UTF-8\r\n"
+					+ "Cache-Control: no-cache\r\n"
+					+ "Connection: close\r\n\r\n");
+		return out;
+	}
+
+}
@@ -14,9 +14,11 @@ import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
 import org.rsna.servlets.Servlet;
 import org.rsna.geneva.elements.*;
+import org.rsna.geneva.misc.ProcessingEngine;
 import org.rsna.geneva.misc.Registration;
 import org.rsna.geneva.misc.RegistrationDatabase;
 import org.rsna.geneva.misc.RegSysEvent;
+import org.rsna.geneva.misc.Workflow;
 import org.rsna.geneva.main.Configuration;
 import org.rsna.util.StringUtil;
 
@@ -76,52 +78,30 @@ public class RegistrationServlet extends Servlet {
 			return;
 		}
 
-		//Not a duplicate; set the local IDs.
-		Hashtable<String,String> idgroups = new Hashtable<String,String>();
-		DCMSystem[] dcmsystems = config.getDCMSystems();
-		for (int i=0; i<dcmsystems.length; i++) {
-			String localAssigningAuthority = dcmsystems[i].localAssigningAuthority;
-			String localID = idgroups.get(localAssigningAuthority);
-			if (localID == null) {
-				localID = config.getLocalID();
-				idgroups.put(localAssigningAuthority,localID);
-			}
-			reg.addLocalID(dcmsystems[i].id,localID);
-		}
-		EHRSystem[] ehrsystems = config.getEHRSystems();
-		for (int i=0; i<ehrsystems.length; i++) {
-			String localAssigningAuthority = ehrsystems[i].localAssigningAuthority;
-			String localID = idgroups.get(localAssigningAuthority);
-			if (localID == null) {
-				localID = config.getLocalID();
-				idgroups.put(localAssigningAuthority,localID);
-			}
-			reg.addLocalID(ehrsystems[i].id,localID);
+		//Refuse the registration if the dispatch queues are full.
+		if (!ProcessingEngine.getInstance().hasCapacity()) {
+			res.setResponseCode(503);
+			res.write("<p>The system is busy. Please try again later.</p>");
+			res.write("</center></body><html>");
+			send(res);
+			return;
 		}
 
-		//Add the registration to the database and send the
-		//response page. This is done before the processing
-		//actually takes place since that is asynchronous.
+		//Not a duplicate; set the local IDs.
+		reg.assignLocalIDs(config);
+
+		//Add the registration to the database, start the processing
+		//workflow, and send the response page. The processing itself
+		//is asynchronous; the job ID allows the caller to follow it.
 		rdb.add(reg);
+		Workflow workflow = ProcessingEngine.getInstance().process(reg);
+		res.setHeader("X-Job-ID", workflow.id);
 		res.write("<p>"+reg.getFullName() + " has been registered and queued for processing.</p>");
+		res.write("<p>Job ID: <a href=\"/jobs/"+workflow.id+"\">"+workflow.id+"</a></p>");
 		boolean showLocalIDs = req.getParameter("localIDs", "no").equals("yes");
 		res.write(reg.toTable(showLocalIDs));
 		res.write("</body><html>");
 		send(res);
-
-		//Start up all the processing threads.
-		startProcessingThreads(reg, config.getPIXMgrs(), Thread.NORM_PRIORITY);
-		startProcessingThreads(reg, config.getRegistries(), Thread.MAX_PRIORITY);
-		startProcessingThreads(reg, config.getPDQMgrs(), Thread.NORM_PRIORITY);
-		startProcessingThreads(reg, config.getRepositories(), Thread.NORM_PRIORITY);
-		startProcessingThreads(reg, config.getEHRSystems(), Thread.MIN_PRIORITY);
-		startProcessingThreads(reg, config.getDCMSystems(), Thread.MIN_PRIORITY);
-	}
-
-	private void startProcessingThreads(Registration reg, Product[] systems, int priority) {
-		for (int i=0; i<systems.length; i++) {
-			systems[i].process(reg, priority);
-		}
 	}
 
 	private void send(HttpResponse res) {
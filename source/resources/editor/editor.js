@@ -194,7 +194,6 @@ function insertSaveButton(parent) {
 var sysparams1 = new Array(
 				"id",
 				"enabled",
-				"startupDelay",
 				"hl7Version",
 				"hl7URL",
 				"soapVersion",
@@ -203,7 +202,6 @@ var sysparams1 = new Array(
 var sysparams2 = new Array(
 				"id",
 				"enabled",
-				"startupDelay",
 				"hl7Version",
 				"hl7URL",
 				"soapVersion",
@@ -213,7 +211,6 @@ var sysparams2 = new Array(
 var sysparams3 = new Array(
 				"id",
 				"enabled",
-				"startupDelay",
 				"hl7Version",
 				"hl7URL",
 				"soapVersion",
@@ -223,11 +220,13 @@ var sysparams3 = new Array(
 var sysparams4 = new Array(
 				"id",
 				"enabled",
-				"startupDelay",
 				"hl7Version",
 				"hl7URL",
 				"soapVersion",
 				"dcmURL",
+				"bytesPerSecond",
+				"dcmAsyncOps",
+				"dcmAssociations",
 				"repositoryID",
 				"retrieveAET",
 				"globalAssigningAuthority",
@@ -277,6 +276,29 @@ function showServerParams(right, el, edit) {
 					"senderDeviceId",
 					"senderDeviceName" ),
 				edit);
+	insertTable("Processing Threads",
+				right,
+				el,
+				new Array(
+					"pixmgrThreads",
+					"registryThreads",
+					"pdqmgrThreads",
+					"repositoryThreads",
+					"ehrsystemThreads",
+					"dcmsystemThreads",
+					"backpressure",
+					"executionMode",
+					"journal",
+					"breakerThreshold",
+					"breakerProbeInterval",
+					"hl7IdleTimeout",
+					"hl7MaxIdleConnections",
+					"hl7MaxConnections",
+					"hl7PipelineLanes",
+					"hl7Archive",
+					"dcmIdleTimeout",
+					"dcmMaxAssociations" ),
+				edit);
 }
 
 function showDataSystemParams(right, el, edit, sysparams, messages) {
@@ -290,7 +312,8 @@ function showDataSystemParams(right, el, edit, sysparams, messages) {
 				el,
 				new Array(
 					"receivingApplication",
-					"receivingFacility" ),
+					"receivingFacility",
+					"hl7PipelineDepth" ),
 				edit);
 	insertTable("HL7 V3 Parameters",
 				right,
@@ -299,6 +322,14 @@ function showDataSystemParams(right, el, edit, sysparams, messages) {
 					"receiverDeviceId",
 					"receiverDeviceName" ),
 				edit);
+	insertTable("Dispatch Queue",
+				right,
+				el,
+				new Array(
+					"queueSize",
+					"workers",
+					"messagesPerSecond" ),
+				edit);
 	insertTable("Message Enables",
 				right,
 				el,
@@ -315,7 +346,7 @@ function showSpecialAttributes(right, el, edit, attributes) {
 }
 
 function showEHRSystemParams(right, el, edit, includeConnectionInterval) {
-	var sysParams =	new Array( "id", "enabled", "startupDelay", "hl7Version", "soapVersion" );
+	var sysParams =	new Array( "id", "enabled", "hl7Version", "soapVersion" );
 	if (includeConnectionInterval) sysParams[sysParams.length] = "connectionInterval";
 	insertTable("System Parameters",
 				right,
@@ -352,11 +383,10 @@ function showRepositoryParams(right, el, edit) {
 				new Array(
 					"id",
 					"enabled",
-					"startupDelay",
 					"soapVersion",
 					"sendsSOAP",
 					"soapURL",
-					"docsetDelay",
+					"messagesPerSecond",
 					"globalAssigningAuthority" ),
 				edit);
 }
@@ -560,22 +590,39 @@ help.acceptsMessages = "Whether Geneva is to send specially formatted messages t
 help.acceptsRAD1 = "Whether Geneva is to send this system a RAD1 (yes or no).";
 help.acceptsRAD4 = "Whether Geneva is to send this system a RAD4 (yes or no).";
 help.askOnClose = "Confirm when shutting down the application (yes or no). ";
+help.backpressure = "What to do when a system's queue is full (block, reject, or spill).";
 help.bodyPartExamined = "The text for the BodyPartExamined element in the instances of the study.";
-help.connectionInterval = "The elapsed time between connections to this system (in msec).";
+help.breakerProbeInterval = "The time between attempts to reach a system whose circuit is open (in msec).";
+help.breakerThreshold = "The number of consecutive connection failures that opens a system's circuit (0 to disable).";
+help.bytesPerSecond = "The maximum rate at which DICOM data is sent to this system (blank for no limit).";
+help.connectionInterval = "The elapsed time between connections to this system (in msec), used when messagesPerSecond is blank.";
 help.date = "(YYYYMMDD, or * to use today's date).";
+help.dcmAssociations = "The number of DICOM associations used in parallel to send each study to this system (blank or 1 for one association).";
+help.dcmAsyncOps = "The number of C-STOREs sent to this system without waiting for their responses (blank or 1 if the system cannot accept asynchronous operations).";
+help.dcmIdleTimeout = "The time an unused DICOM association is kept open for reuse (in msec, 0 to release each association after one study).";
+help.dcmMaxAssociations = "The maximum number of DICOM associations open to each dcmURL at one time.";
 help.dcmURL = "The URL of the system for DICOM communication (in the form dicom://DestinationAET:SenderAET@IP:port).";
 help.dcmsystemID = "The ID of the DICOM System to which Geneva is to transmit the study.";
 help.description = "The text for the StudyDescription element in the instances of the study.";
 help.directory = "The directory in which the files for inclusion in this transmission are located.";
-help.docsetDelay = "The time to wait after a registration before transmitting docsets to this system (in msec).";
 help.enabled = "(yes or no) (do not change).";
+help.executionMode = "The type of threads used to process registrations (platform or virtual).";
 help.globalAssigningAuthority = "";
+help.hl7Archive = "(yes or no) Keep a copy of each HL7 message sent and its response in the archive directory.";
+help.hl7IdleTimeout = "The time an unused HL7 connection is kept open for reuse (in msec, 0 to close each connection after one message).";
+help.hl7MaxConnections = "The maximum number of HL7 connections open to each system at one time.";
+help.hl7MaxIdleConnections = "The maximum number of unused HL7 connections kept open to each system.";
+help.hl7PipelineDepth = "The number of HL7 messages sent to this system without waiting for their responses (blank or 1 if the system cannot accept pipelined messages).";
+help.hl7PipelineLanes = "The number of pipelined HL7 connections to each system; a change takes effect when a system has no pipelined messages in process.";
 help.hl7URL = "The URL of the system for HL7 communication (in the form http://IP:port).";
 help.hl7Version = "The version of HL7 to use with this system (2 or 3)";
 help.id = "The ID of this system (do not change).";
 help.institutionName = "";
+help.journal = "Record the transactions in progress and resume them after a restart (yes or no).";
 help.localAssigningAuthority = "";
 help.logDepth = "The size of the circular buffer of the event log.";
+help.messagesPerSecond = "The maximum rate at which messages are sent to this system (blank for no limit).";
+help.queueSize = "The maximum number of registrations waiting to be sent to this system.";
 help.repositoryID = "The ID of the repository to which to send a KOS.";
 help.retrieveAET = "The AET to be supplied in messages for retrieving objects from the system.";
 help.senderDeviceId = "";
@@ -586,8 +633,8 @@ help.sendsSOAP = "Whether Geneva is to send DocSets to this system (yes or no)."
 help.serverPort = "The port number of the web server (the standard port is 80).";
 help.soapURL = "The URL to which Geneva is to send SOAP messages.";
 help.soapVersion = "The version of SOAP to use with this system (SOAP_1_1 or SOAP_1_2)";
-help.startupDelay = "The time to wait after a registration before processing events for this system (in msec).";
 help.uidRoot = "The root string for all generated UIDs.";
+help.workers = "The number of threads sending to this system (blank to use the Processing Threads value).";
 
 //Edit suppression for certain editor fields
 var doNotEdit = new Object();